@@ -0,0 +1,471 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+import org.hibernate.HibernateException;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.AbstractCollectionEvent;
+import org.hibernate.event.spi.DeleteEvent;
+import org.hibernate.event.spi.DeleteEventListener;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.MergeEvent;
+import org.hibernate.event.spi.MergeEventListener;
+import org.hibernate.event.spi.PersistEvent;
+import org.hibernate.event.spi.PersistEventListener;
+import org.hibernate.event.spi.PostCollectionRecreateEvent;
+import org.hibernate.event.spi.PostCollectionRecreateEventListener;
+import org.hibernate.event.spi.PostCollectionRemoveEvent;
+import org.hibernate.event.spi.PostCollectionRemoveEventListener;
+import org.hibernate.event.spi.PostCollectionUpdateEvent;
+import org.hibernate.event.spi.PostCollectionUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import com.berrycloud.acl.data.AclMetaData;
+import com.berrycloud.acl.domain.AclRole;
+import com.berrycloud.acl.domain.AclUser;
+import com.berrycloud.acl.domain.PermissionLink;
+import com.berrycloud.acl.security.AclUserDetails;
+import com.berrycloud.acl.security.AclUserDetailsService;
+
+/**
+ * Request- and transaction-scoped cache of the ACL decisions of the current user. A decision is identified by the
+ * entity type, the id and the permission. The repositories ({@code isPermitted}, {@code existsById},
+ * {@code findById} and the update check of {@code save}) and the permission evaluator use it, so an entity checked
+ * repeatedly in the same request is queried only once. A permitted {@code findById} is served from the persistence
+ * context.
+ * <p>
+ * The decisions are kept in the attributes of the current web request or - outside of web requests - in a resource of
+ * the current transaction. (Nothing is cached if neither of them is available.) All the decisions of the scope are
+ * dropped when any ACL-relevant entity (ACL entities, users, roles and permission links) is persisted, merged or
+ * deleted, when their changes are flushed and when the repositories execute bulk statements.
+ * <p>
+ * The decisions missing from the scope are looked up in (and stored into) the cross-request
+ * {@link AclSharedDecisionCache} if it's enabled. The hit and miss counters show how many ACL queries were saved.
+ * Invalidation works with Hibernate only. The cache is disabled by default.
+ *
+ * @author István Rátkai (Selindek)
+ */
+public class AclDecisionCache implements PersistEventListener, MergeEventListener, DeleteEventListener,
+    PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener, PostCollectionRecreateEventListener,
+    PostCollectionUpdateEventListener, PostCollectionRemoveEventListener {
+
+  private static final long serialVersionUID = 3371592306254307624L;
+
+  private static Logger LOG = LoggerFactory.getLogger(AclDecisionCache.class);
+
+  private static final String REQUEST_ATTRIBUTE = AclDecisionCache.class.getName() + ".DECISIONS";
+
+  @Autowired
+  private transient EntityManagerFactory entityManagerFactory;
+
+  @Autowired
+  private transient AclMetaData aclMetaData;
+
+  @Autowired(required = false)
+  private transient AclSharedDecisionCache sharedCache;
+
+  @Value("${spring.data.jpa.acl.decision-cache.enabled:false}")
+  private boolean enabled;
+
+  private boolean registered;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  @PostConstruct
+  public void registerListeners() {
+    EventListenerRegistry registry;
+    try {
+      registry = entityManagerFactory.unwrap(SessionFactoryImplementor.class).getServiceRegistry()
+          .getService(EventListenerRegistry.class);
+    } catch (PersistenceException e) {
+      LOG.info("ACL decision cache is not available without Hibernate.");
+      return;
+    }
+    registry.appendListeners(EventType.PERSIST, this);
+    registry.appendListeners(EventType.PERSIST_ONFLUSH, this);
+    registry.appendListeners(EventType.MERGE, this);
+    registry.appendListeners(EventType.DELETE, this);
+    registry.appendListeners(EventType.POST_INSERT, this);
+    registry.appendListeners(EventType.POST_UPDATE, this);
+    registry.appendListeners(EventType.POST_DELETE, this);
+    registry.appendListeners(EventType.POST_COLLECTION_RECREATE, this);
+    registry.appendListeners(EventType.POST_COLLECTION_UPDATE, this);
+    registry.appendListeners(EventType.POST_COLLECTION_REMOVE, this);
+    registered = true;
+  }
+
+  public boolean isEnabled() {
+    return enabled && registered;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Returns true if the decisions are cached in the current scope or in the {@link AclSharedDecisionCache}
+   */
+  public boolean isActive() {
+    return isEnabled() || isSharedCacheEnabled();
+  }
+
+  /**
+   * Returns the cached decision of the given permission of the current user to the given entity or evaluates it by
+   * the given loader (and caches it if there is a scope).
+   */
+  public boolean isPermitted(Class<?> entityClass, Object id, String permission, BooleanSupplier loader) {
+    long generation = getGeneration();
+    Boolean decision = get(entityClass, id, permission);
+    if (decision != null) {
+      return decision;
+    }
+    boolean permitted = loader.getAsBoolean();
+    put(entityClass, id, permission, permitted, generation);
+    return permitted;
+  }
+
+  /**
+   * Returns the generation of the shared decisions. It has to be read before a decision is evaluated and passed to
+   * {@link #put(Class, Object, String, boolean, long)}, so a decision evaluated before a concurrent eviction is not
+   * shared.
+   */
+  public long getGeneration() {
+    return isSharedCacheEnabled() ? sharedCache.getGeneration() : 0;
+  }
+
+  /**
+   * Returns the cached decision of the given permission of the current user to the given entity or null if it's not
+   * cached. (The miss is not counted: the caller is expected to {@link #put(Class, Object, String, boolean, long)}
+   * the decision.) The decisions missing from the current scope are looked up in the {@link AclSharedDecisionCache} too
+   * (if it's enabled).
+   */
+  public Boolean get(Class<?> entityClass, Object id, String permission) {
+    Map<DecisionKey, Boolean> decisions = getDecisions(false);
+    if (decisions == null && !isSharedCacheEnabled()) {
+      return null;
+    }
+    DecisionKey key = createKey(entityClass, id, permission);
+    Boolean decision = decisions == null ? null : decisions.get(key);
+    if (decision == null && isSharedCacheEnabled()) {
+      decision = sharedCache.get(key);
+      if (decision != null && (decisions = getDecisions(true)) != null) {
+        decisions.put(key, decision);
+      }
+    }
+    if (decision != null) {
+      hits.increment();
+    }
+    return decision;
+  }
+
+  /**
+   * Caches a decision evaluated by the caller
+   *
+   * @param generation
+   *          the {@link #getGeneration() generation} read before the decision was evaluated
+   */
+  public void put(Class<?> entityClass, Object id, String permission, boolean permitted, long generation) {
+    Map<DecisionKey, Boolean> decisions = getDecisions(true);
+    if (decisions == null && !isSharedCacheEnabled()) {
+      return;
+    }
+    misses.increment();
+    DecisionKey key = createKey(entityClass, id, permission);
+    if (decisions != null) {
+      decisions.put(key, permitted);
+    }
+    if (isSharedCacheEnabled()) {
+      sharedCache.put(key, permitted, generation);
+    }
+  }
+
+  /**
+   * Drops all the decisions of the current scope
+   */
+  public void invalidate() {
+    Map<DecisionKey, Boolean> decisions = getDecisions(false);
+    if (decisions != null && !decisions.isEmpty()) {
+      LOG.trace("Invalidating {} ACL decisions", decisions.size());
+      decisions.clear();
+    }
+  }
+
+  /**
+   * Drops all the decisions of the current scope and the shared decisions of the given entity type on all the nodes
+   * (e.g. after a bulk statement)
+   */
+  public void invalidate(Class<?> entityClass) {
+    invalidate();
+    if (sharedCache != null) {
+      sharedCache.invalidateType(entityClass);
+    }
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * Returns the ratio of the decisions served from the cache (between 0 and 1)
+   */
+  public double getHitRate() {
+    long hitCount = getHitCount();
+    long total = hitCount + getMissCount();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  public void resetStatistics() {
+    hits.reset();
+    misses.reset();
+  }
+
+  @Override
+  public void onPersist(PersistEvent event) {
+    invalidate(event.getObject());
+  }
+
+  @Override
+  public void onPersist(PersistEvent event, @SuppressWarnings("rawtypes") Map createdAlready) {
+    invalidate(event.getObject());
+  }
+
+  @Override
+  public void onMerge(MergeEvent event) {
+    invalidate(event.getOriginal());
+  }
+
+  @Override
+  public void onMerge(MergeEvent event, @SuppressWarnings("rawtypes") Map copiedAlready) {
+    invalidate(event.getOriginal());
+  }
+
+  @Override
+  public void onDelete(DeleteEvent event) {
+    invalidate(event.getObject());
+  }
+
+  @Override
+  public void onDelete(DeleteEvent event, @SuppressWarnings("rawtypes") Set transientEntities) {
+    invalidate(event.getObject());
+  }
+
+  @Override
+  public void onPostInsert(PostInsertEvent event) {
+    invalidate(event.getEntity());
+  }
+
+  @Override
+  public void onPostUpdate(PostUpdateEvent event) {
+    invalidate(event.getEntity());
+  }
+
+  @Override
+  public void onPostDelete(PostDeleteEvent event) {
+    invalidate(event.getEntity());
+  }
+
+  @Override
+  public void onPostRecreateCollection(PostCollectionRecreateEvent event) {
+    invalidate(event);
+  }
+
+  @Override
+  public void onPostUpdateCollection(PostCollectionUpdateEvent event) {
+    invalidate(event);
+  }
+
+  @Override
+  public void onPostRemoveCollection(PostCollectionRemoveEvent event) {
+    invalidate(event);
+  }
+
+  @Override
+  public boolean requiresPostCommitHandling(EntityPersister persister) {
+    return false;
+  }
+
+  /**
+   * Still abstract in Hibernate 5.3 (the default {@link #requiresPostCommitHandling} delegates to it)
+   */
+  @Override
+  @SuppressWarnings("deprecation")
+  public boolean requiresPostCommitHanding(EntityPersister persister) {
+    return requiresPostCommitHandling(persister);
+  }
+
+  private void invalidate(AbstractCollectionEvent event) {
+    invalidate(event.getAffectedOwnerOrNull());
+  }
+
+  private void invalidate(Object entity) throws HibernateException {
+    if (entity != null && isRelevant(entity)) {
+      invalidate();
+    }
+  }
+
+  /**
+   * Checks if the changes of the given entity can affect any ACL decision
+   */
+  private boolean isRelevant(Object entity) {
+    Class<?> entityClass = entity instanceof HibernateProxy
+        ? ((HibernateProxy) entity).getHibernateLazyInitializer().getPersistentClass()
+        : entity.getClass();
+    return aclMetaData.getAclEntityMetaData(entityClass) != null || AclUser.class.isAssignableFrom(entityClass)
+        || AclRole.class.isAssignableFrom(entityClass) || PermissionLink.class.isAssignableFrom(entityClass);
+  }
+
+  private DecisionKey createKey(Class<?> entityClass, Object id, String permission) {
+    AclUserDetails userDetails = AclUserDetailsService.getAclUserDetails();
+    if (userDetails == null) {
+      return new DecisionKey(null, Collections.emptySet(), entityClass, id, permission);
+    }
+    Set<String> authorities = new HashSet<>();
+    for (GrantedAuthority authority : userDetails.getAuthorities()) {
+      authorities.add(authority.getAuthority());
+    }
+    return new DecisionKey(userDetails.getUserId(), authorities, entityClass, id, permission);
+  }
+
+  private boolean isSharedCacheEnabled() {
+    return sharedCache != null && sharedCache.isEnabled();
+  }
+
+  /**
+   * Returns the decisions of the current request or transaction (or null if there is no scope)
+   */
+  @SuppressWarnings("unchecked")
+  private Map<DecisionKey, Boolean> getDecisions(boolean create) {
+    if (!isEnabled()) {
+      return null;
+    }
+    RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+    if (requestAttributes != null) {
+      Map<DecisionKey, Boolean> decisions = (Map<DecisionKey, Boolean>) requestAttributes
+          .getAttribute(REQUEST_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+      if (decisions == null && create) {
+        decisions = new HashMap<>();
+        requestAttributes.setAttribute(REQUEST_ATTRIBUTE, decisions, RequestAttributes.SCOPE_REQUEST);
+      }
+      return decisions;
+    }
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      return null;
+    }
+    Map<DecisionKey, Boolean> decisions = (Map<DecisionKey, Boolean>) TransactionSynchronizationManager
+        .getResource(this);
+    if (decisions == null && create) {
+      decisions = new HashMap<>();
+      TransactionSynchronizationManager.bindResource(this, decisions);
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+        @Override
+        public void afterCompletion(int status) {
+          TransactionSynchronizationManager.unbindResourceIfPossible(AclDecisionCache.this);
+        }
+      });
+    }
+    return decisions;
+  }
+
+  /**
+   * The key of a decision: the user (with its authorities, as the role-based rules depend on them), the entity and
+   * the permission
+   */
+  static final class DecisionKey {
+
+    private final Object userId;
+    private final Set<String> authorities;
+    private final Class<?> entityClass;
+    private final Object id;
+    private final String permission;
+    private final int hashCode;
+
+    DecisionKey(Object userId, Set<String> authorities, Class<?> entityClass, Object id, String permission) {
+      this.userId = userId;
+      this.authorities = authorities;
+      this.entityClass = entityClass;
+      this.id = id;
+      this.permission = permission;
+      this.hashCode = Objects.hash(userId, authorities, entityClass, id, permission);
+    }
+
+    Object getUserId() {
+      return userId;
+    }
+
+    Class<?> getEntityClass() {
+      return entityClass;
+    }
+
+    Object getId() {
+      return id;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof DecisionKey)) {
+        return false;
+      }
+      DecisionKey other = (DecisionKey) obj;
+      return Objects.equals(userId, other.userId) && authorities.equals(other.authorities)
+          && entityClass.equals(other.entityClass) && Objects.equals(id, other.id)
+          && permission.equals(other.permission);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl;
+
+import static com.berrycloud.acl.AclConstants.UPDATE_PERMISSION;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
+import javax.persistence.PersistenceException;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.ParameterExpression;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.SingularAttribute;
+
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.Status;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.AutoFlushEvent;
+import org.hibernate.event.spi.AutoFlushEventListener;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.FlushEntityEvent;
+import org.hibernate.event.spi.FlushEntityEventListener;
+import org.hibernate.event.spi.FlushEvent;
+import org.hibernate.event.spi.FlushEventListener;
+import org.hibernate.event.spi.PreUpdateEvent;
+import org.hibernate.event.spi.PreUpdateEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.jpa.repository.support.AclUpdatePermissionException;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.berrycloud.acl.data.AclEntityMetaData;
+import com.berrycloud.acl.data.AclMetaData;
+
+/**
+ * Verifies the UPDATE permission of the modified ACL entities at flush time.
+ * <p>
+ * When it's enabled the dirty entities are collected by a Hibernate flush-entity listener and the UPDATE permission of
+ * all of them is checked by one id-set query per entity type right before the first update statement of the flush. If
+ * any of them is not permitted the flush fails with {@link AclUpdatePermissionException} (and the transaction is
+ * marked for rollback). It covers the changes of the managed entities too, which are not checked by the repositories
+ * at all, and the repositories skip their eager update-permission check.
+ * <p>
+ * The collected entities are dropped at the end of every flush, even if the flush fails before the first update
+ * statement. Entities saved by {@code saveWithoutPermissionCheck} are exempted until the end of the current
+ * transaction. Verification works with Hibernate only.
+ *
+ * @author István Rátkai (Selindek)
+ */
+public class AclFlushVerifier implements FlushEntityEventListener, PreUpdateEventListener {
+
+  private static final long serialVersionUID = -2706390843618009453L;
+
+  private static Logger LOG = LoggerFactory.getLogger(AclFlushVerifier.class);
+
+  private static final String IDS_PARAMETER = "ids";
+
+  /**
+   * Dirty entities of the current flush by their types
+   */
+  private final transient ThreadLocal<Map<Class<?>, Set<Object>>> dirtyEntities = ThreadLocal
+      .withInitial(LinkedHashMap::new);
+
+  @Autowired
+  private transient EntityManagerFactory entityManagerFactory;
+
+  @Autowired
+  private transient AclMetaData aclMetaData;
+
+  @Autowired
+  private transient AclSpecification aclSpecification;
+
+  @Value("${spring.data.jpa.acl.verify-on-flush:false}")
+  private boolean enabled;
+
+  private boolean registered;
+
+  @PostConstruct
+  public void registerListeners() {
+    EventListenerRegistry registry;
+    try {
+      registry = entityManagerFactory.unwrap(SessionFactoryImplementor.class).getServiceRegistry()
+          .getService(EventListenerRegistry.class);
+    } catch (PersistenceException e) {
+      LOG.info("Flush-time ACL verification is not available without Hibernate.");
+      return;
+    }
+    registry.appendListeners(EventType.FLUSH_ENTITY, this);
+    registry.appendListeners(EventType.PRE_UPDATE, this);
+    List<FlushEventListener> flushListeners = new ArrayList<>();
+    registry.getEventListenerGroup(EventType.FLUSH).listeners().forEach(flushListeners::add);
+    List<AutoFlushEventListener> autoFlushListeners = new ArrayList<>();
+    registry.getEventListenerGroup(EventType.AUTO_FLUSH).listeners().forEach(autoFlushListeners::add);
+    FlushCompletionListener completionListener = new FlushCompletionListener(flushListeners, autoFlushListeners);
+    registry.setListeners(EventType.FLUSH, completionListener);
+    registry.setListeners(EventType.AUTO_FLUSH, completionListener);
+    registered = true;
+  }
+
+  /**
+   * Returns true if the UPDATE permission is verified at flush time instead of the eager check of the repositories.
+   */
+  public boolean isEnabled() {
+    return enabled && registered;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Exempts the given (managed) entity from the verification until the end of the current transaction.
+   */
+  public void exempt(Object entity) {
+    if (!isEnabled() || !TransactionSynchronizationManager.isSynchronizationActive()) {
+      return;
+    }
+    getExemptEntities(true).add(entity);
+  }
+
+  @Override
+  public void onFlushEntity(FlushEntityEvent event) {
+    if (!isEnabled()) {
+      return;
+    }
+    EntityEntry entry = event.getEntityEntry();
+    int[] dirtyProperties = event.getDirtyProperties();
+    if (entry.getStatus() != Status.MANAGED || dirtyProperties == null || dirtyProperties.length == 0) {
+      return;
+    }
+    Class<?> entityClass = entry.getPersister().getMappedClass();
+    if (aclMetaData.getAclEntityMetaData(entityClass) == null || isExempt(event.getEntity())) {
+      return;
+    }
+    dirtyEntities.get().computeIfAbsent(entityClass, type -> new LinkedHashSet<>()).add(entry.getId());
+  }
+
+  @Override
+  public boolean onPreUpdate(PreUpdateEvent event) {
+    Map<Class<?>, Set<Object>> dirtyMap = dirtyEntities.get();
+    if (dirtyMap.isEmpty()) {
+      return false;
+    }
+    try {
+      for (Entry<Class<?>, Set<Object>> entry : dirtyMap.entrySet()) {
+        verify(event.getSession(), entry.getKey(), entry.getValue());
+      }
+    } finally {
+      dirtyEntities.remove();
+    }
+    return false;
+  }
+
+  /**
+   * Checks the UPDATE permission of the entities with the given ids by one query.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private void verify(EntityManager em, Class<?> entityClass, Set<Object> ids) {
+    AclEntityMetaData metaData = aclMetaData.getAclEntityMetaData(entityClass);
+    SingularAttribute idAttribute = metaData.getIdAttribute();
+
+    CriteriaBuilder cb = em.getCriteriaBuilder();
+    CriteriaQuery<Object> query = cb.createQuery(idAttribute.getJavaType());
+    Root<?> root = query.from(entityClass);
+    Path<Object> idPath = root.get(idAttribute);
+    Predicate predicate = idPath.in(cb.parameter(Set.class, IDS_PARAMETER));
+    ParameterExpression<Object> userId = aclSpecification.createUserIdParameter(cb);
+    query.select(idPath)
+        .where(cb.and(predicate, aclSpecification.toPredicate(root, query, cb, UPDATE_PERMISSION, userId)));
+
+    // We are inside of the flush: the query must not trigger another one
+    List<Object> permittedIds = aclSpecification.bindUserId(em.createQuery(query)).setParameter(IDS_PARAMETER, ids)
+        .setFlushMode(FlushModeType.COMMIT).getResultList();
+    LOG.trace("{} of {} modified {} entities are permitted", permittedIds.size(), ids.size(), entityClass);
+
+    if (permittedIds.size() < ids.size()) {
+      Set<Object> forbiddenIds = new HashSet<>(ids);
+      forbiddenIds.removeAll(permittedIds);
+      throw new AclUpdatePermissionException("Cannot update " + entityClass.getName() + " with id " + forbiddenIds);
+    }
+  }
+
+  private boolean isExempt(Object entity) {
+    Set<Object> exemptEntities = getExemptEntities(false);
+    return exemptEntities != null && exemptEntities.contains(entity);
+  }
+
+  /**
+   * Returns the transaction-scoped set of the exempt entities.
+   */
+  @SuppressWarnings("unchecked")
+  private Set<Object> getExemptEntities(boolean create) {
+    Set<Object> exemptEntities = (Set<Object>) TransactionSynchronizationManager.getResource(this);
+    if (exemptEntities == null && create) {
+      exemptEntities = Collections.newSetFromMap(new IdentityHashMap<>());
+      TransactionSynchronizationManager.bindResource(this, exemptEntities);
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+        @Override
+        public void afterCompletion(int status) {
+          TransactionSynchronizationManager.unbindResourceIfPossible(AclFlushVerifier.this);
+        }
+      });
+    }
+    return exemptEntities;
+  }
+
+  /**
+   * Runs the original flush listeners and drops the collected dirty entities at the end of the flush, so a failed flush
+   * cannot leave them to the next flush of the (pooled) thread
+   */
+  private class FlushCompletionListener implements FlushEventListener, AutoFlushEventListener {
+
+    private static final long serialVersionUID = 5307361287013585207L;
+
+    private final transient List<FlushEventListener> flushListeners;
+    private final transient List<AutoFlushEventListener> autoFlushListeners;
+
+    FlushCompletionListener(List<FlushEventListener> flushListeners,
+        List<AutoFlushEventListener> autoFlushListeners) {
+      this.flushListeners = flushListeners;
+      this.autoFlushListeners = autoFlushListeners;
+    }
+
+    @Override
+    public void onFlush(FlushEvent event) {
+      try {
+        for (FlushEventListener listener : flushListeners) {
+          listener.onFlush(event);
+        }
+      } finally {
+        dirtyEntities.remove();
+      }
+    }
+
+    @Override
+    public void onAutoFlush(AutoFlushEvent event) {
+      try {
+        for (AutoFlushEventListener listener : autoFlushListeners) {
+          listener.onAutoFlush(event);
+        }
+      } finally {
+        dirtyEntities.remove();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl;
+
+import static com.berrycloud.acl.AclConstants.ALL_PERMISSION;
+import static com.berrycloud.acl.AclConstants.PERMISSION_PREFIX_DELIMITER;
+import static com.berrycloud.acl.AclConstants.READ_PERMISSION;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.metamodel.EntityType;
+
+import org.hibernate.Hibernate;
+import org.hibernate.proxy.HibernateProxy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.util.ReflectionUtils;
+
+import com.berrycloud.acl.AclSpecification.Outcome;
+import com.berrycloud.acl.data.AclEntityMetaData;
+import com.berrycloud.acl.data.AclMetaData;
+import com.berrycloud.acl.data.OwnerData;
+import com.berrycloud.acl.data.ParentData;
+import com.berrycloud.acl.data.PermissionLinkData;
+import com.berrycloud.acl.domain.AclUser;
+import com.berrycloud.acl.security.AclUserDetails;
+import com.berrycloud.acl.security.AclUserDetailsService;
+
+/**
+ * Evaluates the ACL rules of the entities in memory, over their already loaded object graph, without touching the
+ * database. The rules of an entity type and permission are compiled once from the {@link AclMetaData} and they follow
+ * the same logic as the predicates of {@link AclUserPermissionSpecification}.
+ * <p>
+ * The evaluator never initializes a lazy association: if a rule needs an uninitialized association (and no other rule
+ * grants the permission) the decision is {@link Decision#UNKNOWN}, so the caller can fall back to a database check.
+ * References to the owner users are compared by their ids, so they are not needed to be initialized.
+ * <p>
+ * The in-memory state can differ from the stored one, so it must not be used for checking the permission of an
+ * update. Evaluation needs Hibernate.
+ *
+ * @author István Rátkai (Selindek)
+ */
+public class AclInMemoryEvaluator {
+
+  private static Logger LOG = LoggerFactory.getLogger(AclInMemoryEvaluator.class);
+
+  /**
+   * The result of an in-memory evaluation
+   */
+  public enum Decision {
+    GRANTED, DENIED,
+    /**
+     * The decision depends on an association what is not loaded
+     */
+    UNKNOWN;
+
+    Decision or(Decision other) {
+      if (this == GRANTED || other == GRANTED) {
+        return GRANTED;
+      }
+      return this == UNKNOWN || other == UNKNOWN ? UNKNOWN : DENIED;
+    }
+
+    static Decision of(boolean granted) {
+      return granted ? GRANTED : DENIED;
+    }
+  }
+
+  /**
+   * A compiled ACL rule of an entity type
+   */
+  @FunctionalInterface
+  private interface Rule {
+    Decision evaluate(Object entity, Object userId);
+  }
+
+  @Autowired
+  private AclMetaData aclMetaData;
+
+  @Autowired
+  private AclSpecification aclSpecification;
+
+  @PersistenceUnit
+  private EntityManagerFactory emf;
+
+  @Value("${spring.data.jpa.acl.max-depth:2}")
+  private int maxDepth = 2;
+
+  @Value("${spring.data.jpa.acl.in-memory.parallel-threshold:1000}")
+  private int parallelThreshold = 1000;
+
+  private PersistenceUnitUtil persistenceUnitUtil;
+
+  private final Map<List<Object>, Rule> rules = new ConcurrentHashMap<>();
+  private final Map<List<Object>, Function<Object, Object>> accessors = new ConcurrentHashMap<>();
+
+  @PostConstruct
+  public void init() {
+    persistenceUnitUtil = emf.getPersistenceUnitUtil();
+  }
+
+  /**
+   * Evaluates the given permission of the current user to the given entity.
+   */
+  public Decision evaluate(Object entity, String permission) {
+    if (entity == null) {
+      return Decision.DENIED;
+    }
+    AclUserDetails userDetails = AclUserDetailsService.getAclUserDetails();
+    return evaluate(entity, permission, new HashMap<>(), userDetails == null ? null : userDetails.getUserId());
+  }
+
+  /**
+   * Evaluates the given permission of the current user to all the given entities and groups them by the decisions. The
+   * order of the entities is kept in the groups. Large collections are evaluated in parallel by the common fork/join
+   * pool.
+   */
+  public <T> Map<Decision, List<T>> partition(Collection<T> entities, String permission) {
+    AclUserDetails userDetails = AclUserDetailsService.getAclUserDetails();
+    Object userId = userDetails == null ? null : userDetails.getUserId();
+
+    // The outcomes depend on the authorities of the current user, so they must be resolved in the calling thread
+    Map<Class<?>, Outcome> outcomes = new HashMap<>();
+    for (T entity : entities) {
+      if (entity != null && isLoaded(entity)) {
+        Class<?> type = unproxy(entity).getClass();
+        if (!outcomes.containsKey(type)) {
+          outcomes.put(type, getOutcome(type, permission));
+        }
+      }
+    }
+
+    Stream<T> stream = entities.size() >= parallelThreshold ? entities.parallelStream() : entities.stream();
+    Map<Decision, List<T>> result = stream.collect(
+        Collectors.groupingBy(entity -> evaluate(entity, permission, outcomes, userId),
+            () -> new EnumMap<>(Decision.class), Collectors.toList()));
+    for (Decision decision : Decision.values()) {
+      result.putIfAbsent(decision, Collections.emptyList());
+    }
+    return result;
+  }
+
+  public void setParallelThreshold(int parallelThreshold) {
+    this.parallelThreshold = parallelThreshold;
+  }
+
+  private Decision evaluate(Object entity, String permission, Map<Class<?>, Outcome> outcomes, Object userId) {
+    if (entity == null) {
+      return Decision.DENIED;
+    }
+    if (!isLoaded(entity)) {
+      return Decision.UNKNOWN;
+    }
+    Object target = unproxy(entity);
+    Class<?> type = target.getClass();
+    Outcome outcome = outcomes.containsKey(type) ? outcomes.get(type) : getOutcome(type, permission);
+    if (outcome == null) {
+      return Decision.UNKNOWN;
+    }
+    switch (outcome) {
+    case GRANTED:
+      return Decision.GRANTED;
+    case DENIED:
+      return Decision.DENIED;
+    default:
+      return getRule(type, permission, maxDepth).evaluate(target, userId);
+    }
+  }
+
+  /**
+   * Returns the outcome of the role-based rules or null if the type is not an ACL entity
+   */
+  private Outcome getOutcome(Class<?> type, String permission) {
+    return aclMetaData.getAclEntityMetaData(type) == null ? null : aclSpecification.getOutcome(type, permission);
+  }
+
+  private Rule getRule(Class<?> type, String permission, int depth) {
+    List<Object> key = Arrays.asList(type, permission, depth);
+    Rule rule = rules.get(key);
+    if (rule == null) {
+      rule = compile(type, permission, depth);
+      rules.putIfAbsent(key, rule);
+    }
+    return rule;
+  }
+
+  /**
+   * Compiles the rules of the given type the same way as {@link AclUserPermissionSpecification} creates its predicates
+   */
+  private Rule compile(Class<?> type, String permission, int depth) {
+    LOG.trace("Compiling in-memory rules of {} for '{}' permission", type, permission);
+    AclEntityMetaData metaData = aclMetaData.getAclEntityMetaData(type);
+    if (metaData == null) {
+      return (entity, userId) -> Decision.UNKNOWN;
+    }
+
+    List<Rule> branches = new ArrayList<>();
+    if (AclUser.class.isAssignableFrom(type) && aclMetaData.getSelfPermissions().hasPermission(permission)) {
+      branches.add((entity, userId) -> Decision.of(Objects.equals(persistenceUnitUtil.getIdentifier(entity), userId)));
+    }
+    branches.addAll(compileOwnerRules(type, metaData, permission, false));
+    branches.addAll(compileOwnerGroupRules(type, metaData, permission));
+
+    for (PermissionLinkData linkData : metaData.getPermissionLinkList()) {
+      Function<Object, Object> accessor = getAccessor(type, linkData.getPropertyName());
+      branches.add((entity, userId) -> any(accessor.apply(entity),
+          link -> evaluatePermissionLink(link, linkData.getPermissionField(), permission, userId)));
+    }
+
+    if (depth > 0) {
+      for (ParentData parentData : metaData.getParentDataList()) {
+        if (parentData.hasPermission(permission)) {
+          String prefix = parentData.getPermissionPrefix();
+          String parentPermission = prefix.isEmpty() ? permission : prefix + PERMISSION_PREFIX_DELIMITER + permission;
+          Function<Object, Object> accessor = getAccessor(type, parentData.getPropertyName());
+          branches.add((entity, userId) -> any(accessor.apply(entity), parent -> isLoaded(parent)
+              ? getRule(unproxy(parent).getClass(), parentPermission, depth - 1).evaluate(unproxy(parent), userId)
+              : Decision.UNKNOWN));
+        }
+      }
+    }
+
+    return (entity, userId) -> {
+      Decision decision = Decision.DENIED;
+      for (Rule branch : branches) {
+        decision = decision.or(branch.evaluate(entity, userId));
+        if (decision == Decision.GRANTED) {
+          break;
+        }
+      }
+      return decision;
+    };
+  }
+
+  private List<Rule> compileOwnerRules(Class<?> type, AclEntityMetaData metaData, String permission,
+      boolean ownerGroup) {
+    List<Rule> ownerRules = new ArrayList<>();
+    for (OwnerData ownerData : metaData.getOwnerDataList()) {
+      if (ownerGroup || ownerData.hasPermission(permission)) {
+        Function<Object, Object> accessor = getAccessor(type, ownerData.getPropertyName());
+        ownerRules.add((entity, userId) -> any(accessor.apply(entity),
+            owner -> Decision.of(Objects.equals(persistenceUnitUtil.getIdentifier(owner), userId))));
+      }
+    }
+    return ownerRules;
+  }
+
+  private List<Rule> compileOwnerGroupRules(Class<?> type, AclEntityMetaData metaData, String permission) {
+    List<Rule> ownerGroupRules = new ArrayList<>();
+    for (OwnerData ownerGroupData : metaData.getOwnerGroupDataList()) {
+      if (ownerGroupData.hasPermission(permission)) {
+        Function<Object, Object> accessor = getAccessor(type, ownerGroupData.getPropertyName());
+        ownerGroupRules.add((entity, userId) -> any(accessor.apply(entity),
+            group -> evaluateOwners(group, permission, true, userId)));
+      }
+    }
+    return ownerGroupRules;
+  }
+
+  /**
+   * Evaluates the owner rules of a related entity (an owner group or a permission link)
+   */
+  private Decision evaluateOwners(Object entity, String permission, boolean ownerGroup, Object userId) {
+    if (!isLoaded(entity)) {
+      return Decision.UNKNOWN;
+    }
+    Object target = unproxy(entity);
+    AclEntityMetaData metaData = aclMetaData.getAclEntityMetaData(target.getClass());
+    if (metaData == null) {
+      return Decision.UNKNOWN;
+    }
+    List<Rule> ownerRules = compileOwnerRules(target.getClass(), metaData, permission, ownerGroup);
+    if (!ownerGroup) {
+      ownerRules.addAll(compileOwnerGroupRules(target.getClass(), metaData, permission));
+    }
+    Decision decision = Decision.DENIED;
+    for (Rule rule : ownerRules) {
+      decision = decision.or(rule.evaluate(target, userId));
+      if (decision == Decision.GRANTED) {
+        break;
+      }
+    }
+    return decision;
+  }
+
+  private Decision evaluatePermissionLink(Object link, String permissionField, String permission, Object userId) {
+    if (!isLoaded(link)) {
+      return Decision.UNKNOWN;
+    }
+    Object target = unproxy(link);
+    Object value = getAccessor(target.getClass(), permissionField).apply(target);
+    if (!(value instanceof String) || !matchesPermission((String) value, permission)) {
+      return Decision.DENIED;
+    }
+    return evaluateOwners(target, permission, false, userId);
+  }
+
+  /**
+   * Evaluates the given function on the value of an association. A collection is evaluated element by element (it must
+   * be initialized).
+   */
+  private Decision any(Object value, Function<Object, Decision> function) {
+    if (value == null) {
+      return Decision.DENIED;
+    }
+    if (value instanceof Collection) {
+      if (!isLoaded(value)) {
+        return Decision.UNKNOWN;
+      }
+      Decision decision = Decision.DENIED;
+      for (Object element : (Collection<?>) value) {
+        decision = decision.or(element == null ? Decision.DENIED : function.apply(element));
+        if (decision == Decision.GRANTED) {
+          break;
+        }
+      }
+      return decision;
+    }
+    return function.apply(value);
+  }
+
+  /**
+   * Checks the value of the permission field of a permission link the same way as the ON predicate of the
+   * permission-link joins does.
+   */
+  static boolean matchesPermission(String value, String permission) {
+    int index = permission.lastIndexOf(PERMISSION_PREFIX_DELIMITER) + 1;
+    return matchesPermission(value, permission.substring(index), permission.substring(0, index));
+  }
+
+  private static boolean matchesPermission(String value, String permission, String prefixes) {
+    if (prefixes.isEmpty()) {
+      if (permission.equals(READ_PERMISSION)) {
+        return value.indexOf(PERMISSION_PREFIX_DELIMITER) < 0;
+      }
+      return value.equals(ALL_PERMISSION) || value.equals(permission);
+    }
+    if (permission.equals(READ_PERMISSION) ? value.startsWith(prefixes)
+        : value.equals(prefixes + ALL_PERMISSION) || value.equals(prefixes + permission)) {
+      return true;
+    }
+    int index = prefixes.lastIndexOf(PERMISSION_PREFIX_DELIMITER, prefixes.length() - 2) + 1;
+    return matchesPermission(value, permission, prefixes.substring(0, index));
+  }
+
+  private boolean isLoaded(Object object) {
+    return persistenceUnitUtil.isLoaded(object);
+  }
+
+  private static Object unproxy(Object entity) {
+    return entity instanceof HibernateProxy ? Hibernate.unproxy(entity) : entity;
+  }
+
+  /**
+   * Returns the accessor of an attribute of an entity type. The attribute is read by its field or getter (as it's
+   * mapped) without initializing anything.
+   */
+  private Function<Object, Object> getAccessor(Class<?> type, String attributeName) {
+    List<Object> key = Arrays.asList(type, attributeName);
+    Function<Object, Object> accessor = accessors.get(key);
+    if (accessor == null) {
+      EntityType<?> entityType = emf.getMetamodel().entity(type);
+      Member member = entityType.getAttribute(attributeName).getJavaMember();
+      if (member instanceof Field) {
+        Field field = (Field) member;
+        ReflectionUtils.makeAccessible(field);
+        accessor = entity -> ReflectionUtils.getField(field, entity);
+      } else {
+        Method method = (Method) member;
+        ReflectionUtils.makeAccessible(method);
+        accessor = entity -> ReflectionUtils.invokeMethod(method, entity);
+      }
+      accessors.putIfAbsent(key, accessor);
+    }
+    return accessor;
+  }
+
+}
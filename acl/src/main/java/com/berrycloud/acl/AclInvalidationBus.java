@@ -0,0 +1,311 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.convert.support.DefaultConversionService;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.StringUtils;
+
+import com.berrycloud.acl.domain.AclInvalidationEvent;
+import com.berrycloud.acl.domain.AclInvalidationEvent.Kind;
+
+/**
+ * Cluster-wide invalidation of the shared ACL caches without a message broker.
+ * <p>
+ * The evictions of the {@link AclSharedDecisionCache} and the {@link AclSharedResultCache} are appended to an outbox
+ * table ({@link AclInvalidationEvent}) in the same transaction as the writes causing them, so they are visible to the other nodes exactly when the changes are.
+ * Every node polls the table with the configured interval and batch size and applies the events of the other nodes to
+ * its own caches. The events are removed after the retention period.
+ * <p>
+ * The ids of the events are assigned by the database in insertion order, but the transactions are not necessarily
+ * committed in the same order. The missing ids (gaps) are therefore polled again (in chunks of
+ * {@code spring.data.jpa.acl.id-chunk-size} ids) until they show up or the gap timeout is reached (e.g. the inserting
+ * transaction was rolled back). The gap timeout should not be shorter than the longest
+ * transaction writing ACL-relevant data. (A lost event is still corrected by the time-to-live of the cached decisions.)
+ * <p>
+ * The bus is enabled by the {@code spring.data.jpa.acl.invalidation-bus.enabled} property. It works with Hibernate only.
+ *
+ * @author István Rátkai (Selindek)
+ */
+public class AclInvalidationBus {
+
+  private static Logger LOG = LoggerFactory.getLogger(AclInvalidationBus.class);
+
+  private static final String SELECT_NEW_EVENTS = "select e from AclInvalidationEvent e where e.id > :lastId "
+      + "order by e.id";
+  private static final String SELECT_EVENTS = "select e from AclInvalidationEvent e where e.id in :ids";
+  private static final String SELECT_LAST_ID = "select max(e.id) from AclInvalidationEvent e";
+  private static final String DELETE_EVENTS = "delete from AclInvalidationEvent e where e.created < :created";
+
+  /**
+   * Maximum number of the missing ids waiting for their events
+   */
+  private static final int MAX_GAPS = 10000;
+
+  @PersistenceContext
+  private EntityManager em;
+
+  @Autowired
+  private EntityManagerFactory entityManagerFactory;
+
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  @Autowired(required = false)
+  private AclSharedDecisionCache sharedCache;
+
+  @Autowired(required = false)
+  private AclSharedResultCache resultCache;
+
+  /**
+   * The id of this node. The events published by this node are not applied again.
+   */
+  @Value("${spring.data.jpa.acl.invalidation-bus.node-id:}")
+  private String nodeId;
+
+  /**
+   * Delay between the polls. Zero means no scheduled polling (the {@link #poll()} method must be called explicitly).
+   */
+  @Value("${spring.data.jpa.acl.invalidation-bus.poll-interval:1s}")
+  private Duration pollInterval = Duration.ofSeconds(1);
+
+  /**
+   * Maximum number of the new events read by one poll
+   */
+  @Value("${spring.data.jpa.acl.invalidation-bus.batch-size:100}")
+  private int batchSize = 100;
+
+  /**
+   * The events are deleted after this period
+   */
+  @Value("${spring.data.jpa.acl.invalidation-bus.retention:1h}")
+  private Duration retention = Duration.ofHours(1);
+
+  /**
+   * The missing ids are polled again for this period
+   */
+  @Value("${spring.data.jpa.acl.invalidation-bus.gap-timeout:60s}")
+  private Duration gapTimeout = Duration.ofSeconds(60);
+
+  /**
+   * Maximum number of the missing ids polled by one query
+   */
+  @Value("${spring.data.jpa.acl.id-chunk-size:1000}")
+  private int idChunkSize = 1000;
+
+  private TransactionTemplate transactionTemplate;
+
+  private ScheduledExecutorService scheduler;
+
+  private long lastId;
+
+  private long lastCleanup;
+
+  /**
+   * The missing ids and the time (nanoTime) they were detected
+   */
+  private final Map<Long, Long> gaps = new LinkedHashMap<>();
+
+  private final LongAdder published = new LongAdder();
+  private final LongAdder applied = new LongAdder();
+
+  @PostConstruct
+  public void start() {
+    if (!StringUtils.hasText(nodeId)) {
+      nodeId = UUID.randomUUID().toString();
+    }
+    transactionTemplate = new TransactionTemplate(transactionManager);
+    // The caches are empty at startup, so the earlier events are not relevant
+    Long maxId = transactionTemplate.execute(status -> em.createQuery(SELECT_LAST_ID, Long.class).getSingleResult());
+    lastId = maxId == null ? 0 : maxId;
+    lastCleanup = System.currentTimeMillis();
+
+    if (!pollInterval.isZero() && !pollInterval.isNegative()) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "acl-invalidation-bus");
+        thread.setDaemon(true);
+        return thread;
+      });
+      scheduler.scheduleWithFixedDelay(this::pollSafely, pollInterval.toMillis(), pollInterval.toMillis(),
+          TimeUnit.MILLISECONDS);
+    }
+    LOG.info("ACL invalidation bus started on node {} after event {}", nodeId, lastId);
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Appends the given events to the outbox in the current transaction (or in a new one if there is no transaction)
+   */
+  public void publish(Collection<AclInvalidationEvent> events) {
+    transactionTemplate.execute(status -> {
+      publish(em.unwrap(SharedSessionContractImplementor.class), events);
+      return null;
+    });
+  }
+
+  /**
+   * Appends the given events to the outbox using the connection of the given session. It's safe to be called during the
+   * flush of the session: the events are inserted by a stateless session, so no other listeners are triggered.
+   */
+  public void publish(SharedSessionContractImplementor session, Collection<AclInvalidationEvent> events) {
+    long created = System.currentTimeMillis();
+    StatelessSession statelessSession = session.getFactory().openStatelessSession(session.connection());
+    try {
+      for (AclInvalidationEvent event : events) {
+        event.setOrigin(nodeId);
+        event.setCreated(created);
+        statelessSession.insert(event);
+      }
+    } finally {
+      statelessSession.close();
+    }
+    published.add(events.size());
+  }
+
+  /**
+   * Reads the new events (and the missing ones) from the outbox and applies the ones published by the other nodes
+   *
+   * @return the number of the applied events
+   */
+  public synchronized int poll() {
+    List<AclInvalidationEvent> events = transactionTemplate.execute(status -> fetchEvents());
+    int count = 0;
+    for (AclInvalidationEvent event : events) {
+      if (!nodeId.equals(event.getOrigin()) && apply(event)) {
+        count++;
+      }
+    }
+    applied.add(count);
+    if (count > 0) {
+      LOG.debug("Applied {} ACL invalidation events", count);
+    }
+    return count;
+  }
+
+  public long getPublishedCount() {
+    return published.sum();
+  }
+
+  public long getAppliedCount() {
+    return applied.sum();
+  }
+
+  private void pollSafely() {
+    try {
+      poll();
+    } catch (RuntimeException e) {
+      LOG.warn("Cannot poll ACL invalidation events", e);
+    }
+  }
+
+  private List<AclInvalidationEvent> fetchEvents() {
+    List<AclInvalidationEvent> events = new ArrayList<>();
+    long now = System.nanoTime();
+    gaps.values().removeIf(detected -> now - detected > gapTimeout.toNanos());
+    if (!gaps.isEmpty()) {
+      // The missing ids are polled in chunks, so the number of the parameters remains below the limits of the databases
+      List<Long> gapIds = new ArrayList<>(gaps.keySet());
+      for (int from = 0; from < gapIds.size(); from += idChunkSize) {
+        events.addAll(em.createQuery(SELECT_EVENTS, AclInvalidationEvent.class)
+            .setParameter("ids", gapIds.subList(from, Math.min(from + idChunkSize, gapIds.size()))).getResultList());
+      }
+      events.forEach(event -> gaps.remove(event.getId()));
+    }
+
+    List<AclInvalidationEvent> newEvents = em.createQuery(SELECT_NEW_EVENTS, AclInvalidationEvent.class)
+        .setParameter("lastId", lastId).setMaxResults(batchSize).getResultList();
+    for (AclInvalidationEvent event : newEvents) {
+      for (long id = lastId + 1; id < event.getId() && gaps.size() < MAX_GAPS; id++) {
+        gaps.put(id, now);
+      }
+      lastId = event.getId();
+    }
+    events.addAll(newEvents);
+
+    long currentTime = System.currentTimeMillis();
+    if (currentTime - lastCleanup > retention.toMillis() / 10) {
+      int deleted = em.createQuery(DELETE_EVENTS).setParameter("created", currentTime - retention.toMillis())
+          .executeUpdate();
+      LOG.trace("Deleted {} old ACL invalidation events", deleted);
+      lastCleanup = currentTime;
+    }
+    return events;
+  }
+
+  private boolean apply(AclInvalidationEvent event) {
+    boolean resultEvent = event.getKind() == Kind.RESULTS || event.getKind() == Kind.PROFILES;
+    if (resultEvent ? resultCache == null : sharedCache == null) {
+      return false;
+    }
+    Class<?> entityClass;
+    try {
+      entityClass = ClassUtils.forName(event.getEntityType(), getClass().getClassLoader());
+    } catch (ClassNotFoundException | LinkageError e) {
+      LOG.warn("Unknown entity type of ACL invalidation event: {}", event);
+      return false;
+    }
+    if (resultEvent) {
+      resultCache.evict(event.getKind(), entityClass);
+      return true;
+    }
+    Object id = event.getEntityId() == null ? null : convertId(entityClass, event.getEntityId());
+    sharedCache.evict(event.getKind(), entityClass, id);
+    return true;
+  }
+
+  private Object convertId(Class<?> entityClass, String id) {
+    Class<?> idType = entityManagerFactory.getMetamodel().entity(entityClass).getIdType().getJavaType();
+    return DefaultConversionService.getSharedInstance().convert(id, idType);
+  }
+
+}
@@ -23,13 +23,15 @@ import org.slf4j.LoggerFactory;
 import org.springframework.orm.jpa.persistenceunit.MutablePersistenceUnitInfo;
 import org.springframework.orm.jpa.persistenceunit.PersistenceUnitPostProcessor;
 
+import com.berrycloud.acl.domain.AclInvalidationEvent;
 import com.berrycloud.acl.domain.AclRole;
 import com.berrycloud.acl.domain.AclUser;
 import com.berrycloud.acl.domain.SimpleAclRole;
 import com.berrycloud.acl.domain.SimpleAclUser;
 
 /**
- * PostProcessor for adding missing {@link AclUser} and {@link AclRole} domain classes to the Persistence MAnager.
+ * PostProcessor for adding missing {@link AclUser} and {@link AclRole} domain classes to the Persistence MAnager. The
+ * {@link AclInvalidationEvent} is added if the {@link AclInvalidationBus} is enabled.
  *
  * @author István Rátkai (Selindek)
  */
@@ -37,6 +39,16 @@ public class AclPersistenceUnitPostProcessor implements PersistenceUnitPostProce
 
     private static Logger LOG = LoggerFactory.getLogger(AclPersistenceUnitPostProcessor.class);
 
+    private final boolean invalidationEvents;
+
+    public AclPersistenceUnitPostProcessor() {
+        this(false);
+    }
+
+    public AclPersistenceUnitPostProcessor(boolean invalidationEvents) {
+        this.invalidationEvents = invalidationEvents;
+    }
+
     @Override
     public void postProcessPersistenceUnitInfo(MutablePersistenceUnitInfo pui) {
         List<Class<?>> entityClasses = createClasses(pui);
@@ -49,6 +61,10 @@ public class AclPersistenceUnitPostProcessor implements PersistenceUnitPostProce
             pui.addManagedClassName(SimpleAclRole.class.getName());
             LOG.info("{} was added to managed entities.", SimpleAclRole.class);
         }
+        if (invalidationEvents && missClass(entityClasses, AclInvalidationEvent.class)) {
+            pui.addManagedClassName(AclInvalidationEvent.class.getName());
+            LOG.info("{} was added to managed entities.", AclInvalidationEvent.class);
+        }
     }
 
     private static boolean missClass(List<Class<?>> entityClasses, Class<?> checkClass) {
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.springframework.core.style.ToStringCreator;
+
+/**
+ * The equivalence class of a principal from the ACL's point of view: its role set (the authorities) and its capability
+ * profile (the ACL relations referring to the user, e.g. {@code Document.creator}).
+ * <p>
+ * If the capability profile is empty, none of the user-specific rules ({@code @AclOwner}, {@code @AclSelf} through an
+ * {@code @AclParent}, permission links) can grant anything to the user, so its access depends only on its roles: all
+ * the role-only users with the same authorities see exactly the same entities.
+ *
+ * @author István Rátkai (Selindek)
+ */
+public final class AclPrincipalFingerprint {
+
+  private final Set<String> authorities;
+  private final Set<String> capabilities;
+  private final int hashCode;
+
+  public AclPrincipalFingerprint(Set<String> authorities, Set<String> capabilities) {
+    this.authorities = Collections.unmodifiableSet(new TreeSet<>(authorities));
+    this.capabilities = Collections.unmodifiableSet(new TreeSet<>(capabilities));
+    this.hashCode = 31 * this.authorities.hashCode() + this.capabilities.hashCode();
+  }
+
+  public Set<String> getAuthorities() {
+    return authorities;
+  }
+
+  /**
+   * Returns the ACL relations referring to the user in the form of {@code <entity name>.<property name>}
+   */
+  public Set<String> getCapabilities() {
+    return capabilities;
+  }
+
+  /**
+   * Returns true if the access of the user depends only on its roles
+   */
+  public boolean isRoleOnly() {
+    return capabilities.isEmpty();
+  }
+
+  /**
+   * Returns the fingerprint of the role set only (e.g. for the rules granting permission by roles)
+   */
+  public AclPrincipalFingerprint withoutCapabilities() {
+    return isRoleOnly() ? this : new AclPrincipalFingerprint(authorities, Collections.emptySet());
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof AclPrincipalFingerprint)) {
+      return false;
+    }
+    AclPrincipalFingerprint other = (AclPrincipalFingerprint) obj;
+    return hashCode == other.hashCode && authorities.equals(other.authorities)
+        && capabilities.equals(other.capabilities);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public String toString() {
+    return new ToStringCreator(this).append("authorities", authorities).append("capabilities", capabilities)
+        .toString();
+  }
+
+}
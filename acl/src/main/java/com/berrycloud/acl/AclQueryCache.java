@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Parameter;
+import javax.persistence.TypedQuery;
+
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Cache of the JPQL rendered from the fixed-shape criteria queries of the ACL repositories.
+ * <p>
+ * A query shape is identified by the operation, the entity type, the permission and the {@link AclSpecification.Outcome}
+ * of the ACL check. The criteria query of a shape is built and rendered only once: later executions create the query
+ * from the cached JPQL directly. The user id, the ids and the literals of the ACL predicates (e.g. the permission tokens)
+ * are always bound as parameters, so the JPQL is the same for all the users and the query plan cache of the persistence
+ * provider is hit on every execution. The hit and miss counters show how many renderings (and query plan compilations)
+ * were saved.
+ * <p>
+ * Rendering needs Hibernate.
+ *
+ * @author István Rátkai (Selindek)
+ */
+public class AclQueryCache {
+
+  @Value("${spring.data.jpa.acl.query-cache-size:1024}")
+  private int maxSize = 1024;
+
+  private final Map<Object, RenderedQuery> queries = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Returns the rendered query of the given shape. It's rendered by the given renderer if it's not cached yet.
+   */
+  public RenderedQuery get(Object shape, Supplier<RenderedQuery> renderer) {
+    RenderedQuery query = queries.get(shape);
+    if (query != null) {
+      hits.increment();
+      return query;
+    }
+    misses.increment();
+    query = renderer.get();
+    if (queries.size() < maxSize) {
+      queries.put(shape, query);
+    }
+    return query;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * Returns the ratio of the executions served from the cache (between 0 and 1)
+   */
+  public double getHitRate() {
+    long hitCount = getHitCount();
+    long total = hitCount + getMissCount();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  public int size() {
+    return queries.size();
+  }
+
+  public void clear() {
+    queries.clear();
+    hits.reset();
+    misses.reset();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * The JPQL of a query shape together with the values of its constant (literal) parameters
+   */
+  public static class RenderedQuery {
+
+    private final String jpql;
+    private final Map<String, Object> constants;
+    private final Set<String> variables;
+
+    private RenderedQuery(String jpql, Map<String, Object> constants, Set<String> variables) {
+      this.jpql = jpql;
+      this.constants = constants;
+      this.variables = variables;
+    }
+
+    /**
+     * Renders the given query created from a criteria query. All of its parameters except the given ones are treated
+     * as constants of the shape.
+     */
+    public static RenderedQuery of(TypedQuery<?> query, Collection<String> variables) {
+      org.hibernate.query.Query<?> hibernateQuery = query.unwrap(org.hibernate.query.Query.class);
+      Map<String, Object> constants = new LinkedHashMap<>();
+      Set<String> usedVariables = new HashSet<>();
+      for (Parameter<?> parameter : hibernateQuery.getParameters()) {
+        if (parameter.getName() == null) {
+          continue;
+        }
+        if (variables.contains(parameter.getName())) {
+          usedVariables.add(parameter.getName());
+        } else {
+          constants.put(parameter.getName(), hibernateQuery.getParameterValue(parameter.getName()));
+        }
+      }
+      return new RenderedQuery(hibernateQuery.getQueryString(), constants, usedVariables);
+    }
+
+    /**
+     * Creates a query from the JPQL with the constant parameters bound.
+     */
+    public <R> TypedQuery<R> createQuery(EntityManager em, Class<R> resultClass) {
+      TypedQuery<R> query = em.createQuery(jpql, resultClass);
+      for (Entry<String, Object> constant : constants.entrySet()) {
+        query.setParameter(constant.getKey(), constant.getValue());
+      }
+      return query;
+    }
+
+    /**
+     * Returns true if the given variable parameter is used by the query. (E.g. the ACL predicates of an entity may not
+     * refer to the user id.)
+     */
+    public boolean hasVariable(String name) {
+      return variables.contains(name);
+    }
+
+    public String getJpql() {
+      return jpql;
+    }
+  }
+
+}
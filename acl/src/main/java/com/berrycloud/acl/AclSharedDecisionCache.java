@@ -0,0 +1,775 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl;
+
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Member;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.ManyToMany;
+import javax.persistence.OneToMany;
+import javax.persistence.OneToOne;
+import javax.persistence.PersistenceException;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.PluralAttribute;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.AbstractCollectionEvent;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCollectionRecreateEvent;
+import org.hibernate.event.spi.PostCollectionRecreateEventListener;
+import org.hibernate.event.spi.PostCollectionRemoveEvent;
+import org.hibernate.event.spi.PostCollectionRemoveEventListener;
+import org.hibernate.event.spi.PostCollectionUpdateEvent;
+import org.hibernate.event.spi.PostCollectionUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.berrycloud.acl.AclDecisionCache.DecisionKey;
+import com.berrycloud.acl.annotation.AclRoleProvider;
+import com.berrycloud.acl.data.AclEntityMetaData;
+import com.berrycloud.acl.data.AclMetaData;
+import com.berrycloud.acl.data.OwnerData;
+import com.berrycloud.acl.data.ParentData;
+import com.berrycloud.acl.data.PermissionLinkData;
+import com.berrycloud.acl.domain.AclInvalidationEvent;
+import com.berrycloud.acl.domain.AclInvalidationEvent.Kind;
+import com.berrycloud.acl.domain.AclRole;
+import com.berrycloud.acl.domain.AclUser;
+import com.berrycloud.acl.domain.PermissionLink;
+
+/**
+ * Bounded, cross-request cache of the ACL decisions. It's the second level of the {@link AclDecisionCache}: the
+ * decisions missing from the current request are looked up here, so a hot {@code findById} can be served from a cached
+ * decision and the persistence context (or the second-level cache of Hibernate) without any ACL query. The decisions
+ * are keyed by the user id and the authorities of the user, the entity type, the id and the permission. They expire
+ * after the configured time-to-live and the number of the cached decisions is limited.
+ * <p>
+ * The decisions are evicted precisely by Hibernate listeners when the ACL-relevant state of an entity changes:
+ * <ul>
+ * <li>an {@code @AclOwner} or {@code @AclParent} property of an entity is changed or the entity is deleted: the
+ * decisions of the entity and all the decisions of its descendant types (reached through {@code @AclParent} chains and
+ * owner groups) are evicted,</li>
+ * <li>a property is changed what is the owning side of an ACL property of an other entity type: all the decisions of
+ * that type are evicted,</li>
+ * <li>a {@link PermissionLink} is created or deleted: the decisions of its target entity (and its descendants) are
+ * evicted,</li>
+ * <li>the roles or an {@code @AclRoleProvider} property of a user are changed: all the decisions of the user are
+ * evicted.</li>
+ * </ul>
+ * The bulk statements of the repositories evict the same decisions for all the entities of the written type. The
+ * evictions are repeated at the end of the transaction, so the decisions cached by concurrent requests before the
+ * commit are dropped too. A decision is not cached if any eviction happened while it was evaluated (see
+ * {@link #getGeneration()}), so a decision evaluated before the commit cannot be stored after the eviction. If the {@link AclInvalidationBus} is available the evictions are published to the other nodes
+ * of the cluster as well. The cache is disabled by default. It works with Hibernate only.
+ *
+ * @author István Rátkai (Selindek)
+ */
+public class AclSharedDecisionCache implements PostInsertEventListener, PostUpdateEventListener,
+    PostDeleteEventListener, PostCollectionRecreateEventListener, PostCollectionUpdateEventListener,
+    PostCollectionRemoveEventListener {
+
+  private static final long serialVersionUID = -6028187474926402471L;
+
+  private static Logger LOG = LoggerFactory.getLogger(AclSharedDecisionCache.class);
+
+  private static final String LINK_TARGET_PROPERTY = "target";
+
+  @Autowired
+  private transient EntityManagerFactory entityManagerFactory;
+
+  @Autowired
+  private transient AclMetaData aclMetaData;
+
+  @Autowired(required = false)
+  private transient AclInvalidationBus invalidationBus;
+
+  @Value("${spring.data.jpa.acl.decision-cache.shared.enabled:false}")
+  private boolean enabled;
+
+  @Value("${spring.data.jpa.acl.decision-cache.shared.ttl:60s}")
+  private Duration timeToLive = Duration.ofSeconds(60);
+
+  @Value("${spring.data.jpa.acl.decision-cache.shared.max-size:10000}")
+  private int maxSize = 10000;
+
+  @Value("${spring.data.jpa.acl.max-depth:2}")
+  private int maxDepth = 2;
+
+  private boolean registered;
+
+  private transient PersistenceUnitUtil persistenceUnitUtil;
+
+  private final transient Map<DecisionKey, CachedDecision> decisions = new ConcurrentHashMap<>();
+
+  /**
+   * The keys of the cached decisions by the entity ids
+   */
+  private final transient Map<Object, Set<DecisionKey>> keysById = new ConcurrentHashMap<>();
+
+  /**
+   * The ACL-relevant dependencies of the entity types
+   */
+  private final transient Map<Class<?>, Dependencies> dependencies = new ConcurrentHashMap<>();
+
+  /**
+   * Incremented by every eviction
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  @PostConstruct
+  public void registerListeners() {
+    EventListenerRegistry registry;
+    try {
+      SessionFactoryImplementor sessionFactory = entityManagerFactory.unwrap(SessionFactoryImplementor.class);
+      registry = sessionFactory.getServiceRegistry().getService(EventListenerRegistry.class);
+      persistenceUnitUtil = sessionFactory.getPersistenceUnitUtil();
+    } catch (PersistenceException e) {
+      LOG.info("Shared ACL decision cache is not available without Hibernate.");
+      return;
+    }
+    registry.appendListeners(EventType.POST_INSERT, this);
+    registry.appendListeners(EventType.POST_UPDATE, this);
+    registry.appendListeners(EventType.POST_DELETE, this);
+    registry.appendListeners(EventType.POST_COLLECTION_RECREATE, this);
+    registry.appendListeners(EventType.POST_COLLECTION_UPDATE, this);
+    registry.appendListeners(EventType.POST_COLLECTION_REMOVE, this);
+    registered = true;
+  }
+
+  public boolean isEnabled() {
+    return enabled && registered;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+    if (!enabled) {
+      clear();
+    }
+  }
+
+  public Duration getTimeToLive() {
+    return timeToLive;
+  }
+
+  public void setTimeToLive(Duration timeToLive) {
+    this.timeToLive = timeToLive;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Returns the cached decision or null if it's not cached (or it's expired)
+   */
+  Boolean get(DecisionKey key) {
+    CachedDecision decision = decisions.get(key);
+    if (decision == null || decision.isExpired(System.nanoTime())) {
+      if (decision != null) {
+        remove(key);
+      }
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return decision.permitted;
+  }
+
+  /**
+   * Returns the generation of the cache. It has to be read before a decision is evaluated and passed to
+   * {@link #put(DecisionKey, boolean, long)}.
+   */
+  long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Caches the given decision unless any eviction happened since the given generation (the decision could be
+   * evaluated from a state what was changed since then)
+   */
+  void put(DecisionKey key, boolean permitted, long expectedGeneration) {
+    if (generation.get() != expectedGeneration) {
+      return;
+    }
+    if (decisions.size() >= maxSize) {
+      shrink();
+    }
+    decisions.put(key, new CachedDecision(permitted, System.nanoTime() + timeToLive.toNanos()));
+    keysById.computeIfAbsent(key.getId(), id -> ConcurrentHashMap.newKeySet()).add(key);
+    // An eviction running concurrently with the put could miss the new decision
+    if (generation.get() != expectedGeneration) {
+      remove(key);
+    }
+  }
+
+  /**
+   * Evicts the decisions of the given entity (for all the users) and all the decisions of its descendant types
+   */
+  public void evictEntity(Class<?> entityClass, Object id) {
+    evictDecisions(entityClass, id);
+    for (Class<?> descendantType : getDependencies(entityClass).descendantTypes) {
+      evictDecisions(descendantType);
+    }
+  }
+
+  /**
+   * Evicts all the decisions of the given entity type and its descendant types
+   */
+  public void evictType(Class<?> entityClass) {
+    evictDecisions(entityClass);
+    for (Class<?> descendantType : getDependencies(entityClass).descendantTypes) {
+      evictDecisions(descendantType);
+    }
+  }
+
+  /**
+   * Evicts all the decisions of the given user or of all the users if the id is null
+   */
+  public void evictUser(Object userId) {
+    generation.incrementAndGet();
+    decisions.keySet().stream().filter(key -> userId == null || userId.equals(key.getUserId()))
+        .forEach(this::remove);
+  }
+
+  public void clear() {
+    generation.incrementAndGet();
+    decisions.clear();
+    keysById.clear();
+  }
+
+  public int size() {
+    return decisions.size();
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  public void resetStatistics() {
+    hits.reset();
+    misses.reset();
+    evictions.reset();
+  }
+
+  @Override
+  public void onPostInsert(PostInsertEvent event) {
+    // A new entity has no cached decisions except the ones denied before its creation
+    onWrite(event.getSession(), event.getPersister(), event.getId(), event.getEntity(), null, false);
+  }
+
+  @Override
+  public void onPostUpdate(PostUpdateEvent event) {
+    int[] dirtyProperties = event.getDirtyProperties();
+    Set<String> changedProperties = null;
+    if (dirtyProperties != null) {
+      String[] propertyNames = event.getPersister().getPropertyNames();
+      changedProperties = new HashSet<>();
+      for (int dirtyProperty : dirtyProperties) {
+        changedProperties.add(propertyNames[dirtyProperty]);
+      }
+    }
+    onWrite(event.getSession(), event.getPersister(), event.getId(), event.getEntity(), changedProperties, true);
+  }
+
+  @Override
+  public void onPostDelete(PostDeleteEvent event) {
+    onWrite(event.getSession(), event.getPersister(), event.getId(), event.getEntity(), null, true);
+  }
+
+  @Override
+  public void onPostRecreateCollection(PostCollectionRecreateEvent event) {
+    onCollectionWrite(event);
+  }
+
+  @Override
+  public void onPostUpdateCollection(PostCollectionUpdateEvent event) {
+    onCollectionWrite(event);
+  }
+
+  @Override
+  public void onPostRemoveCollection(PostCollectionRemoveEvent event) {
+    onCollectionWrite(event);
+  }
+
+  @Override
+  public boolean requiresPostCommitHandling(EntityPersister persister) {
+    return false;
+  }
+
+  /**
+   * Still abstract in Hibernate 5.3 (the default {@link #requiresPostCommitHandling} delegates to it)
+   */
+  @Override
+  @SuppressWarnings("deprecation")
+  public boolean requiresPostCommitHanding(EntityPersister persister) {
+    return requiresPostCommitHandling(persister);
+  }
+
+  private void onCollectionWrite(AbstractCollectionEvent event) {
+    Object owner = event.getAffectedOwnerOrNull();
+    String role = event.getCollection().getRole();
+    if (owner == null || role == null || event.getAffectedOwnerEntityName() == null) {
+      return;
+    }
+    String propertyName = role.substring(role.lastIndexOf('.') + 1);
+    EntityPersister persister = event.getSession().getFactory().getMetamodel()
+        .entityPersister(event.getAffectedOwnerEntityName());
+    onWrite(event.getSession(), persister, event.getAffectedOwnerIdOrNull(), owner, Collections.singleton(propertyName),
+        true);
+  }
+
+  /**
+   * Evicts the decisions affected by the write of the given entity
+   *
+   * @param changedProperties
+   *          the changed properties or null if all of them are changed (the entity is inserted or deleted)
+   * @param existing
+   *          false if the entity is a new one
+   */
+  private void onWrite(SharedSessionContractImplementor session, EntityPersister persister, Object id, Object entity,
+      Set<String> changedProperties, boolean existing) {
+    if (!isEnabled() || id == null) {
+      return;
+    }
+    Class<?> entityClass = persister.getMappedClass();
+    List<Eviction> evictions = collectEvictions(entityClass, id, entity, changedProperties, existing);
+    if (!evictions.isEmpty()) {
+      LOG.trace("Evicting shared ACL decisions affected by {} with id {}", entityClass, id);
+      runNowAndAfterCompletion(evictions);
+      if (invalidationBus != null) {
+        invalidationBus.publish(session, toEvents(evictions));
+      }
+    }
+  }
+
+  /**
+   * Collects the evictions of the decisions affected by the write of the given entity or - if the id is null - of any
+   * entities of the given type
+   *
+   * @param entity
+   *          the written entity or null if the id is null
+   * @param changedProperties
+   *          the changed properties or null if all of them can be changed
+   * @param existing
+   *          false if the entity is a new one
+   */
+  private List<Eviction> collectEvictions(Class<?> entityClass, Object id, Object entity,
+      Set<String> changedProperties, boolean existing) {
+    Dependencies entityDependencies = getDependencies(entityClass);
+
+    List<Eviction> evictions = new ArrayList<>();
+    if (entity instanceof PermissionLink) {
+      Object target = ((PermissionLink<?, ?>) entity).getTarget();
+      if (target != null) {
+        evictions.add(new Eviction(Kind.ENTITY, getEntityClass(target), persistenceUnitUtil.getIdentifier(target)));
+      }
+    } else if (id == null) {
+      for (Class<?> targetType : entityDependencies.linkTargetTypes) {
+        evictions.add(new Eviction(Kind.TYPE, targetType, null));
+      }
+    }
+    if (changedProperties == null || !Collections.disjoint(changedProperties, entityDependencies.aclProperties)) {
+      evictions.add(new Eviction(id == null ? Kind.TYPE : existing ? Kind.ENTITY : Kind.NEW_ENTITY, entityClass, id));
+    }
+    Collection<String> properties = changedProperties == null ? entityDependencies.inverseDependents.keySet()
+        : changedProperties;
+    for (String property : properties) {
+      for (Class<?> dependentType : entityDependencies.inverseDependents.getOrDefault(property,
+          Collections.emptySet())) {
+        evictions.add(new Eviction(Kind.TYPE, dependentType, null));
+      }
+    }
+    if (existing && AclUser.class.isAssignableFrom(entityClass) && (changedProperties == null
+        || !Collections.disjoint(changedProperties, entityDependencies.roleProperties))) {
+      evictions.add(new Eviction(Kind.USER, entityClass, id));
+    }
+    return evictions;
+  }
+
+  /**
+   * Evicts the decisions described by an invalidation event
+   *
+   * @param entityClass
+   *          the entity type of the event (the user type for {@link Kind#USER} events)
+   * @param id
+   *          the id of the entity (or the user), can be null for {@link Kind#TYPE} events
+   */
+  public void evict(Kind kind, Class<?> entityClass, Object id) {
+    switch (kind) {
+    case ENTITY:
+      evictEntity(entityClass, id);
+      break;
+    case NEW_ENTITY:
+      evictDecisions(entityClass, id);
+      break;
+    case TYPE:
+      evictType(entityClass);
+      break;
+    case USER:
+      evictUser(id);
+      break;
+    default:
+      break;
+    }
+  }
+
+  /**
+   * Evicts all the decisions affected by a bulk statement on the given entity type on all the nodes: the decisions of
+   * the type and its descendant types, of the types depending on its properties, of the targets of the permission links
+   * and of all the users if the type is a user type
+   */
+  public void invalidateType(Class<?> entityClass) {
+    if (!isEnabled()) {
+      return;
+    }
+    List<Eviction> evictions = collectEvictions(entityClass, null, null, null, true);
+    LOG.trace("Evicting shared ACL decisions affected by a bulk statement on {}", entityClass);
+    runNowAndAfterCompletion(evictions);
+    if (invalidationBus != null) {
+      invalidationBus.publish(toEvents(evictions));
+    }
+  }
+
+  /**
+   * Runs the evictions and repeats them at the end of the current transaction, when the changes become visible to the
+   * other transactions
+   */
+  private void runNowAndAfterCompletion(List<Eviction> evictions) {
+    evictions.forEach(this::evict);
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+        @Override
+        public void afterCompletion(int status) {
+          evictions.forEach(AclSharedDecisionCache.this::evict);
+        }
+      });
+    }
+  }
+
+  private void evict(Eviction eviction) {
+    evict(eviction.kind, eviction.entityClass, eviction.id);
+  }
+
+  private static List<AclInvalidationEvent> toEvents(List<Eviction> evictions) {
+    List<AclInvalidationEvent> events = new ArrayList<>(evictions.size());
+    for (Eviction eviction : evictions) {
+      events.add(new AclInvalidationEvent(eviction.kind, eviction.entityClass, eviction.id));
+    }
+    return events;
+  }
+
+  private void evictDecisions(Class<?> entityClass, Object id) {
+    generation.incrementAndGet();
+    Set<DecisionKey> keys = keysById.get(id);
+    if (keys != null) {
+      for (DecisionKey key : new ArrayList<>(keys)) {
+        if (isRelated(entityClass, key.getEntityClass())) {
+          remove(key);
+        }
+      }
+    }
+  }
+
+  private void evictDecisions(Class<?> entityClass) {
+    generation.incrementAndGet();
+    decisions.keySet().stream().filter(key -> isRelated(entityClass, key.getEntityClass())).forEach(this::remove);
+  }
+
+  private void remove(DecisionKey key) {
+    if (decisions.remove(key) != null) {
+      evictions.increment();
+    }
+    Set<DecisionKey> keys = keysById.get(key.getId());
+    if (keys != null) {
+      keys.remove(key);
+      if (keys.isEmpty()) {
+        keysById.remove(key.getId(), keys);
+      }
+    }
+  }
+
+  /**
+   * Makes room for new decisions: removes the expired ones, or - if there are none - a tenth of the cache
+   */
+  private void shrink() {
+    long now = System.nanoTime();
+    decisions.entrySet().stream().filter(entry -> entry.getValue().isExpired(now)).map(Map.Entry::getKey)
+        .forEach(this::remove);
+    int excess = decisions.size() - maxSize + Math.max(1, maxSize / 10);
+    Iterator<DecisionKey> iterator = decisions.keySet().iterator();
+    while (excess-- > 0 && iterator.hasNext()) {
+      remove(iterator.next());
+    }
+  }
+
+  private static boolean isRelated(Class<?> type, Class<?> other) {
+    return type.isAssignableFrom(other) || other.isAssignableFrom(type);
+  }
+
+  private Class<?> getEntityClass(Object entity) {
+    return entity instanceof HibernateProxy
+        ? ((HibernateProxy) entity).getHibernateLazyInitializer().getPersistentClass()
+        : entity.getClass();
+  }
+
+  private Dependencies getDependencies(Class<?> entityClass) {
+    Dependencies result = dependencies.get(entityClass);
+    if (result == null) {
+      result = createDependencies(entityClass);
+      dependencies.putIfAbsent(entityClass, result);
+    }
+    return result;
+  }
+
+  /**
+   * Collects the ACL-relevant dependencies of the given entity type from the {@link AclMetaData} and the metamodel
+   */
+  private Dependencies createDependencies(Class<?> entityClass) {
+    Dependencies result = new Dependencies();
+    AclEntityMetaData metaData = aclMetaData.getAclEntityMetaData(entityClass);
+    if (metaData != null) {
+      for (OwnerData ownerData : metaData.getOwnerDataList()) {
+        result.aclProperties.add(ownerData.getPropertyName());
+      }
+      for (OwnerData ownerGroupData : metaData.getOwnerGroupDataList()) {
+        result.aclProperties.add(ownerGroupData.getPropertyName());
+      }
+      for (ParentData parentData : metaData.getParentDataList()) {
+        result.aclProperties.add(parentData.getPropertyName());
+      }
+    }
+
+    for (EntityType<?> entityType : entityManagerFactory.getMetamodel().getEntities()) {
+      Class<?> type = entityType.getJavaType();
+      AclEntityMetaData typeMetaData = aclMetaData.getAclEntityMetaData(type);
+      if (typeMetaData == null) {
+        continue;
+      }
+      for (String propertyName : getDependentProperties(typeMetaData)) {
+        Attribute<?, ?> attribute = entityType.getAttribute(propertyName);
+        if (!isRelated(getTargetType(attribute), entityClass)) {
+          continue;
+        }
+        String mappedBy = getMappedBy(attribute);
+        if (!mappedBy.isEmpty()) {
+          result.inverseDependents.computeIfAbsent(mappedBy, property -> new LinkedHashSet<>()).add(type);
+        }
+      }
+    }
+    result.descendantTypes.addAll(collectDescendantTypes(entityClass, maxDepth, new LinkedHashSet<>()));
+
+    if (PermissionLink.class.isAssignableFrom(entityClass)) {
+      result.linkTargetTypes.add(
+          getTargetType(entityManagerFactory.getMetamodel().entity(entityClass).getAttribute(LINK_TARGET_PROPERTY)));
+    }
+
+    if (AclUser.class.isAssignableFrom(entityClass)) {
+      for (Attribute<?, ?> attribute : entityManagerFactory.getMetamodel().entity(entityClass).getAttributes()) {
+        Member member = attribute.getJavaMember();
+        if (AclRole.class.isAssignableFrom(getTargetType(attribute)) || member instanceof AnnotatedElement
+            && AnnotationUtils.findAnnotation((AnnotatedElement) member, AclRoleProvider.class) != null) {
+          result.roleProperties.add(attribute.getName());
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the properties of an ACL entity type its decisions depend on (except the permission links, which are
+   * handled by their targets)
+   */
+  private static List<String> getDependentProperties(AclEntityMetaData metaData) {
+    List<String> properties = new ArrayList<>();
+    metaData.getOwnerDataList().forEach(data -> properties.add(data.getPropertyName()));
+    metaData.getOwnerGroupDataList().forEach(data -> properties.add(data.getPropertyName()));
+    metaData.getParentDataList().forEach(data -> properties.add(data.getPropertyName()));
+    return properties;
+  }
+
+  /**
+   * Collects the types what refer to the given type as a parent or an owner group (recursively for the parents)
+   */
+  private Set<Class<?>> collectDescendantTypes(Class<?> entityClass, int depth, Set<Class<?>> collected) {
+    if (depth <= 0) {
+      return collected;
+    }
+    for (EntityType<?> entityType : entityManagerFactory.getMetamodel().getEntities()) {
+      Class<?> type = entityType.getJavaType();
+      AclEntityMetaData typeMetaData = aclMetaData.getAclEntityMetaData(type);
+      if (typeMetaData == null) {
+        continue;
+      }
+      for (ParentData parentData : typeMetaData.getParentDataList()) {
+        if (isRelated(getTargetType(entityType.getAttribute(parentData.getPropertyName())), entityClass)
+            && collected.add(type)) {
+          collectDescendantTypes(type, depth - 1, collected);
+        }
+      }
+      for (OwnerData ownerGroupData : typeMetaData.getOwnerGroupDataList()) {
+        if (isRelated(ownerGroupData.getPropertyType(), entityClass)) {
+          collected.add(type);
+        }
+      }
+      for (PermissionLinkData permissionLinkData : typeMetaData.getPermissionLinkList()) {
+        // The owner groups of the permission links
+        Class<?> linkType = getTargetType(entityType.getAttribute(permissionLinkData.getPropertyName()));
+        AclEntityMetaData linkMetaData = aclMetaData.getAclEntityMetaData(linkType);
+        if (linkMetaData != null && linkMetaData.getOwnerGroupDataList().stream()
+            .anyMatch(ownerGroupData -> isRelated(ownerGroupData.getPropertyType(), entityClass))) {
+          collected.add(type);
+        }
+      }
+    }
+    return collected;
+  }
+
+  private static Class<?> getTargetType(Attribute<?, ?> attribute) {
+    return attribute instanceof PluralAttribute ? ((PluralAttribute<?, ?, ?>) attribute).getElementType().getJavaType()
+        : attribute.getJavaType();
+  }
+
+  private static String getMappedBy(Attribute<?, ?> attribute) {
+    Member member = attribute.getJavaMember();
+    if (!(member instanceof AnnotatedElement)) {
+      return "";
+    }
+    AnnotatedElement element = (AnnotatedElement) member;
+    for (Object annotation : Arrays.asList(element.getAnnotation(OneToMany.class),
+        element.getAnnotation(ManyToMany.class), element.getAnnotation(OneToOne.class))) {
+      if (annotation instanceof OneToMany) {
+        return ((OneToMany) annotation).mappedBy();
+      }
+      if (annotation instanceof ManyToMany) {
+        return ((ManyToMany) annotation).mappedBy();
+      }
+      if (annotation instanceof OneToOne) {
+        return ((OneToOne) annotation).mappedBy();
+      }
+    }
+    return "";
+  }
+
+  private static final class Eviction {
+
+    private final Kind kind;
+    private final Class<?> entityClass;
+    private final Object id;
+
+    private Eviction(Kind kind, Class<?> entityClass, Object id) {
+      this.kind = kind;
+      this.entityClass = entityClass;
+      this.id = id;
+    }
+  }
+
+  private static final class CachedDecision {
+
+    private final boolean permitted;
+    private final long expiresAt;
+
+    private CachedDecision(boolean permitted, long expiresAt) {
+      this.permitted = permitted;
+      this.expiresAt = expiresAt;
+    }
+
+    private boolean isExpired(long now) {
+      return now - expiresAt >= 0;
+    }
+  }
+
+  /**
+   * The ACL-relevant dependencies of an entity type
+   */
+  private static final class Dependencies {
+
+    /**
+     * The owner, owner-group and parent properties of the type
+     */
+    private final Set<String> aclProperties = new HashSet<>();
+
+    /**
+     * The types whose ACL properties are mapped by the given properties of the type (the type is the owning side)
+     */
+    private final Map<String, Set<Class<?>>> inverseDependents = new HashMap<>();
+
+    /**
+     * The types what refer to the type as a parent (recursively) or as an owner group
+     */
+    private final Set<Class<?>> descendantTypes = new LinkedHashSet<>();
+
+    /**
+     * The role and role-provider properties of a user type
+     */
+    private final Set<String> roleProperties = new HashSet<>();
+
+    /**
+     * The target type of a permission link type
+     */
+    private final Set<Class<?>> linkTargetTypes = new LinkedHashSet<>();
+  }
+
+}
@@ -0,0 +1,870 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.PluralAttribute;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.AbstractCollectionEvent;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCollectionRecreateEvent;
+import org.hibernate.event.spi.PostCollectionRecreateEventListener;
+import org.hibernate.event.spi.PostCollectionRemoveEvent;
+import org.hibernate.event.spi.PostCollectionRemoveEventListener;
+import org.hibernate.event.spi.PostCollectionUpdateEvent;
+import org.hibernate.event.spi.PostCollectionUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.ReflectionUtils;
+
+import com.berrycloud.acl.AclSpecification.Outcome;
+import com.berrycloud.acl.data.AclEntityMetaData;
+import com.berrycloud.acl.data.AclMetaData;
+import com.berrycloud.acl.data.OwnerData;
+import com.berrycloud.acl.data.ParentData;
+import com.berrycloud.acl.domain.AclInvalidationEvent;
+import com.berrycloud.acl.domain.AclInvalidationEvent.Kind;
+import com.berrycloud.acl.domain.AclUser;
+import com.berrycloud.acl.security.AclUserDetails;
+import com.berrycloud.acl.security.AclUserDetailsService;
+
+/**
+ * Cache of the query results of the ACL repositories shared by the principals with the same
+ * {@link AclPrincipalFingerprint}.
+ * <p>
+ * The results of a query are the same for all the users whose permission is granted by their roles (the
+ * {@link Outcome#GRANTED} outcome), and for all the role-only users with the same authorities (see
+ * {@link AclPrincipalFingerprint#isRoleOnly()}). The ids of these results are cached by the fingerprint, the entity
+ * type, the specification and the page, so a popular list is queried once per role combination instead of once per user.
+ * The results of the other users are not cached. Specifications are cached only if they are null or implement a
+ * value-based {@code equals}. The cached ids are loaded by the primary key (from the persistence context or the
+ * second-level cache of Hibernate if possible).
+ * <p>
+ * The capability profiles of the users (the ACL relations referring to them) are queried once and cached (with the same
+ * time-to-live as the results, up to {@code max-profiles} users). They are dropped when an {@code @AclOwner} property or an {@code @AclParent} property pointing to a user type is written. The
+ * results of an entity type are evicted when an entity of the same type or of a type reachable through its associations
+ * is written. The writes of the types not reachable from any result type (the types without an ACL repository, e.g.
+ * the outbox of the {@link AclInvalidationBus}) evict nothing and publish nothing. The evictions are repeated at the end
+ * of the transaction and published by the {@link AclInvalidationBus} if it's available. Every eviction starts a new
+ * generation of the evicted result types (or of the profiles): a result or a profile evaluated in an older generation
+ * is not cached, so a concurrent write cannot be overwritten by a stale value, while the writes of the unrelated types
+ * do not prevent the caching. The cache is disabled by default. It works with Hibernate only.
+ *
+ * @author István Rátkai (Selindek)
+ */
+public class AclSharedResultCache implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener,
+    PostCollectionRecreateEventListener, PostCollectionUpdateEventListener, PostCollectionRemoveEventListener {
+
+  private static final long serialVersionUID = 4410542097519436410L;
+
+  private static Logger LOG = LoggerFactory.getLogger(AclSharedResultCache.class);
+
+  @PersistenceContext
+  private transient EntityManager em;
+
+  @Autowired
+  private transient EntityManagerFactory entityManagerFactory;
+
+  @Autowired
+  private transient AclMetaData aclMetaData;
+
+  @Autowired(required = false)
+  private transient AclInvalidationBus invalidationBus;
+
+  @Value("${spring.data.jpa.acl.result-cache.enabled:false}")
+  private boolean enabled;
+
+  @Value("${spring.data.jpa.acl.result-cache.ttl:60s}")
+  private Duration timeToLive = Duration.ofSeconds(60);
+
+  @Value("${spring.data.jpa.acl.result-cache.max-size:1000}")
+  private int maxSize = 1000;
+
+  @Value("${spring.data.jpa.acl.result-cache.max-profiles:10000}")
+  private int maxProfiles = 10000;
+
+  private boolean registered;
+
+  private final transient Map<ResultKey, CachedPage> results = new ConcurrentHashMap<>();
+
+  /**
+   * The capability profiles by the user ids
+   */
+  private final transient Map<Object, CachedProfile> capabilities = new ConcurrentHashMap<>();
+
+  /**
+   * The generations of the result types (the domain types of the ACL repositories), incremented by the evictions of the
+   * results of the type
+   */
+  private final transient Map<Class<?>, AtomicLong> generations = new ConcurrentHashMap<>();
+
+  /**
+   * Incremented by every eviction of the capability profiles
+   */
+  private final AtomicLong profileGeneration = new AtomicLong();
+
+  /**
+   * Whether the writes of an entity type can change any result type
+   */
+  private final transient Map<Class<?>, Boolean> affectingTypes = new ConcurrentHashMap<>();
+
+  /**
+   * The entity types reachable through the associations of the entity types
+   */
+  private final transient Map<Class<?>, Set<Class<?>>> reachableTypes = new ConcurrentHashMap<>();
+
+  private transient volatile List<Relation> relations;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder profileQueries = new LongAdder();
+
+  @PostConstruct
+  public void registerListeners() {
+    EventListenerRegistry registry;
+    try {
+      registry = entityManagerFactory.unwrap(SessionFactoryImplementor.class).getServiceRegistry()
+          .getService(EventListenerRegistry.class);
+    } catch (PersistenceException e) {
+      LOG.info("Shared ACL result cache is not available without Hibernate.");
+      return;
+    }
+    registry.appendListeners(EventType.POST_INSERT, this);
+    registry.appendListeners(EventType.POST_UPDATE, this);
+    registry.appendListeners(EventType.POST_DELETE, this);
+    registry.appendListeners(EventType.POST_COLLECTION_RECREATE, this);
+    registry.appendListeners(EventType.POST_COLLECTION_UPDATE, this);
+    registry.appendListeners(EventType.POST_COLLECTION_REMOVE, this);
+    registered = true;
+  }
+
+  public boolean isEnabled() {
+    return enabled && registered;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+    if (!enabled) {
+      clear();
+    }
+  }
+
+  public Duration getTimeToLive() {
+    return timeToLive;
+  }
+
+  public void setTimeToLive(Duration timeToLive) {
+    this.timeToLive = timeToLive;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  public int getMaxProfiles() {
+    return maxProfiles;
+  }
+
+  public void setMaxProfiles(int maxProfiles) {
+    this.maxProfiles = maxProfiles;
+  }
+
+  /**
+   * Registers the domain type of an ACL repository whose results can be cached. The writes of the types not reachable
+   * from any registered type do not evict anything.
+   */
+  public void registerResultType(Class<?> domainClass) {
+    getGenerationCounter(domainClass);
+  }
+
+  /**
+   * Returns the current generation of the results of the given type. It must be read before the evaluation of a result
+   * what is put into the cache later.
+   */
+  public long getGeneration(Class<?> domainClass) {
+    return getGenerationCounter(domainClass).get();
+  }
+
+  /**
+   * Returns the fingerprint of the current user or null if the current user is not an ACL user
+   */
+  public AclPrincipalFingerprint getFingerprint() {
+    AclUserDetails userDetails = AclUserDetailsService.getAclUserDetails();
+    if (userDetails == null) {
+      return null;
+    }
+    return new AclPrincipalFingerprint(getAuthorities(userDetails), getCapabilities(userDetails.getUserId()));
+  }
+
+  /**
+   * Returns the fingerprint the results of the current user are shared by or null if they cannot be shared
+   *
+   * @param domainClass
+   *          the entity type of the query
+   * @param outcome
+   *          the outcome of the ACL check of the query
+   */
+  public AclPrincipalFingerprint getSharedFingerprint(Class<?> domainClass, Outcome outcome) {
+    AclUserDetails userDetails = AclUserDetailsService.getAclUserDetails();
+    if (!isEnabled() || userDetails == null) {
+      return null;
+    }
+    switch (outcome) {
+    case GRANTED:
+      // The permission is granted by the roles, the capabilities are not checked at all
+      return new AclPrincipalFingerprint(getAuthorities(userDetails), Collections.emptySet());
+    case FILTERED:
+      // The users can access their own entities by the @AclSelf rules
+      if (AclUser.class.isAssignableFrom(domainClass)) {
+        return null;
+      }
+      AclPrincipalFingerprint fingerprint = getFingerprint();
+      return fingerprint.isRoleOnly() ? fingerprint : null;
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * Checks if the results of the given specification can be cached
+   */
+  public boolean isCacheable(@Nullable Object specification) {
+    if (specification == null) {
+      return true;
+    }
+    Method equals = ReflectionUtils.findMethod(specification.getClass(), "equals", Object.class);
+    return equals != null && equals.getDeclaringClass() != Object.class;
+  }
+
+  /**
+   * Returns the cached page or null if it's not cached (or it's expired)
+   *
+   * @param page
+   *          the {@code Pageable} or the {@code Sort} of the query
+   */
+  public CachedPage get(AclPrincipalFingerprint fingerprint, Class<?> domainClass, @Nullable Object specification,
+      Object page) {
+    ResultKey key = new ResultKey(fingerprint, domainClass, specification, page);
+    CachedPage cachedPage = results.get(key);
+    if (cachedPage == null || cachedPage.isExpired(System.nanoTime())) {
+      if (cachedPage != null) {
+        results.remove(key, cachedPage);
+      }
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return cachedPage;
+  }
+
+  /**
+   * Caches the ids of a page
+   *
+   * @param page
+   *          the {@code Pageable} or the {@code Sort} of the query
+   * @param total
+   *          the total number of the entities
+   * @param expectedGeneration
+   *          the generation read before the query (the page is not cached if an eviction happened since then)
+   */
+  public void put(AclPrincipalFingerprint fingerprint, Class<?> domainClass, @Nullable Object specification,
+      Object page, List<?> ids, long total, long expectedGeneration) {
+    AtomicLong generation = getGenerationCounter(domainClass);
+    if (generation.get() != expectedGeneration) {
+      return;
+    }
+    long now = System.nanoTime();
+    if (results.size() >= maxSize) {
+      shrink(results, maxSize, cachedPage -> cachedPage.isExpired(now));
+    }
+    ResultKey key = new ResultKey(fingerprint, domainClass, specification, page);
+    CachedPage cachedPage = new CachedPage(new ArrayList<>(ids), total, now + timeToLive.toNanos());
+    results.put(key, cachedPage);
+    // An eviction running concurrently with the put may have missed the new page
+    if (generation.get() != expectedGeneration) {
+      results.remove(key, cachedPage);
+    }
+  }
+
+  /**
+   * Loads the entities of a cached page in the order of their ids. The entities are taken from the persistence context
+   * (or the second-level cache) if possible, the rest of them are loaded by one query. The entities deleted since the
+   * page was cached are skipped.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public <T> List<T> load(EntityManager entityManager, Class<T> domainClass, CachedPage cachedPage) {
+    List<T> entities = new ArrayList<>(
+        entityManager.unwrap(Session.class).byMultipleIds(domainClass).enableSessionCheck(true)
+            .multiLoad((List) cachedPage.getIds()));
+    entities.removeIf(Objects::isNull);
+    return entities;
+  }
+
+  /**
+   * Evicts the results (or the capability profiles) described by an invalidation event
+   *
+   * @param kind
+   *          {@link Kind#RESULTS} or {@link Kind#PROFILES}
+   * @param entityClass
+   *          the written entity type
+   */
+  public void evict(Kind kind, Class<?> entityClass) {
+    if (kind == Kind.PROFILES) {
+      profileGeneration.incrementAndGet();
+      capabilities.clear();
+    } else if (kind == Kind.RESULTS) {
+      generations.forEach((resultClass, generation) -> {
+        if (dependsOn(resultClass, entityClass)) {
+          generation.incrementAndGet();
+        }
+      });
+      results.keySet().removeIf(key -> dependsOn(key.entityClass, entityClass));
+    }
+  }
+
+  /**
+   * Evicts the results depending on the given entity type and the capability profiles on all the nodes (e.g. after a
+   * bulk statement)
+   */
+  public void invalidateType(Class<?> entityClass) {
+    if (!isEnabled()) {
+      return;
+    }
+    List<Eviction> evictions = new ArrayList<>();
+    if (isAffectingResults(entityClass)) {
+      evictions.add(new Eviction(Kind.RESULTS, entityClass));
+    }
+    evictions.add(new Eviction(Kind.PROFILES, entityClass));
+    List<Eviction> newEvictions = runNowAndAfterCompletion(evictions);
+    if (invalidationBus != null && !newEvictions.isEmpty()) {
+      invalidationBus.publish(toEvents(newEvictions));
+    }
+  }
+
+  public void clear() {
+    generations.values().forEach(AtomicLong::incrementAndGet);
+    profileGeneration.incrementAndGet();
+    results.clear();
+    capabilities.clear();
+  }
+
+  public int size() {
+    return results.size();
+  }
+
+  /**
+   * Returns the number of the cached capability profiles
+   */
+  public int getProfileCount() {
+    return capabilities.size();
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * Returns the number of the capability profiles queried from the database
+   */
+  public long getProfileQueryCount() {
+    return profileQueries.sum();
+  }
+
+  public void resetStatistics() {
+    hits.reset();
+    misses.reset();
+    profileQueries.reset();
+  }
+
+  @Override
+  public void onPostInsert(PostInsertEvent event) {
+    onWrite(event.getSession(), event.getPersister(), null);
+  }
+
+  @Override
+  public void onPostUpdate(PostUpdateEvent event) {
+    int[] dirtyProperties = event.getDirtyProperties();
+    Set<String> changedProperties = null;
+    if (dirtyProperties != null) {
+      String[] propertyNames = event.getPersister().getPropertyNames();
+      changedProperties = new HashSet<>();
+      for (int dirtyProperty : dirtyProperties) {
+        changedProperties.add(propertyNames[dirtyProperty]);
+      }
+    }
+    onWrite(event.getSession(), event.getPersister(), changedProperties);
+  }
+
+  @Override
+  public void onPostDelete(PostDeleteEvent event) {
+    onWrite(event.getSession(), event.getPersister(), null);
+  }
+
+  @Override
+  public void onPostRecreateCollection(PostCollectionRecreateEvent event) {
+    onCollectionWrite(event);
+  }
+
+  @Override
+  public void onPostUpdateCollection(PostCollectionUpdateEvent event) {
+    onCollectionWrite(event);
+  }
+
+  @Override
+  public void onPostRemoveCollection(PostCollectionRemoveEvent event) {
+    onCollectionWrite(event);
+  }
+
+  @Override
+  public boolean requiresPostCommitHandling(EntityPersister persister) {
+    return false;
+  }
+
+  /**
+   * Still abstract in Hibernate 5.3 (the default {@link #requiresPostCommitHandling} delegates to it)
+   */
+  @Override
+  @SuppressWarnings("deprecation")
+  public boolean requiresPostCommitHanding(EntityPersister persister) {
+    return requiresPostCommitHandling(persister);
+  }
+
+  private void onCollectionWrite(AbstractCollectionEvent event) {
+    String role = event.getCollection().getRole();
+    if (event.getAffectedOwnerOrNull() == null || role == null || event.getAffectedOwnerEntityName() == null) {
+      return;
+    }
+    EntityPersister persister = event.getSession().getFactory().getMetamodel()
+        .entityPersister(event.getAffectedOwnerEntityName());
+    onWrite(event.getSession(), persister, Collections.singleton(role.substring(role.lastIndexOf('.') + 1)));
+  }
+
+  /**
+   * Evicts the results and the capability profiles affected by the write of an entity
+   *
+   * @param changedProperties
+   *          the changed properties or null if all of them are changed (the entity is inserted or deleted)
+   */
+  private void onWrite(SharedSessionContractImplementor session, EntityPersister persister,
+      Set<String> changedProperties) {
+    if (!isEnabled()) {
+      return;
+    }
+    Class<?> entityClass = persister.getMappedClass();
+    List<Eviction> evictions = new ArrayList<>();
+    if (isAffectingResults(entityClass)) {
+      evictions.add(new Eviction(Kind.RESULTS, entityClass));
+    }
+    for (Relation relation : getRelations()) {
+      if (relation.entityClass.isAssignableFrom(entityClass)
+          && (changedProperties == null || changedProperties.contains(relation.propertyName))) {
+        evictions.add(new Eviction(Kind.PROFILES, entityClass));
+        break;
+      }
+    }
+    if (evictions.isEmpty()) {
+      return;
+    }
+    List<Eviction> newEvictions = runNowAndAfterCompletion(evictions);
+    if (invalidationBus != null && !newEvictions.isEmpty()) {
+      invalidationBus.publish(session, toEvents(newEvictions));
+    }
+  }
+
+  /**
+   * Runs the evictions and repeats them at the end of the current transaction. The same eviction is run only once in a
+   * transaction.
+   *
+   * @return the evictions not run in the current transaction before
+   */
+  private List<Eviction> runNowAndAfterCompletion(List<Eviction> evictions) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      evictions.forEach(this::evict);
+      return evictions;
+    }
+    @SuppressWarnings("unchecked")
+    Set<Eviction> transactionEvictions = (Set<Eviction>) TransactionSynchronizationManager.getResource(this);
+    if (transactionEvictions == null) {
+      Set<Eviction> boundEvictions = new LinkedHashSet<>();
+      TransactionSynchronizationManager.bindResource(this, boundEvictions);
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+        @Override
+        public void afterCompletion(int status) {
+          TransactionSynchronizationManager.unbindResourceIfPossible(AclSharedResultCache.this);
+          boundEvictions.forEach(AclSharedResultCache.this::evict);
+        }
+      });
+      transactionEvictions = boundEvictions;
+    }
+    List<Eviction> newEvictions = new ArrayList<>();
+    for (Eviction eviction : evictions) {
+      if (transactionEvictions.add(eviction)) {
+        newEvictions.add(eviction);
+      }
+      // The results cached by the current transaction (before the write) are evicted anyway
+      evict(eviction);
+    }
+    return newEvictions;
+  }
+
+  private void evict(Eviction eviction) {
+    evict(eviction.kind, eviction.entityClass);
+  }
+
+  private static List<AclInvalidationEvent> toEvents(List<Eviction> evictions) {
+    List<AclInvalidationEvent> events = new ArrayList<>(evictions.size());
+    for (Eviction eviction : evictions) {
+      events.add(new AclInvalidationEvent(eviction.kind, eviction.entityClass, null));
+    }
+    return events;
+  }
+
+  /**
+   * Makes room for new entries: removes the expired ones, or - if there are none - a tenth of the map
+   */
+  private static <K, V> void shrink(Map<K, V> map, int maxSize, Predicate<V> expired) {
+    map.values().removeIf(expired);
+    int excess = map.size() - maxSize + Math.max(1, maxSize / 10);
+    Iterator<K> iterator = map.keySet().iterator();
+    while (excess-- > 0 && iterator.hasNext()) {
+      iterator.next();
+      iterator.remove();
+    }
+  }
+
+  private static Set<String> getAuthorities(AclUserDetails userDetails) {
+    Set<String> authorities = new HashSet<>();
+    for (GrantedAuthority authority : userDetails.getAuthorities()) {
+      authorities.add(authority.getAuthority());
+    }
+    return authorities;
+  }
+
+  /**
+   * Returns the capability profile of the given user: the ACL relations referring to the user
+   */
+  private Set<String> getCapabilities(Object userId) {
+    CachedProfile profile = capabilities.get(userId);
+    if (profile != null && !profile.isExpired(System.nanoTime())) {
+      return profile.capabilities;
+    }
+    long expectedGeneration = profileGeneration.get();
+    Set<String> result = queryCapabilities(userId);
+    if (profileGeneration.get() != expectedGeneration) {
+      return result;
+    }
+    long now = System.nanoTime();
+    if (capabilities.size() >= maxProfiles) {
+      shrink(capabilities, maxProfiles, cachedProfile -> cachedProfile.isExpired(now));
+    }
+    profile = new CachedProfile(result, now + timeToLive.toNanos());
+    capabilities.put(userId, profile);
+    if (profileGeneration.get() != expectedGeneration) {
+      capabilities.remove(userId, profile);
+    }
+    return result;
+  }
+
+  private Set<String> queryCapabilities(Object userId) {
+    profileQueries.increment();
+    Set<String> result = new HashSet<>();
+    for (Relation relation : getRelations()) {
+      if (!em.createQuery(relation.query).setParameter("userId", userId).setMaxResults(1).getResultList().isEmpty()) {
+        result.add(relation.name);
+      }
+    }
+    LOG.trace("Capability profile of user {}: {}", userId, result);
+    return Collections.unmodifiableSet(result);
+  }
+
+  /**
+   * Returns the properties whose values can grant permissions to a specific user: the {@code @AclOwner} properties of
+   * the user types (including the owner properties of the groups and the permission links) and the {@code @AclParent}
+   * properties pointing to a user type (the {@code @AclSelf} rules of the parents)
+   */
+  private List<Relation> getRelations() {
+    if (relations == null) {
+      List<Relation> list = new ArrayList<>();
+      for (EntityType<?> entityType : entityManagerFactory.getMetamodel().getEntities()) {
+        AclEntityMetaData metaData = aclMetaData.getAclEntityMetaData(entityType.getJavaType());
+        if (metaData == null) {
+          continue;
+        }
+        for (OwnerData ownerData : metaData.getOwnerDataList()) {
+          addRelation(list, entityType, ownerData.getPropertyName(), ownerData.getPropertyType());
+        }
+        for (ParentData parentData : metaData.getParentDataList()) {
+          Class<?> parentType = getTargetType(entityType.getAttribute(parentData.getPropertyName()));
+          if (AclUser.class.isAssignableFrom(parentType)) {
+            addRelation(list, entityType, parentData.getPropertyName(), parentType);
+          }
+        }
+      }
+      relations = list;
+    }
+    return relations;
+  }
+
+  private void addRelation(List<Relation> list, EntityType<?> entityType, String propertyName, Class<?> userType) {
+    AclEntityMetaData userMetaData = aclMetaData.getAclEntityMetaData(userType);
+    if (userMetaData == null || userMetaData.getIdAttribute() == null) {
+      return;
+    }
+    list.add(new Relation(entityType.getJavaType(), entityType.getName(), propertyName,
+        userMetaData.getIdAttribute().getName()));
+  }
+
+  private AtomicLong getGenerationCounter(Class<?> resultClass) {
+    AtomicLong generation = generations.get(resultClass);
+    if (generation == null) {
+      generation = generations.computeIfAbsent(resultClass, type -> new AtomicLong());
+      // A new result type can be affected by the writes of the types checked before
+      affectingTypes.clear();
+    }
+    return generation;
+  }
+
+  /**
+   * Checks if the writes of the given type can change the results of any result type
+   */
+  private boolean isAffectingResults(Class<?> writtenClass) {
+    Boolean affecting = affectingTypes.get(writtenClass);
+    if (affecting == null) {
+      affecting = generations.keySet().stream().anyMatch(resultClass -> dependsOn(resultClass, writtenClass));
+      affectingTypes.put(writtenClass, affecting);
+    }
+    return affecting;
+  }
+
+  /**
+   * Checks if the results of the given type can be changed by the writes of the other type
+   */
+  private boolean dependsOn(Class<?> resultClass, Class<?> writtenClass) {
+    Set<Class<?>> types = reachableTypes.get(resultClass);
+    if (types == null) {
+      types = collectReachableTypes(resultClass);
+      reachableTypes.put(resultClass, types);
+    }
+    for (Class<?> type : types) {
+      if (type.isAssignableFrom(writtenClass) || writtenClass.isAssignableFrom(type)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Set<Class<?>> collectReachableTypes(Class<?> entityClass) {
+    Metamodel metamodel = entityManagerFactory.getMetamodel();
+    Set<Class<?>> entityClasses = new HashSet<>();
+    metamodel.getEntities().forEach(entityType -> entityClasses.add(entityType.getJavaType()));
+
+    Set<Class<?>> reachable = new LinkedHashSet<>();
+    Deque<Class<?>> queue = new ArrayDeque<>();
+    reachable.add(entityClass);
+    queue.add(entityClass);
+    while (!queue.isEmpty()) {
+      ManagedType<?> managedType = metamodel.managedType(queue.poll());
+      for (Attribute<?, ?> attribute : managedType.getAttributes()) {
+        Class<?> targetType = getTargetType(attribute);
+        if (attribute.isAssociation() && entityClasses.contains(targetType) && reachable.add(targetType)) {
+          queue.add(targetType);
+        }
+      }
+    }
+    return reachable;
+  }
+
+  private static Class<?> getTargetType(Attribute<?, ?> attribute) {
+    return attribute instanceof PluralAttribute ? ((PluralAttribute<?, ?, ?>) attribute).getElementType().getJavaType()
+        : attribute.getJavaType();
+  }
+
+  /**
+   * The ids of a cached page and the total number of the entities
+   */
+  public static final class CachedPage {
+
+    private final List<Object> ids;
+    private final long total;
+    private final long expiresAt;
+
+    private CachedPage(List<Object> ids, long total, long expiresAt) {
+      this.ids = Collections.unmodifiableList(ids);
+      this.total = total;
+      this.expiresAt = expiresAt;
+    }
+
+    public List<Object> getIds() {
+      return ids;
+    }
+
+    public long getTotal() {
+      return total;
+    }
+
+    private boolean isExpired(long now) {
+      return now - expiresAt >= 0;
+    }
+  }
+
+  private static final class CachedProfile {
+
+    private final Set<String> capabilities;
+    private final long expiresAt;
+
+    private CachedProfile(Set<String> capabilities, long expiresAt) {
+      this.capabilities = capabilities;
+      this.expiresAt = expiresAt;
+    }
+
+    private boolean isExpired(long now) {
+      return now - expiresAt >= 0;
+    }
+  }
+
+  private static final class ResultKey {
+
+    private final AclPrincipalFingerprint fingerprint;
+    private final Class<?> entityClass;
+    private final Object specification;
+    private final Object page;
+    private final int hashCode;
+
+    private ResultKey(AclPrincipalFingerprint fingerprint, Class<?> entityClass, Object specification, Object page) {
+      this.fingerprint = fingerprint;
+      this.entityClass = entityClass;
+      this.specification = specification;
+      this.page = page;
+      this.hashCode = Objects.hash(fingerprint, entityClass, specification, page);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof ResultKey)) {
+        return false;
+      }
+      ResultKey other = (ResultKey) obj;
+      return hashCode == other.hashCode && entityClass.equals(other.entityClass)
+          && fingerprint.equals(other.fingerprint) && Objects.equals(specification, other.specification)
+          && Objects.equals(page, other.page);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+
+  private static final class Eviction {
+
+    private final Kind kind;
+    private final Class<?> entityClass;
+
+    private Eviction(Kind kind, Class<?> entityClass) {
+      this.kind = kind;
+      this.entityClass = entityClass;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Eviction)) {
+        return false;
+      }
+      Eviction other = (Eviction) obj;
+      // All the profiles are evicted, regardless of the written type
+      return kind == other.kind && (kind == Kind.PROFILES || entityClass.equals(other.entityClass));
+    }
+
+    @Override
+    public int hashCode() {
+      return kind == Kind.PROFILES ? kind.hashCode() : 31 * kind.hashCode() + entityClass.hashCode();
+    }
+  }
+
+  /**
+   * A property whose value can grant permissions to a specific user
+   */
+  private static final class Relation {
+
+    private final Class<?> entityClass;
+    private final String propertyName;
+    private final String name;
+    private final String query;
+
+    private Relation(Class<?> entityClass, String entityName, String propertyName, String userIdName) {
+      this.entityClass = entityClass;
+      this.propertyName = propertyName;
+      this.name = entityName + "." + propertyName;
+      this.query = "select u." + userIdName + " from " + entityName + " e join e." + propertyName + " u where u."
+          + userIdName + " = :userId";
+    }
+  }
+
+}
@@ -15,9 +15,13 @@
  */
 package com.berrycloud.acl;
 
+import javax.persistence.Query;
+import javax.persistence.criteria.CommonAbstractCriteria;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.From;
+import javax.persistence.criteria.ParameterExpression;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
@@ -27,8 +31,99 @@ import com.berrycloud.acl.search.Search;
 
 public interface AclSpecification extends Specification<Object> {
 
+  /**
+   * The name of the parameter created by {@link #createUserIdParameter(CriteriaBuilder)}
+   */
+  String USER_ID_PARAMETER = "acl_userId";
+
+  /**
+   * The way a permission of an entity type is decided for the current user
+   */
+  enum Outcome {
+    /**
+     * The user has the permission to all the entities (by a role)
+     */
+    GRANTED,
+    /**
+     * The user has no permission to any of the entities (by a role condition or because it's not an ACL user)
+     */
+    DENIED,
+    /**
+     * The permission depends on the entities and the ACL predicates have to be applied
+     */
+    FILTERED
+  }
+
   Predicate toPredicate(Root<?> root, CriteriaQuery<?> query, CriteriaBuilder cb, String permission);
 
+  /**
+   * Same as {@link #toPredicate(Root, CriteriaQuery, CriteriaBuilder, String)} but the id of the current user is
+   * referred by the given expression (typically a parameter) instead of a literal, so the created query can be reused
+   * for any user with the same {@link Outcome}.
+   *
+   * @param root
+   * @param query
+   * @param cb
+   * @param permission
+   * @param userId
+   *          the expression of the id of the current user. If it's null then the id is used as a literal.
+   * @return
+   */
+  Predicate toPredicate(Root<?> root, CriteriaQuery<?> query, CriteriaBuilder cb, String permission,
+      Expression<?> userId);
+
+  /**
+   * Creates a predicate what restricts the given path to the entities the current user has the given permission to. The
+   * ACL joins are placed into an id-subquery (semi-join), so the predicate never multiplies the rows of the query and it
+   * can be used in bulk update and delete criteria too.
+   *
+   * @param from
+   *          the path of the checked entity
+   * @param query
+   *          the criteria the subquery is created for
+   * @param cb
+   * @param permission
+   * @return
+   */
+  Predicate toSubqueryPredicate(From<?, ?> from, CommonAbstractCriteria query, CriteriaBuilder cb, String permission);
+
+  /**
+   * Same as {@link #toSubqueryPredicate(From, CommonAbstractCriteria, CriteriaBuilder, String)} but the id of the
+   * current user is referred by the given expression instead of a literal.
+   */
+  Predicate toSubqueryPredicate(From<?, ?> from, CommonAbstractCriteria query, CriteriaBuilder cb, String permission,
+      Expression<?> userId);
+
+  /**
+   * Creates the parameter of the id of the current user for the {@code userId} argument of the predicate factory
+   * methods. The parameter has to be bound by {@link #bindUserId(Query)} after the query is created. Returns null if
+   * the current user is not an ACL user (so the predicates never refer to its id).
+   *
+   * @param cb
+   * @return
+   */
+  ParameterExpression<Object> createUserIdParameter(CriteriaBuilder cb);
+
+  /**
+   * Binds the id of the current user to the given query if it has the parameter created by
+   * {@link #createUserIdParameter(CriteriaBuilder)}.
+   *
+   * @param query
+   * @return the given query
+   */
+  <Q extends Query> Q bindUserId(Q query);
+
+  /**
+   * Returns how the given permission of the given entity type is decided for the current user. The shape of the ACL
+   * predicates depends only on this outcome (and on the permission), so it can be used as a cache key of the created
+   * queries.
+   *
+   * @param javaType
+   * @param permission
+   * @return
+   */
+  Outcome getOutcome(Class<?> javaType, String permission);
+
   /**
    * Checks whether this new entity can be created based on the Acl rules. (Does the current user have create permission
    * on this entity type or not.)
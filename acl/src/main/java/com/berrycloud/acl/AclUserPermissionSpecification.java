@@ -23,15 +23,20 @@ import static com.berrycloud.acl.AclConstants.READ_PERMISSION;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.persistence.Parameter;
+import javax.persistence.Query;
+import javax.persistence.criteria.CommonAbstractCriteria;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.From;
 import javax.persistence.criteria.Join;
 import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.ParameterExpression;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 import javax.persistence.criteria.Selection;
+import javax.persistence.criteria.Subquery;
 import javax.persistence.metamodel.SingularAttribute;
 
 import org.slf4j.Logger;
@@ -140,8 +145,14 @@ public class AclUserPermissionSpecification implements AclSpecification {
   }
 
   @Override
-  @SuppressWarnings("unchecked")
   public Predicate toPredicate(Root<?> root, CriteriaQuery<?> query, CriteriaBuilder cb, String permission) {
+    return toPredicate(root, query, cb, permission, null);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Predicate toPredicate(Root<?> root, CriteriaQuery<?> query, CriteriaBuilder cb, String permission,
+      Expression<?> userId) {
 
     From<?, ?> from = root;
     // If the selection is NOT the root we have to apply all of the predicates to the selection
@@ -150,32 +161,116 @@ public class AclUserPermissionSpecification implements AclSpecification {
       from = (From<Object, Object>) selection;
     }
 
+    Predicate rolePredicate = createRolePredicate(from, cb, permission);
+    if (rolePredicate != null) {
+      return rolePredicate;
+    }
+
+    LOG.trace("Creating predicates for {}", from.getJavaType());
+
+    query.distinct(true);
+    return toSubPredicate(from, cb, getUserId(cb, userId), permission, maxDepth);
+  }
+
+  @Override
+  public Predicate toSubqueryPredicate(From<?, ?> from, CommonAbstractCriteria query, CriteriaBuilder cb,
+      String permission) {
+    return toSubqueryPredicate(from, query, cb, permission, null);
+  }
+
+  @Override
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public Predicate toSubqueryPredicate(From<?, ?> from, CommonAbstractCriteria query, CriteriaBuilder cb,
+      String permission, Expression<?> userId) {
+
+    Predicate rolePredicate = createRolePredicate(from, cb, permission);
+    if (rolePredicate != null) {
+      return rolePredicate;
+    }
+
+    LOG.trace("Creating subquery predicates for {}", from.getJavaType());
+
+    SingularAttribute idAttribute = aclMetaData.getAclEntityMetaData(from.getJavaType()).getIdAttribute();
+    Subquery<Object> subquery = query.subquery(idAttribute.getJavaType());
+    Root<?> subRoot = subquery.from(from.getJavaType());
+    subquery.select(subRoot.get(idAttribute));
+    subquery.where(toSubPredicate(subRoot, cb, getUserId(cb, userId), permission, maxDepth));
+
+    return from.get(idAttribute).in(subquery);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public ParameterExpression<Object> createUserIdParameter(CriteriaBuilder cb) {
+    AclUserDetails userDetails = AclUserDetailsService.getAclUserDetails();
+    return userDetails == null ? null
+        : (ParameterExpression<Object>) cb.parameter(userDetails.getUserId().getClass(), USER_ID_PARAMETER);
+  }
+
+  @Override
+  public <Q extends Query> Q bindUserId(Q query) {
+    for (Parameter<?> parameter : query.getParameters()) {
+      if (USER_ID_PARAMETER.equals(parameter.getName())) {
+        query.setParameter(USER_ID_PARAMETER, AclUserDetailsService.getAclUserDetails().getUserId());
+        break;
+      }
+    }
+    return query;
+  }
+
+  @Override
+  public Outcome getOutcome(Class<?> javaType, String permission) {
+    AclEntityMetaData metaData = aclMetaData.getAclEntityMetaData(javaType);
+
     // Rules from @AclRolePermission annotations
-    if (hasRolePermission(from, permission)) {
+    if (hasRolePermission(metaData, permission)) {
       LOG.trace("Access granted via @AclRolePermission: {}", AclUserDetailsService.getUsername());
-      return cb.conjunction();
+      return Outcome.GRANTED;
     }
 
     // Rules from @AclRoleCondition annotations
-    if (!hasRoleCondition(from, permission)) {
+    if (!hasRoleCondition(metaData, permission)) {
       LOG.trace("Access denied via @AclRoleCondition: {}", AclUserDetailsService.getUsername());
-      return cb.disjunction();
+      return Outcome.DENIED;
     }
 
     // Gather the UserDetails of the current user
-    AclUserDetails aclUserDetails = AclUserDetailsService.getAclUserDetails();
-    if (aclUserDetails == null) {
+    if (AclUserDetailsService.getAclUserDetails() == null) {
       LOG.trace("Access denied for non-Acl user");
-      return cb.disjunction();
+      return Outcome.DENIED;
     }
 
-    LOG.trace("Creating predicates for {}", from.getJavaType());
+    return Outcome.FILTERED;
+  }
 
-    query.distinct(true);
-    return toSubPredicate(from, cb, aclUserDetails.getUserId(), permission, maxDepth);
+  /**
+   * Creates the predicate for the role-based rules and for the non-Acl users. Returns null if the permission depends on
+   * the entities themselves.
+   *
+   * @param from
+   * @param cb
+   * @param permission
+   * @return
+   */
+  private Predicate createRolePredicate(From<?, ?> from, CriteriaBuilder cb, String permission) {
+    switch (getOutcome(from.getJavaType(), permission)) {
+    case GRANTED:
+      return cb.conjunction();
+    case DENIED:
+      return cb.disjunction();
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * Returns the given expression of the user id or the id of the current user as a literal.
+   */
+  private Expression<?> getUserId(CriteriaBuilder cb, Expression<?> userId) {
+    return userId != null ? userId : cb.literal(AclUserDetailsService.getAclUserDetails().getUserId());
   }
 
-  private Predicate toSubPredicate(From<?, ?> from, CriteriaBuilder cb, Object userId, String permission, int depth) {
+  private Predicate toSubPredicate(From<?, ?> from, CriteriaBuilder cb, Expression<?> userId, String permission, int depth) {
     LOG.trace("Checking {} for '{}' permission", from.getJavaType(), permission);
 
     List<Predicate> predicates = new ArrayList<>();
@@ -195,17 +290,6 @@ public class AclUserPermissionSpecification implements AclSpecification {
     return cb.or(predicates.toArray(new Predicate[predicates.size()]));
   }
 
-  /**
-   * Checks if the current user has any role which grants automatic permission for this domain type.
-   *
-   * @param from
-   * @param permission
-   * @return
-   */
-  private boolean hasRolePermission(From<?, ?> from, String permission) {
-    return hasRolePermission(aclMetaData.getAclEntityMetaData(from.getJavaType()), permission);
-  }
-
   /**
    * Checks if the current user has any role which grants automatic permission for this domain type.
    * 
@@ -223,17 +307,6 @@ public class AclUserPermissionSpecification implements AclSpecification {
     return false;
   }
 
-  /**
-   * Checks role preconditions for the current user.
-   *
-   * @param from
-   * @param permission
-   * @return
-   */
-  private boolean hasRoleCondition(From<?, ?> from, String permission) {
-    return hasRoleCondition(aclMetaData.getAclEntityMetaData(from.getJavaType()), permission);
-  }
-
   /**
    * Checks role preconditions for the current user.
    * 
@@ -270,7 +343,7 @@ public class AclUserPermissionSpecification implements AclSpecification {
    * Creates a predicate for current user to its own entity
    *
    */
-  private List<Predicate> createSelfPredicates(From<?, ?> from, CriteriaBuilder cb, Object userId, String permission) {
+  private List<Predicate> createSelfPredicates(From<?, ?> from, CriteriaBuilder cb, Expression<?> userId, String permission) {
     List<Predicate> predicates = new ArrayList<>();
     if (AclUser.class.isAssignableFrom(from.getJavaType())) {
       if (aclMetaData.getSelfPermissions().hasPermission(permission)) {
@@ -288,7 +361,7 @@ public class AclUserPermissionSpecification implements AclSpecification {
    *
    * @param permission
    */
-  private List<Predicate> createOwnerPredicates(From<?, ?> from, CriteriaBuilder cb, Object userId, String permission,
+  private List<Predicate> createOwnerPredicates(From<?, ?> from, CriteriaBuilder cb, Expression<?> userId, String permission,
       boolean ownerGroup) {
     List<Predicate> predicates = new ArrayList<>();
     AclEntityMetaData metaData = aclMetaData.getAclEntityMetaData(from.getJavaType());
@@ -313,7 +386,7 @@ public class AclUserPermissionSpecification implements AclSpecification {
    *
    * @param permission
    */
-  private List<Predicate> createOwnerGroupPredicates(From<?, ?> from, CriteriaBuilder cb, Object userId,
+  private List<Predicate> createOwnerGroupPredicates(From<?, ?> from, CriteriaBuilder cb, Expression<?> userId,
       String permission) {
     List<Predicate> predicates = new ArrayList<>();
     AclEntityMetaData metaData = aclMetaData.getAclEntityMetaData(from.getJavaType());
@@ -333,7 +406,7 @@ public class AclUserPermissionSpecification implements AclSpecification {
    * @param permission
    *
    */
-  private List<Predicate> createParentPredicates(From<?, ?> from, CriteriaBuilder cb, Object userId, String permission,
+  private List<Predicate> createParentPredicates(From<?, ?> from, CriteriaBuilder cb, Expression<?> userId, String permission,
       int depth) {
     List<Predicate> predicates = new ArrayList<>();
     AclEntityMetaData metaData = aclMetaData.getAclEntityMetaData(from.getJavaType());
@@ -355,7 +428,7 @@ public class AclUserPermissionSpecification implements AclSpecification {
    * Creates predicates for permissionLinks
    *
    */
-  private List<Predicate> createPermissionLinkPredicates(From<?, ?> from, CriteriaBuilder cb, Object userId,
+  private List<Predicate> createPermissionLinkPredicates(From<?, ?> from, CriteriaBuilder cb, Expression<?> userId,
       String permission) {
     List<Predicate> predicates = new ArrayList<>();
 
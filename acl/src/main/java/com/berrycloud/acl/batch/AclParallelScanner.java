@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.security.concurrent.DelegatingSecurityContextCallable;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+import com.berrycloud.acl.repository.AclJpaRepository;
+
+/**
+ * Processes all the entities the current user has a given permission to on a pool of worker threads.
+ * <p>
+ * The permitted id space is walked in ascending order by {@link AclJpaRepository#findIdsAfter} and split into
+ * partitions. Every partition is loaded and processed in its own transaction on a worker thread, which inherits the
+ * {@link SecurityContext} of the calling thread, so the ACL is evaluated for the same principal. The number of the
+ * partitions waiting for a free worker is limited, so the id space is never read ahead more than the workers can
+ * process.
+ *
+ * @author István Rátkai (Selindek)
+ */
+public class AclParallelScanner {
+
+  private static Logger LOG = LoggerFactory.getLogger(AclParallelScanner.class);
+
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  /**
+   * Default number of worker threads. Zero or negative value means the number of available processors. It should not be
+   * higher than the size of the connection pool.
+   */
+  @Value("${spring.data.jpa.acl.scan.parallelism:0}")
+  private int parallelism = 0;
+
+  /**
+   * Default number of entities processed in one partition (and in one transaction)
+   */
+  @Value("${spring.data.jpa.acl.scan.partition-size:500}")
+  private int partitionSize = 500;
+
+  /**
+   * Processes all the entities the current user has the given permission to with the default parallelism and partition
+   * size.
+   *
+   * @param repository
+   *          the repository of the entities
+   * @param permission
+   *          the permission we check against
+   * @param processor
+   *          called with the entities of each partition. It must be thread-safe.
+   * @return the number of the processed entities
+   */
+  public <T, ID> long scan(AclJpaRepository<T, ID> repository, String permission, Consumer<List<T>> processor) {
+    return scan(repository, null, permission, processor);
+  }
+
+  /**
+   * Processes all the entities matching the given specification the current user has the given permission to with the
+   * default parallelism and partition size.
+   *
+   * @param repository
+   *          the repository of the entities
+   * @param spec
+   *          can be {@literal null}
+   * @param permission
+   *          the permission we check against
+   * @param processor
+   *          called with the entities of each partition. It must be thread-safe.
+   * @return the number of the processed entities
+   */
+  public <T, ID> long scan(AclJpaRepository<T, ID> repository, Specification<T> spec, String permission,
+      Consumer<List<T>> processor) {
+    return scan(repository, spec, permission, getParallelism(), partitionSize, processor);
+  }
+
+  /**
+   * Processes all the entities matching the given specification the current user has the given permission to.
+   *
+   * @param repository
+   *          the repository of the entities
+   * @param spec
+   *          can be {@literal null}
+   * @param permission
+   *          the permission we check against
+   * @param parallelism
+   *          the number of the worker threads
+   * @param partitionSize
+   *          the maximum number of entities processed in one transaction
+   * @param processor
+   *          called with the entities of each partition. It must be thread-safe.
+   * @return the number of the processed entities
+   */
+  public <T, ID> long scan(AclJpaRepository<T, ID> repository, Specification<T> spec, String permission,
+      int parallelism, int partitionSize, Consumer<List<T>> processor) {
+    Assert.notNull(repository, "The repository must not be null!");
+    Assert.notNull(processor, "The processor must not be null!");
+    Assert.isTrue(parallelism > 0, "The parallelism must be positive!");
+    Assert.isTrue(partitionSize > 0, "The partition size must be positive!");
+
+    SecurityContext securityContext = SecurityContextHolder.getContext();
+    TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+    transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+    // Back-pressure: running partitions plus the ones waiting in the queue
+    Semaphore slots = new Semaphore(parallelism * 2);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Future<Integer>> futures = new ArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ScannerThreadFactory());
+
+    try {
+      ID lastId = null;
+      while (failure.get() == null) {
+        List<ID> ids = repository.findIdsAfter(spec, lastId, partitionSize, permission);
+        if (ids.isEmpty()) {
+          break;
+        }
+        lastId = ids.get(ids.size() - 1);
+        slots.acquire();
+
+        futures.add(executor.submit(new DelegatingSecurityContextCallable<>(() -> {
+          try {
+            // The queued partitions are dropped after a failure
+            if (failure.get() != null) {
+              return 0;
+            }
+            return transactionTemplate.execute(status -> {
+              List<T> entities = repository.findAllById(ids, permission);
+              processor.accept(entities);
+              return entities.size();
+            });
+          } catch (RuntimeException | Error e) {
+            failure.compareAndSet(null, e);
+            throw e;
+          } finally {
+            slots.release();
+          }
+        }, securityContext)));
+
+        if (ids.size() < partitionSize) {
+          break;
+        }
+      }
+
+      long count = 0;
+      for (Future<Integer> future : futures) {
+        count += future.get();
+      }
+      LOG.debug("{} entities were processed in {} partitions", count, futures.size());
+      return count;
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Parallel scan was interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new IllegalStateException("Parallel scan failed", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public int getParallelism() {
+    return parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+  }
+
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  public int getPartitionSize() {
+    return partitionSize;
+  }
+
+  public void setPartitionSize(int partitionSize) {
+    this.partitionSize = partitionSize;
+  }
+
+  private static class ScannerThreadFactory implements ThreadFactory {
+
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+    private final AtomicInteger threadNumber = new AtomicInteger();
+    private final String prefix = "acl-scan-" + POOL_NUMBER.incrementAndGet() + "-";
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+}
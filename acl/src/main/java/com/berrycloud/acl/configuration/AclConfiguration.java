@@ -17,23 +17,36 @@ package com.berrycloud.acl.configuration;
 
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.core.env.Environment;
 import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
 import org.springframework.security.access.PermissionEvaluator;
+import org.springframework.security.access.expression.method.MethodSecurityExpressionHandler;
 import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.core.userdetails.UserDetailsService;
 
+import com.berrycloud.acl.AclDecisionCache;
+import com.berrycloud.acl.AclFlushVerifier;
+import com.berrycloud.acl.AclInMemoryEvaluator;
+import com.berrycloud.acl.AclInvalidationBus;
 import com.berrycloud.acl.AclLogicImpl;
 import com.berrycloud.acl.AclPersistenceUnitPostProcessor;
+import com.berrycloud.acl.AclQueryCache;
+import com.berrycloud.acl.AclSharedDecisionCache;
+import com.berrycloud.acl.AclSharedResultCache;
 import com.berrycloud.acl.AclSpecification;
 import com.berrycloud.acl.AclUserPermissionSpecification;
+import com.berrycloud.acl.batch.AclParallelScanner;
 import com.berrycloud.acl.configuration.rest.AclRepositoryRestConfiguration;
 import com.berrycloud.acl.data.AclMetaData;
 import com.berrycloud.acl.security.SimpleAclUserDetailsService;
+import com.berrycloud.acl.security.access.AclMethodSecurityExpressionHandler;
 import com.berrycloud.acl.security.access.AclPermissionEvaluator;
 
 /**
@@ -47,15 +60,18 @@ import com.berrycloud.acl.security.access.AclPermissionEvaluator;
 @Import(AclRepositoryRestConfiguration.class)
 public class AclConfiguration {
 
+  private static final String INVALIDATION_BUS_ENABLED = "spring.data.jpa.acl.invalidation-bus.enabled";
+
   @Bean
-  public BeanPostProcessor localContainerEntityManagerFactoryBeanPostProcessor() {
+  public BeanPostProcessor localContainerEntityManagerFactoryBeanPostProcessor(Environment environment) {
+    boolean invalidationEvents = environment.getProperty(INVALIDATION_BUS_ENABLED, Boolean.class, false);
     return new BeanPostProcessor() {
       @Override
 
       public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
         if (bean instanceof LocalContainerEntityManagerFactoryBean) {
-          ((LocalContainerEntityManagerFactoryBean) bean)
-              .setPersistenceUnitPostProcessors(new AclPersistenceUnitPostProcessor());
+          LocalContainerEntityManagerFactoryBean factoryBean = (LocalContainerEntityManagerFactoryBean) bean;
+          factoryBean.setPersistenceUnitPostProcessors(new AclPersistenceUnitPostProcessor(invalidationEvents));
         }
         return bean;
       }
@@ -68,12 +84,19 @@ public class AclConfiguration {
     return new SimpleAclUserDetailsService();
   }
 
-  @Bean
+  // The original bean name is kept as an alias for the existing references
+  @Bean(name = { "aclPermissionEvaluator", "AclPermissionEvaluator" })
   @ConditionalOnMissingBean(PermissionEvaluator.class)
-  public AclPermissionEvaluator AclPermissionEvaluator() {
+  public AclPermissionEvaluator aclPermissionEvaluator() {
     return new AclPermissionEvaluator();
   }
 
+  @Bean
+  @ConditionalOnMissingBean(MethodSecurityExpressionHandler.class)
+  public AclMethodSecurityExpressionHandler aclMethodSecurityExpressionHandler() {
+    return new AclMethodSecurityExpressionHandler();
+  }
+
   @Bean
   public AclLogicImpl aclLogic() {
     return new AclLogicImpl();
@@ -89,4 +112,60 @@ public class AclConfiguration {
     return new AclUserPermissionSpecification();
   }
 
+  @Bean
+  @ConditionalOnClass(name = "org.hibernate.event.spi.FlushEntityEventListener")
+  @ConditionalOnMissingBean(AclFlushVerifier.class)
+  public AclFlushVerifier aclFlushVerifier() {
+    return new AclFlushVerifier();
+  }
+
+  @Bean
+  @ConditionalOnClass(name = "org.hibernate.event.spi.PostUpdateEventListener")
+  @ConditionalOnMissingBean(AclDecisionCache.class)
+  public AclDecisionCache aclDecisionCache() {
+    return new AclDecisionCache();
+  }
+
+  @Bean
+  @ConditionalOnClass(name = "org.hibernate.event.spi.PostUpdateEventListener")
+  @ConditionalOnMissingBean(AclSharedDecisionCache.class)
+  public AclSharedDecisionCache aclSharedDecisionCache() {
+    return new AclSharedDecisionCache();
+  }
+
+  @Bean
+  @ConditionalOnClass(name = "org.hibernate.event.spi.PostUpdateEventListener")
+  @ConditionalOnMissingBean(AclSharedResultCache.class)
+  public AclSharedResultCache aclSharedResultCache() {
+    return new AclSharedResultCache();
+  }
+
+  @Bean
+  @ConditionalOnClass(name = "org.hibernate.StatelessSession")
+  @ConditionalOnProperty(INVALIDATION_BUS_ENABLED)
+  @ConditionalOnMissingBean(AclInvalidationBus.class)
+  public AclInvalidationBus aclInvalidationBus() {
+    return new AclInvalidationBus();
+  }
+
+  @Bean
+  @ConditionalOnClass(name = "org.hibernate.query.Query")
+  @ConditionalOnMissingBean(AclQueryCache.class)
+  public AclQueryCache aclQueryCache() {
+    return new AclQueryCache();
+  }
+
+  @Bean
+  @ConditionalOnClass(name = "org.hibernate.Hibernate")
+  @ConditionalOnMissingBean(AclInMemoryEvaluator.class)
+  public AclInMemoryEvaluator aclInMemoryEvaluator() {
+    return new AclInMemoryEvaluator();
+  }
+
+  @Bean
+  @ConditionalOnMissingBean(AclParallelScanner.class)
+  public AclParallelScanner aclParallelScanner() {
+    return new AclParallelScanner();
+  }
+
 }
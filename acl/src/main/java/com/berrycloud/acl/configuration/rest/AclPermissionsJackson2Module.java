@@ -0,0 +1,262 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl.configuration.rest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.data.rest.webmvc.PersistentEntityResource;
+import org.springframework.hateoas.Resources;
+import org.springframework.util.StringUtils;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import com.berrycloud.acl.security.access.AclPermissionEvaluator;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.BeanProperty;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.ser.BeanSerializerModifier;
+import com.fasterxml.jackson.databind.ser.ContextualSerializer;
+import com.fasterxml.jackson.databind.ser.ResolvableSerializer;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * Jackson module what adds a {@code _permissions} block to the entity resources of the REST responses if the request
+ * has a {@value #PERMISSIONS_PARAMETER} parameter (e.g. {@code GET /documents?permissions=update,delete}). The block
+ * contains the requested permissions the current user has to the entity, so the clients can hide the controls of the
+ * forbidden operations without any extra requests.
+ * <p>
+ * The permissions of all the entities of a collection resource are checked by
+ * {@link AclPermissionEvaluator#permissionsFor} in one query per entity type before the collection is rendered. Every
+ * requested permission adds a CASE expression to that query, so the duplicated permissions are ignored and the requests
+ * with more than {@value #MAX_REQUESTED_PERMISSIONS} distinct ones are rejected with {@code 400 Bad Request} (see
+ * {@link TooManyRequestedPermissionsException}).
+ *
+ * @author István Rátkai (Selindek)
+ */
+@SuppressWarnings("serial")
+public class AclPermissionsJackson2Module extends SimpleModule {
+
+  public static final String PERMISSIONS_PARAMETER = "permissions";
+  public static final String PERMISSIONS_PROPERTY = "_permissions";
+  public static final int MAX_REQUESTED_PERMISSIONS = 8;
+
+  private static final String PERMISSIONS_ATTRIBUTE = AclPermissionsJackson2Module.class.getName() + ".permissions";
+
+  public AclPermissionsJackson2Module(ObjectProvider<AclPermissionEvaluator> permissionEvaluator) {
+    super("acl-permissions-module");
+
+    setSerializerModifier(new BeanSerializerModifier() {
+      @Override
+      @SuppressWarnings("unchecked")
+      public JsonSerializer<?> modifySerializer(SerializationConfig config, BeanDescription beanDesc,
+          JsonSerializer<?> serializer) {
+        if (PersistentEntityResource.class.isAssignableFrom(beanDesc.getBeanClass())) {
+          return new PermissionsSerializer((JsonSerializer<Object>) serializer, permissionEvaluator);
+        }
+        if (Resources.class.isAssignableFrom(beanDesc.getBeanClass())) {
+          return new CollectionPermissionsSerializer((JsonSerializer<Object>) serializer, permissionEvaluator);
+        }
+        return serializer;
+      }
+    });
+  }
+
+  /**
+   * Returns the distinct permissions requested by the current request or null if there is no such request parameter.
+   */
+  private static List<String> getRequestedPermissions() {
+    RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+    if (!(attributes instanceof ServletRequestAttributes)) {
+      return null;
+    }
+    return getRequestedPermissions(((ServletRequestAttributes) attributes).getRequest());
+  }
+
+  /**
+   * Returns the distinct permissions requested by the given request or null if there is no such request parameter.
+   *
+   * @throws TooManyRequestedPermissionsException
+   *           if more than {@value #MAX_REQUESTED_PERMISSIONS} distinct permissions are requested
+   */
+  static List<String> getRequestedPermissions(HttpServletRequest request) {
+    String parameter = request.getParameter(PERMISSIONS_PARAMETER);
+    if (parameter == null) {
+      return null;
+    }
+    Set<String> permissions = new LinkedHashSet<>();
+    for (String permission : StringUtils.commaDelimitedListToStringArray(parameter)) {
+      if (StringUtils.hasText(permission)) {
+        permissions.add(permission.trim());
+      }
+    }
+    if (permissions.size() > MAX_REQUESTED_PERMISSIONS) {
+      throw new TooManyRequestedPermissionsException(permissions.size());
+    }
+    return new ArrayList<>(permissions);
+  }
+
+  /**
+   * Checks the permissions of the given entity resources. The entities are grouped by their type, so it needs one query
+   * per type.
+   */
+  private static Map<Object, Set<String>> checkPermissions(AclPermissionEvaluator permissionEvaluator,
+      Iterable<?> resources, List<String> permissions) {
+
+    Map<Class<?>, Map<Object, Object>> entitiesByType = new LinkedHashMap<>();
+    for (Object element : resources) {
+      if (element instanceof PersistentEntityResource) {
+        PersistentEntityResource resource = (PersistentEntityResource) element;
+        Object entity = resource.getContent();
+        Object id = resource.getPersistentEntity().getIdentifierAccessor(entity).getIdentifier();
+        entitiesByType.computeIfAbsent(resource.getPersistentEntity().getType(), type -> new LinkedHashMap<>())
+            .put(id, entity);
+      }
+    }
+
+    Map<Object, Set<String>> result = new IdentityHashMap<>();
+    for (Entry<Class<?>, Map<Object, Object>> entry : entitiesByType.entrySet()) {
+      Map<Object, Set<String>> permitted = permissionEvaluator.permissionsFor(entry.getKey(),
+          entry.getValue().keySet(), permissions);
+      for (Entry<Object, Object> entity : entry.getValue().entrySet()) {
+        result.put(entity.getValue(), permitted.getOrDefault(entity.getKey(), Collections.emptySet()));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Base class of the serializers what wrap the original serializer of a resource
+   */
+  private abstract static class DelegatingSerializer extends JsonSerializer<Object>
+      implements ContextualSerializer, ResolvableSerializer {
+
+    protected final JsonSerializer<Object> delegate;
+    protected final ObjectProvider<AclPermissionEvaluator> permissionEvaluator;
+
+    DelegatingSerializer(JsonSerializer<Object> delegate, ObjectProvider<AclPermissionEvaluator> permissionEvaluator) {
+      this.delegate = delegate;
+      this.permissionEvaluator = permissionEvaluator;
+    }
+
+    protected abstract DelegatingSerializer withDelegate(JsonSerializer<Object> delegate);
+
+    @Override
+    public void resolve(SerializerProvider provider) throws JsonMappingException {
+      if (delegate instanceof ResolvableSerializer) {
+        ((ResolvableSerializer) delegate).resolve(provider);
+      }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public JsonSerializer<?> createContextual(SerializerProvider provider, BeanProperty property)
+        throws JsonMappingException {
+      if (!(delegate instanceof ContextualSerializer)) {
+        return this;
+      }
+      JsonSerializer<?> contextual = ((ContextualSerializer) delegate).createContextual(provider, property);
+      return contextual == delegate ? this : withDelegate((JsonSerializer<Object>) contextual);
+    }
+  }
+
+  /**
+   * Checks the permissions of the entities of a collection resource before it's rendered.
+   */
+  private static class CollectionPermissionsSerializer extends DelegatingSerializer {
+
+    CollectionPermissionsSerializer(JsonSerializer<Object> delegate,
+        ObjectProvider<AclPermissionEvaluator> permissionEvaluator) {
+      super(delegate, permissionEvaluator);
+    }
+
+    @Override
+    protected DelegatingSerializer withDelegate(JsonSerializer<Object> delegate) {
+      return new CollectionPermissionsSerializer(delegate, permissionEvaluator);
+    }
+
+    @Override
+    public void serialize(Object value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+      List<String> permissions = getRequestedPermissions();
+      AclPermissionEvaluator evaluator = permissionEvaluator.getIfAvailable();
+      if (permissions != null && evaluator != null && provider.getAttribute(PERMISSIONS_ATTRIBUTE) == null) {
+        provider.setAttribute(PERMISSIONS_ATTRIBUTE,
+            checkPermissions(evaluator, ((Resources<?>) value).getContent(), permissions));
+      }
+      delegate.serialize(value, gen, provider);
+    }
+  }
+
+  /**
+   * Adds the {@code _permissions} block to the rendered entity resource.
+   */
+  private static class PermissionsSerializer extends DelegatingSerializer {
+
+    PermissionsSerializer(JsonSerializer<Object> delegate, ObjectProvider<AclPermissionEvaluator> permissionEvaluator) {
+      super(delegate, permissionEvaluator);
+    }
+
+    @Override
+    protected DelegatingSerializer withDelegate(JsonSerializer<Object> delegate) {
+      return new PermissionsSerializer(delegate, permissionEvaluator);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void serialize(Object value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+      List<String> permissions = getRequestedPermissions();
+      AclPermissionEvaluator evaluator = permissionEvaluator.getIfAvailable();
+      if (permissions == null || evaluator == null) {
+        delegate.serialize(value, gen, provider);
+        return;
+      }
+
+      Object entity = ((PersistentEntityResource) value).getContent();
+      Map<Object, Set<String>> checked = (Map<Object, Set<String>>) provider.getAttribute(PERMISSIONS_ATTRIBUTE);
+      if (checked == null || !checked.containsKey(entity)) {
+        // A single resource (or an embedded one what was not checked with its collection)
+        checked = checkPermissions(evaluator, Collections.singletonList(value), permissions);
+      }
+
+      TokenBuffer buffer = new TokenBuffer(gen.getCodec(), false);
+      delegate.serialize(value, buffer, provider);
+      ObjectNode node = buffer.asParser().readValueAsTree();
+      ArrayNode permissionsNode = node.putArray(PERMISSIONS_PROPERTY);
+      checked.getOrDefault(entity, Collections.emptySet()).forEach(permissionsNode::add);
+      gen.writeTree(node);
+    }
+  }
+
+}
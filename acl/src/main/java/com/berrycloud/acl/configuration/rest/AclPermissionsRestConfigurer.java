@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl.configuration.rest;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.data.rest.webmvc.config.RepositoryRestConfigurer;
+
+import com.berrycloud.acl.security.access.AclPermissionEvaluator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Registers the {@link AclPermissionsJackson2Module} to the object mappers of Spring Data REST.
+ *
+ * @author István Rátkai (Selindek)
+ */
+class AclPermissionsRestConfigurer implements RepositoryRestConfigurer {
+
+  private final ObjectProvider<AclPermissionEvaluator> permissionEvaluator;
+
+  AclPermissionsRestConfigurer(ObjectProvider<AclPermissionEvaluator> permissionEvaluator) {
+    this.permissionEvaluator = permissionEvaluator;
+  }
+
+  @Override
+  public void configureJacksonObjectMapper(ObjectMapper objectMapper) {
+    objectMapper.registerModule(new AclPermissionsJackson2Module(permissionEvaluator));
+  }
+
+}
@@ -56,7 +56,7 @@ import com.berrycloud.acl.search.SearchHandlerMethodArgumentResolver;
 @Configuration
 @ConditionalOnClass(value = RepositoryRestMvcConfiguration.class)
 @EnableConfigurationProperties(RepositoryRestProperties.class)
-@Import({ SpringBootRepositoryRestConfigurer.class })
+@Import({ SpringBootRepositoryRestConfigurer.class, AclPermissionsRestConfigurer.class })
 public class AclRepositoryRestConfiguration extends RepositoryRestMvcConfiguration {
 
   ApplicationContext applicationContext;
@@ -100,7 +100,7 @@ public class AclRepositoryRestConfiguration extends RepositoryRestMvcConfigurati
 
   /**
    * By overriding this method we can exclude the original {@link RepositoryPropertyReferenceController} from the
-   * handler-mapping.
+   * handler-mapping. The {@link AclPermissionsParameterInterceptor} is added to both of the handler-mappings.
    */
   @Override
   public DelegatingHandlerMapping restHandlerMapping() {
@@ -116,11 +116,13 @@ public class AclRepositoryRestConfiguration extends RepositoryRestMvcConfigurati
       }
     };
     repositoryMapping.setJpaHelper(jpaHelper());
+    repositoryMapping.setInterceptors(new AclPermissionsParameterInterceptor());
     repositoryMapping.setApplicationContext(applicationContext);
     repositoryMapping.setCorsConfigurations(corsConfigurations);
     repositoryMapping.afterPropertiesSet();
 
     BasePathAwareHandlerMapping basePathMapping = new BasePathAwareHandlerMapping(repositoryRestConfiguration());
+    basePathMapping.setInterceptors(new AclPermissionsParameterInterceptor());
     basePathMapping.setApplicationContext(applicationContext);
     basePathMapping.setCorsConfigurations(corsConfigurations);
     basePathMapping.afterPropertiesSet();
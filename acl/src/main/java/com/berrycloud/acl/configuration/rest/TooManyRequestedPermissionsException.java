@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl.configuration.rest;
+
+/**
+ * Thrown if a request asks for more distinct permissions in its
+ * {@value AclPermissionsJackson2Module#PERMISSIONS_PARAMETER} parameter than
+ * {@value AclPermissionsJackson2Module#MAX_REQUESTED_PERMISSIONS}. It's rendered as {@code 400 Bad Request}.
+ *
+ * @author István Rátkai (Selindek)
+ */
+public class TooManyRequestedPermissionsException extends RuntimeException {
+
+  private static final long serialVersionUID = -2361495046826253104L;
+
+  public TooManyRequestedPermissionsException(int requested) {
+    super("At most " + AclPermissionsJackson2Module.MAX_REQUESTED_PERMISSIONS
+        + " distinct permissions can be requested at once, but " + requested + " were requested.");
+  }
+
+}
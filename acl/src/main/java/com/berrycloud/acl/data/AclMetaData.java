@@ -17,6 +17,7 @@ package com.berrycloud.acl.data;
 
 import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A storage class containing all ACL metadata for all the managed entities and for the logic itself. The data is
@@ -41,4 +42,11 @@ public class AclMetaData {
   public AclEntityMetaData getAclEntityMetaData(Class<?> entityClass) {
     return metaDataMap.get(entityClass);
   }
+
+  /**
+   * Returns the classes of all the entities the metadata was created for
+   */
+  public Set<Class<?>> getEntityClasses() {
+    return metaDataMap.keySet();
+  }
 }
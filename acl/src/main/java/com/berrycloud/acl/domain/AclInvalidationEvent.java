@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl.domain;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.springframework.core.style.ToStringCreator;
+
+import com.berrycloud.acl.AclInvalidationBus;
+
+/**
+ * An ACL cache invalidation in the outbox table of the {@link AclInvalidationBus}. The ids are assigned by the database
+ * in insertion order, so the nodes can poll the new events by their ids.
+ *
+ * @author István Rátkai (Selindek)
+ */
+@Entity
+@Table(name = "acl_invalidation_event")
+public class AclInvalidationEvent {
+
+	public enum Kind {
+		/**
+		 * The decisions of an entity (and its descendant types)
+		 */
+		ENTITY,
+		/**
+		 * The decisions of a new entity (cached before it was created)
+		 */
+		NEW_ENTITY,
+		/**
+		 * All the decisions of an entity type (and its descendant types)
+		 */
+		TYPE,
+		/**
+		 * All the decisions of a user (or of all the users if the id is null)
+		 */
+		USER,
+		/**
+		 * The shared query results depending on an entity type
+		 */
+		RESULTS,
+		/**
+		 * All the capability profiles of the users
+		 */
+		PROFILES
+	}
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private Long id;
+
+	@Column(nullable = false, length = 36)
+	private String origin;
+
+	@Enumerated(EnumType.STRING)
+	@Column(nullable = false, length = 16)
+	private Kind kind;
+
+	@Column(nullable = false)
+	private String entityType;
+
+	private String entityId;
+
+	@Column(nullable = false)
+	private long created;
+
+	public AclInvalidationEvent() {
+	}
+
+	public AclInvalidationEvent(Kind kind, Class<?> entityType, Object entityId) {
+		this.kind = kind;
+		this.entityType = entityType.getName();
+		this.entityId = entityId == null ? null : entityId.toString();
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public String getOrigin() {
+		return origin;
+	}
+
+	public void setOrigin(String origin) {
+		this.origin = origin;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public void setKind(Kind kind) {
+		this.kind = kind;
+	}
+
+	public String getEntityType() {
+		return entityType;
+	}
+
+	public void setEntityType(String entityType) {
+		this.entityType = entityType;
+	}
+
+	public String getEntityId() {
+		return entityId;
+	}
+
+	public void setEntityId(String entityId) {
+		this.entityId = entityId;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public void setCreated(long created) {
+		this.created = created;
+	}
+
+	@Override
+	public String toString() {
+		return new ToStringCreator(this).append("id", id).append("origin", origin).append("kind", kind)
+				.append("entityType", entityType).append("entityId", entityId).toString();
+	}
+
+}
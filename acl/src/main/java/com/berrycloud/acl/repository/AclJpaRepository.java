@@ -16,12 +16,21 @@
 package com.berrycloud.acl.repository;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.LongConsumer;
 
 import javax.persistence.EntityNotFoundException;
+import javax.persistence.Tuple;
 
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.domain.Specification;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.support.AclDeletePermissionException;
+import org.springframework.data.jpa.repository.support.AclUpdatePermissionException;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.security.access.PermissionEvaluator;
 import org.springframework.security.access.prepost.PreAuthorize;
 
@@ -71,6 +80,230 @@ public interface AclJpaRepository<T, ID> extends PropertyRepository<T, ID>, JpaR
 
     List<T> findAllById(Iterable<ID> ids, String permission);
 
+    /**
+     * Returns the projections of the entities matching the given specification the current user has the given
+     * permission to. Only the properties of closed interface projections and the constructor parameters of DTO
+     * projections are selected, so the entities are not loaded. (Open projections are created from the loaded
+     * entities.) The permission is checked by an id-subquery, so no DISTINCT is applied to the projected columns.
+     *
+     * @param spec
+     *            can be {@literal null}
+     * @param projection
+     *            the projection interface or DTO class
+     * @param sort
+     *            must not be {@literal null}
+     * @param permission
+     *            the permission we check against
+     * @return the projections of the permitted entities
+     */
+    <R> List<R> findAll(Specification<T> spec, Class<R> projection, Sort sort, String permission);
+
+    /**
+     * Returns a page of the projections of the entities matching the given specification the current user has the given
+     * permission to.
+     *
+     * @see #findAll(Specification, Class, Sort, String)
+     */
+    <R> Page<R> findAll(Specification<T> spec, Class<R> projection, Pageable pageable, String permission);
+
+    /**
+     * Returns a page of the entities matching the given specification the current user has read permission to, together
+     * with the given permissions the user has to each of them. The permissions are computed in the same query as CASE
+     * expressions over the ACL id-subqueries, so they cost no extra queries.
+     *
+     * @param spec
+     *            can be {@literal null}
+     * @param pageable
+     *            the paging and sorting of the entities
+     * @param permissions
+     *            the permissions checked for every entity
+     * @return the entities and the given permissions the current user has to them
+     */
+    Page<PermittedEntity<T>> findAllWithPermissions(Specification<T> spec, Pageable pageable, String... permissions);
+
+    /**
+     * Aggregates the entities matching the given specification the current user has the given permission to. The
+     * aggregation runs in the database and the permission is checked by an id-subquery (semi-join), so the ACL joins
+     * cannot duplicate the rows of the aggregated entities.
+     *
+     * @param spec
+     *            can be {@literal null}
+     * @param permission
+     *            the permission we check against
+     * @param groupBy
+     *            dot-separated property paths to group by. Their values are accessible by the paths in the result
+     *            tuples. Can be empty.
+     * @param aggregates
+     *            the aggregate functions
+     * @return one tuple per group ordered by the group-by values
+     */
+    List<Tuple> aggregate(Specification<T> spec, String permission, List<String> groupBy, Aggregate... aggregates);
+
+    /**
+     * Checks if the entity with the given id exists and the current user has the given permission to it. Only the id is
+     * selected, so the entity is not loaded.
+     *
+     * @param id
+     *            the id of the entity
+     * @param permission
+     *            the permission we check against
+     * @return true if the current user has the given permission to the entity
+     */
+    boolean isPermitted(ID id, String permission);
+
+    /**
+     * Returns the ids from the given ones the current user has the given permission to. Only the ids are selected, so
+     * the entities are not loaded.
+     *
+     * @param ids
+     *            the ids of the entities
+     * @param permission
+     *            the permission we check against
+     * @return the ids of the existing entities the current user has the given permission to
+     */
+    List<ID> permittedIds(Iterable<ID> ids, String permission);
+
+    /**
+     * Returns the ids of the entities matching the given specification the current user has the given permission to.
+     * The ids are returned in ascending order, starting after the given id, so the whole permitted id space can be
+     * walked page by page without using offsets. (Keyset pagination)
+     *
+     * @param spec
+     *            can be {@literal null}
+     * @param lastId
+     *            the last id of the previous page or {@literal null} for the first page
+     * @param limit
+     *            the maximum number of ids returned
+     * @param permission
+     *            the permission we check against
+     * @return the list of the ids, empty if there are no more permitted entities
+     */
+    List<ID> findIdsAfter(Specification<T> spec, ID lastId, int limit, String permission);
+
+    /**
+     * Deletes the entities with the given ids the current user has the given permission to by bulk delete statements
+     * (one per {@code spring.data.jpa.acl.id-chunk-size} ids). The entities are not loaded, so no lifecycle callbacks
+     * are invoked and the persistence context is not synchronized with the deletion.
+     * <p>
+     * If the permission depends on the entities then the ACL predicate is applied as a subquery selecting from the deleted
+     * table. MySQL does not support it (error 1093), so on MySQL the entities should be deleted by
+     * {@link #deleteAll(Iterable)} instead, which loads them first.
+     *
+     * @param ids
+     *            the ids of the entities to delete
+     * @param permission
+     *            the permission we check against
+     * @param strict
+     *            if true then an {@link AclDeletePermissionException} is thrown (and the transaction is rolled back)
+     *            when not all of the given entities could be deleted
+     * @return the number of the deleted entities
+     */
+    int deleteAllByIdInBatch(Iterable<ID> ids, String permission, boolean strict);
+
+    /**
+     * Deletes all the entities the current user has the given permission to by a single bulk delete statement. The
+     * entities are not loaded, so no lifecycle callbacks are invoked and the persistence context is not synchronized
+     * with the deletion.
+     * <p>
+     * Not supported by MySQL if the permission depends on the entities, see
+     * {@link #deleteAllByIdInBatch(Iterable, String, boolean)}.
+     *
+     * @param permission
+     *            the permission we check against
+     * @return the number of the deleted entities
+     */
+    int deleteAllInBatch(String permission);
+
+    /**
+     * Deletes all the entities the current user has the given permission to in chunks. See
+     * {@link #deleteAll(Specification, String, int, long, LongConsumer)}
+     *
+     * @param permission
+     *            the permission we check against
+     * @param chunkSize
+     *            the maximum number of entities deleted by one statement
+     * @return the number of the deleted entities
+     */
+    long deleteAll(String permission, int chunkSize);
+
+    /**
+     * Deletes all the entities matching the given specification the current user has the given permission to in chunks.
+     * See {@link #deleteAll(Specification, String, int, long, LongConsumer)}
+     *
+     * @param spec
+     *            can be {@literal null}
+     * @param permission
+     *            the permission we check against
+     * @param chunkSize
+     *            the maximum number of entities deleted by one statement
+     * @return the number of the deleted entities
+     */
+    long deleteAll(Specification<T> spec, String permission, int chunkSize);
+
+    /**
+     * Deletes all the entities matching the given specification the current user has the given permission to in chunks.
+     * The entities are deleted in ascending id order by bulk delete statements. If this method is called outside of a
+     * transaction then every chunk is deleted in its own short transaction, so the locks are released after each chunk
+     * and the already deleted chunks are not rolled back if a later one fails. Otherwise all the chunks participate in
+     * the current transaction.
+     * <p>
+     * Not supported by MySQL if the permission depends on the entities, see
+     * {@link #deleteAllByIdInBatch(Iterable, String, boolean)}.
+     *
+     * @param spec
+     *            can be {@literal null}
+     * @param permission
+     *            the permission we check against
+     * @param chunkSize
+     *            the maximum number of entities deleted by one statement
+     * @param pauseMillis
+     *            pause between the chunks in milliseconds (e.g. for limiting the replication lag) or 0 for no pause
+     * @param progressListener
+     *            called after each chunk with the number of entities deleted so far. Can be {@literal null}.
+     * @return the number of the deleted entities
+     */
+    long deleteAll(Specification<T> spec, String permission, int chunkSize, long pauseMillis,
+            LongConsumer progressListener);
+
+    /**
+     * Updates the given (detached) entity by a single conditional UPDATE statement. The UPDATE permission is checked in
+     * the same statement, so the check cannot be bypassed by a concurrent permission change and no entities are
+     * loaded. Managed entities are updated by {@link #save(Object)} instead, because their changes are flushed by the
+     * persistence context anyway. The version of a versioned entity is checked and incremented by the same statement
+     * (only numeric versions are supported), and the version of the given entity is updated accordingly.
+     *
+     * @param entity
+     *            the entity to update
+     * @param attributes
+     *            the names of the changed attributes. If none is given then all of the updatable basic and many-to-one
+     *            attributes are written.
+     * @return the given entity
+     * @throws AclUpdatePermissionException
+     *             if the entity cannot be found or the current user has no UPDATE permission to it
+     * @throws ObjectOptimisticLockingFailureException
+     *             if the version of the entity is outdated
+     */
+    <S extends T> S update(S entity, String... attributes);
+
+    /**
+     * Updates the given attributes of the entity with the given id by a single conditional UPDATE statement. The UPDATE
+     * permission is checked in the same statement. If the entity is already loaded into the persistence context then it's
+     * refreshed after the update.
+     * <p>
+     * The version of a versioned entity is incremented. If the values contain the version attribute then it's not
+     * written, but checked against the current version of the entity (optimistic locking).
+     *
+     * @param id
+     *            the id of the entity
+     * @param values
+     *            the new values of the attributes by their names
+     * @throws AclUpdatePermissionException
+     *             if the entity cannot be found or the current user has no UPDATE permission to it
+     * @throws ObjectOptimisticLockingFailureException
+     *             if the given version is outdated
+     */
+    void update(ID id, Map<String, ?> values);
+
     /**
      * Delete the entity without permission check. This method should be used with extreme caution. The permission
      * should be checked manually before using this method. (I.e. methods protected by {@link PreAuthorize} annotation.)
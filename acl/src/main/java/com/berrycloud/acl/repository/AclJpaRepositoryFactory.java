@@ -31,7 +31,13 @@ import org.springframework.data.repository.core.RepositoryMetadata;
 import org.springframework.data.repository.query.QueryLookupStrategy;
 import org.springframework.data.repository.query.QueryMethodEvaluationContextProvider;
 import org.springframework.data.repository.query.QueryLookupStrategy.Key;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import com.berrycloud.acl.AclDecisionCache;
+import com.berrycloud.acl.AclFlushVerifier;
+import com.berrycloud.acl.AclQueryCache;
+import com.berrycloud.acl.AclSharedResultCache;
 import com.berrycloud.acl.AclSpecification;
 
 /**
@@ -43,13 +49,25 @@ import com.berrycloud.acl.AclSpecification;
 public class AclJpaRepositoryFactory extends JpaRepositoryFactory {
 
     private AclSpecification aclSpecification;
+    private PlatformTransactionManager transactionManager;
+    private AclFlushVerifier flushVerifier;
+    private AclQueryCache queryCache;
+    private AclDecisionCache decisionCache;
+    private AclSharedResultCache resultCache;
+    private int idChunkSize;
     private EntityManager entityManager;
     private final QueryExtractor extractor;
     private EscapeCharacter escapeCharacter = EscapeCharacter.of('\\');
     
     public AclJpaRepositoryFactory(EntityManager entityManager, AclSpecification aclSpecification) {
+        this(entityManager, aclSpecification, null);
+    }
+
+    public AclJpaRepositoryFactory(EntityManager entityManager, AclSpecification aclSpecification,
+            PlatformTransactionManager transactionManager) {
         super(entityManager);
         this.aclSpecification = aclSpecification;
+        this.transactionManager = transactionManager;
         this.entityManager = entityManager;
         this.extractor = PersistenceProvider.fromEntityManager(entityManager);
     }
@@ -65,6 +83,42 @@ public class AclJpaRepositoryFactory extends JpaRepositoryFactory {
       this.escapeCharacter = escapeCharacter;
     }
     
+    /**
+     * Sets the verifier of the flush-time update permission check.
+     */
+    public void setFlushVerifier(AclFlushVerifier flushVerifier) {
+        this.flushVerifier = flushVerifier;
+    }
+
+    /**
+     * Sets the cache of the rendered JPQL of the fixed-shape repository queries.
+     */
+    public void setQueryCache(AclQueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    /**
+     * Sets the request-scoped cache of the ACL decisions.
+     */
+    public void setDecisionCache(AclDecisionCache decisionCache) {
+        this.decisionCache = decisionCache;
+    }
+
+    /**
+     * Sets the cache of the query results shared by the equivalent principals.
+     */
+    public void setResultCache(AclSharedResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Sets the maximum number of ids bound into one query by the repositories. Zero means the default of the
+     * repositories.
+     */
+    public void setIdChunkSize(int idChunkSize) {
+        this.idChunkSize = idChunkSize;
+    }
+
     @Override
     protected Class<?> getRepositoryBaseClass(RepositoryMetadata metadata) {
         return SimpleAclJpaRepository.class;
@@ -79,8 +133,18 @@ public class AclJpaRepositoryFactory extends JpaRepositoryFactory {
     protected JpaRepositoryImplementation<?, ?> getTargetRepository(RepositoryInformation information,
             EntityManager entityManager) {
       JpaRepositoryImplementation<?, ?> repository = super.getTargetRepository(information, entityManager);
-        ((SimpleAclJpaRepository<?, ?>) repository)
-                .setAclSpecification(isAclRepository(information) ? aclSpecification : null);
+        SimpleAclJpaRepository<?, ?> aclRepository = (SimpleAclJpaRepository<?, ?>) repository;
+        aclRepository.setAclSpecification(isAclRepository(information) ? aclSpecification : null);
+        aclRepository.setFlushVerifier(flushVerifier);
+        aclRepository.setQueryCache(queryCache);
+        aclRepository.setDecisionCache(decisionCache);
+        aclRepository.setResultCache(resultCache);
+        if (idChunkSize > 0) {
+            aclRepository.setIdChunkSize(idChunkSize);
+        }
+        if (transactionManager != null) {
+            aclRepository.setTransactionOperations(new TransactionTemplate(transactionManager));
+        }
         return repository;
     }
 
@@ -88,7 +152,7 @@ public class AclJpaRepositoryFactory extends JpaRepositoryFactory {
     protected Optional<QueryLookupStrategy> getQueryLookupStrategy(Key key,
         QueryMethodEvaluationContextProvider evaluationContextProvider) {
         return Optional.of(AclJpaQueryLookupStrategy.create(entityManager, key, extractor, evaluationContextProvider,
-              escapeCharacter, aclSpecification));
+              escapeCharacter, aclSpecification, decisionCache, idChunkSize));
     }
 
 }
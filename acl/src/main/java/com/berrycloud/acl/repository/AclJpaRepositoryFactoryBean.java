@@ -18,10 +18,22 @@ package com.berrycloud.acl.repository;
 import javax.annotation.Resource;
 import javax.persistence.EntityManager;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.jpa.repository.support.JpaRepositoryFactoryBean;
 import org.springframework.data.repository.Repository;
 import org.springframework.data.repository.core.support.RepositoryFactorySupport;
+import org.springframework.data.repository.util.TxUtils;
+import org.springframework.transaction.PlatformTransactionManager;
 
+import com.berrycloud.acl.AclDecisionCache;
+import com.berrycloud.acl.AclFlushVerifier;
+import com.berrycloud.acl.AclQueryCache;
+import com.berrycloud.acl.AclSharedResultCache;
 import com.berrycloud.acl.AclSpecification;
 
 /**
@@ -32,16 +44,71 @@ import com.berrycloud.acl.AclSpecification;
 public class AclJpaRepositoryFactoryBean<T extends Repository<S, ID>, S, ID>
         extends JpaRepositoryFactoryBean<T, S, ID> {
 
+    private static Logger LOG = LoggerFactory.getLogger(AclJpaRepositoryFactoryBean.class);
+
     @Resource
     AclSpecification aclSpecification;
 
+    @Autowired(required = false)
+    AclFlushVerifier flushVerifier;
+
+    @Autowired(required = false)
+    AclQueryCache queryCache;
+
+    @Autowired(required = false)
+    AclDecisionCache decisionCache;
+
+    @Autowired(required = false)
+    AclSharedResultCache resultCache;
+
+    @Value("${spring.data.jpa.acl.id-chunk-size:0}")
+    int idChunkSize;
+
+    private BeanFactory beanFactory;
+    private String transactionManagerName = TxUtils.DEFAULT_TRANSACTION_MANAGER;
+
     public AclJpaRepositoryFactoryBean(Class<? extends T> repositoryInterface) {
         super(repositoryInterface);
     }
 
+    @Override
+    public void setTransactionManager(String transactionManager) {
+        super.setTransactionManager(transactionManager);
+        this.transactionManagerName = transactionManager == null ? TxUtils.DEFAULT_TRANSACTION_MANAGER
+                : transactionManager;
+    }
+
+    @Override
+    public void setBeanFactory(BeanFactory beanFactory) {
+        super.setBeanFactory(beanFactory);
+        this.beanFactory = beanFactory;
+    }
+
     @Override
     protected RepositoryFactorySupport createRepositoryFactory(EntityManager entityManager) {
-        return new AclJpaRepositoryFactory(entityManager, aclSpecification);
+        AclJpaRepositoryFactory factory = new AclJpaRepositoryFactory(entityManager, aclSpecification,
+                getTransactionManager());
+        factory.setFlushVerifier(flushVerifier);
+        factory.setQueryCache(queryCache);
+        factory.setDecisionCache(decisionCache);
+        factory.setResultCache(resultCache);
+        factory.setIdChunkSize(idChunkSize);
+        return factory;
+    }
+
+    /**
+     * Returns the transaction manager of the repositories. The repositories use it for splitting long running batch
+     * operations into several transactions.
+     */
+    private PlatformTransactionManager getTransactionManager() {
+        try {
+            return beanFactory == null ? null
+                    : beanFactory.getBean(transactionManagerName, PlatformTransactionManager.class);
+        } catch (NoSuchBeanDefinitionException e) {
+            LOG.warn("Transaction manager '{}' cannot be found. Batch operations are executed in one transaction.",
+                    transactionManagerName);
+            return null;
+        }
     }
 
 }
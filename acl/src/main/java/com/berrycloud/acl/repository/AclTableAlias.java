@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl.repository;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Activates the ACL for a native query method ({@code @Query(nativeQuery = true)}) of an ACL repository. The value is
+ * the alias of the secured table in the SQL. The ACL condition ({@code <alias>.<id column> in (<ACL subquery>)}) is
+ * AND-ed to the top-level WHERE clause of the query and of its count query. The subquery is translated from the same
+ * predicates the other ACL queries use, and the id of the current user is bound as a parameter.
+ * <p>
+ * An ACL repository cannot be created if it has a native query method without this annotation: the creation fails with
+ * an {@code InvalidJpaQueryMethodException}. This is a breaking change: the unannotated native queries used to be
+ * executed without ACL (only an error was logged). Annotate these methods with this annotation to secure them, or with
+ * {@link NoAcl} to keep executing them without ACL.
+ *
+ * @author István Rátkai (Selindek)
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface AclTableAlias {
+
+  /**
+   * The alias of the secured table in the native query
+   */
+  String value();
+
+  /**
+   * The entity mapped to the secured table. Defaults to the domain class of the repository.
+   */
+  Class<?> entity() default void.class;
+
+  /**
+   * The checked permission. Defaults to UPDATE for update, DELETE for delete and READ for any other statements.
+   */
+  String permission() default "";
+
+}
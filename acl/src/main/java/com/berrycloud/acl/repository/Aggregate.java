@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl.repository;
+
+import org.springframework.util.Assert;
+
+/**
+ * An aggregate function of {@link AclJpaRepository#aggregate}. The property is a dot-separated path from the root
+ * entity (e.g. {@code "creator.username"}). The result of the function is accessible by the alias of the aggregate in
+ * the result tuples.
+ *
+ * @author István Rátkai (Selindek)
+ */
+public final class Aggregate {
+
+  public enum Function {
+    COUNT, COUNT_DISTINCT, SUM, AVG, MIN, MAX
+  }
+
+  private final Function function;
+  private final String property;
+  private final String alias;
+
+  private Aggregate(Function function, String property, String alias) {
+    Assert.hasText(alias, "The alias must not be empty!");
+    this.function = function;
+    this.property = property;
+    this.alias = alias;
+  }
+
+  private static Aggregate of(Function function, String property) {
+    Assert.hasText(property, "The property must not be empty!");
+    return new Aggregate(function, property, function.name().toLowerCase() + "_" + property.replace('.', '_'));
+  }
+
+  /**
+   * Counts the permitted entities (alias: {@code count})
+   */
+  public static Aggregate count() {
+    return new Aggregate(Function.COUNT, null, "count");
+  }
+
+  /**
+   * Counts the non-null values of the property (alias: {@code count_<property>})
+   */
+  public static Aggregate count(String property) {
+    return of(Function.COUNT, property);
+  }
+
+  /**
+   * Counts the distinct values of the property (alias: {@code count_distinct_<property>})
+   */
+  public static Aggregate countDistinct(String property) {
+    return of(Function.COUNT_DISTINCT, property);
+  }
+
+  public static Aggregate sum(String property) {
+    return of(Function.SUM, property);
+  }
+
+  public static Aggregate avg(String property) {
+    return of(Function.AVG, property);
+  }
+
+  public static Aggregate min(String property) {
+    return of(Function.MIN, property);
+  }
+
+  public static Aggregate max(String property) {
+    return of(Function.MAX, property);
+  }
+
+  /**
+   * Returns a copy of this aggregate with the given alias.
+   */
+  public Aggregate as(String alias) {
+    return new Aggregate(function, property, alias);
+  }
+
+  public Function getFunction() {
+    return function;
+  }
+
+  public String getProperty() {
+    return property;
+  }
+
+  public String getAlias() {
+    return alias;
+  }
+
+  @Override
+  public String toString() {
+    return function + "(" + (property == null ? "*" : property) + ") as " + alias;
+  }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl.repository;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Signing annotation for derived delete methods ({@code deleteBy...} and {@code removeBy...}) of ACL repositories.
+ * <p>
+ * By default these methods delete the permitted entities by a bulk delete statement without loading them. If the
+ * method is annotated with this annotation then the entities are loaded and removed one by one via
+ * {@link EntityManager#remove(Object)}, so the JPA lifecycle callbacks and the cascades are applied. Methods returning
+ * the deleted entities always load them.
+ *
+ * @author István Rátkai (Selindek)
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface LoadBeforeDelete {
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl.repository;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * An entity returned by {@link AclJpaRepository#findAllWithPermissions} together with the checked permissions the
+ * current user has to it.
+ *
+ * @author István Rátkai (Selindek)
+ */
+public final class PermittedEntity<T> {
+
+  private final T entity;
+  private final Set<String> permissions;
+
+  public PermittedEntity(T entity, Set<String> permissions) {
+    this.entity = entity;
+    this.permissions = Collections.unmodifiableSet(permissions);
+  }
+
+  public T getEntity() {
+    return entity;
+  }
+
+  /**
+   * Returns the checked permissions the current user has to the entity
+   */
+  public Set<String> getPermissions() {
+    return permissions;
+  }
+
+  public boolean hasPermission(String permission) {
+    return permissions.contains(permission);
+  }
+
+  @Override
+  public String toString() {
+    return entity + " " + permissions;
+  }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.berrycloud.acl.security.access;
+
+import static com.berrycloud.acl.AclConstants.READ_PERMISSION;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.framework.AopProxyUtils;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.repository.query.QueryByExampleExecutor;
+import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.ExpressionState;
+import org.springframework.expression.spel.SpelNode;
+import org.springframework.expression.spel.ast.MethodReference;
+import org.springframework.expression.spel.ast.PropertyOrFieldReference;
+import org.springframework.expression.spel.standard.SpelExpression;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.security.access.PermissionEvaluator;
+import org.springframework.security.access.expression.method.DefaultMethodSecurityExpressionHandler;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.util.ReflectionUtils;
+
+import com.berrycloud.acl.repository.AclJpaRepository;
+import com.berrycloud.acl.repository.NoAcl;
+
+/**
+ * Method security expression handler what evaluates the {@code @PostFilter("hasPermission(filterObject, <permission>)")}
+ * filters of collections in the database instead of checking the elements one by one.
+ * <p>
+ * The permission expression is evaluated once and the permissions of all the elements are checked by one query per
+ * entity type (see {@link AclPermissionEvaluator#filterPermitted(Authentication, Collection, Object)}). The READ filter
+ * of the standard finder methods (declared by {@link JpaRepository}, {@link JpaSpecificationExecutor} and
+ * {@link QueryByExampleExecutor}) of the ACL repositories is skipped entirely, as their queries already contain the same
+ * ACL predicates.
+ * <p>
+ * Any other filters (and arrays) are evaluated by the default handler.
+ *
+ * @author István Rátkai (Selindek)
+ */
+public class AclMethodSecurityExpressionHandler extends DefaultMethodSecurityExpressionHandler
+        implements SmartInitializingSingleton {
+
+    private static Logger LOG = LoggerFactory.getLogger(AclMethodSecurityExpressionHandler.class);
+
+    private static final String HAS_PERMISSION = "hasPermission";
+    private static final String FILTER_OBJECT = "filterObject";
+
+    /**
+     * The method invocation is stored in the evaluation context under this variable
+     */
+    private static final String METHOD_INVOCATION_VARIABLE = "aclMethodInvocation";
+
+    private static final List<Class<?>> ACL_FILTERED_INTERFACES = Arrays.asList(JpaRepository.class,
+            JpaSpecificationExecutor.class, QueryByExampleExecutor.class);
+
+    // The permission nodes of the filter expressions (empty if the filter cannot be evaluated in the database)
+    private final Map<String, Optional<SpelNode>> permissionNodes = new ConcurrentHashMap<>();
+
+    private ApplicationContext applicationContext;
+
+    private AclPermissionEvaluator aclPermissionEvaluator;
+
+    @Override
+    public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
+        super.setApplicationContext(applicationContext);
+        this.applicationContext = applicationContext;
+    }
+
+    /**
+     * The permission evaluator is looked up after all the singletons are created (the same way as the global method
+     * security configuration does for its default handler), so the handler does not initialize the JPA beans early.
+     */
+    @Override
+    public void afterSingletonsInstantiated() {
+        String[] names = applicationContext.getBeanNamesForType(PermissionEvaluator.class);
+        if (names.length == 1) {
+            PermissionEvaluator permissionEvaluator = applicationContext.getBean(names[0], PermissionEvaluator.class);
+            setPermissionEvaluator(permissionEvaluator);
+            if (permissionEvaluator instanceof AclPermissionEvaluator) {
+                aclPermissionEvaluator = (AclPermissionEvaluator) permissionEvaluator;
+            }
+        }
+    }
+
+    @Override
+    public StandardEvaluationContext createEvaluationContextInternal(Authentication auth, MethodInvocation mi) {
+        StandardEvaluationContext ctx = super.createEvaluationContextInternal(auth, mi);
+        ctx.setVariable(METHOD_INVOCATION_VARIABLE, mi);
+        return ctx;
+    }
+
+    @Override
+    public Object filter(Object filterTarget, Expression filterExpression, EvaluationContext ctx) {
+        if (aclPermissionEvaluator == null || !(filterTarget instanceof Collection)) {
+            return super.filter(filterTarget, filterExpression, ctx);
+        }
+        SpelNode permissionNode = permissionNodes
+                .computeIfAbsent(filterExpression.getExpressionString(), key -> findPermissionNode(filterExpression))
+                .orElse(null);
+        if (permissionNode == null) {
+            return super.filter(filterTarget, filterExpression, ctx);
+        }
+
+        Object permission = permissionNode.getValue(new ExpressionState(ctx));
+        if (permission == null) {
+            return super.filter(filterTarget, filterExpression, ctx);
+        }
+        if (isFilteredByRepository(ctx.lookupVariable(METHOD_INVOCATION_VARIABLE), permission)) {
+            LOG.debug("Filter '{}' is already applied by the ACL repository", filterExpression.getExpressionString());
+            return filterTarget;
+        }
+
+        @SuppressWarnings("unchecked")
+        Collection<Object> collection = (Collection<Object>) filterTarget;
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        List<Object> permitted = aclPermissionEvaluator.filterPermitted(authentication, collection, permission);
+        LOG.debug("Retaining {} of {} elements by '{}' permission", permitted.size(), collection.size(), permission);
+        collection.clear();
+        collection.addAll(permitted);
+        return filterTarget;
+    }
+
+    /**
+     * Returns the permission node of a {@code hasPermission(filterObject, <permission>)} expression or empty if the
+     * expression has any other form (or the permission depends on the filter object).
+     */
+    private Optional<SpelNode> findPermissionNode(Expression filterExpression) {
+        if (!(filterExpression instanceof SpelExpression)) {
+            return Optional.empty();
+        }
+        SpelNode root = ((SpelExpression) filterExpression).getAST();
+        if (!(root instanceof MethodReference) || !HAS_PERMISSION.equals(((MethodReference) root).getName())
+                || root.getChildCount() != 2 || !isFilterObject(root.getChild(0))
+                || refersToFilterObject(root.getChild(1))) {
+            return Optional.empty();
+        }
+        return Optional.of(root.getChild(1));
+    }
+
+    private static boolean isFilterObject(SpelNode node) {
+        return node instanceof PropertyOrFieldReference
+                && FILTER_OBJECT.equals(((PropertyOrFieldReference) node).getName());
+    }
+
+    private static boolean refersToFilterObject(SpelNode node) {
+        if (isFilterObject(node)) {
+            return true;
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            if (refersToFilterObject(node.getChild(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the READ permission is filtered by a standard finder method of an ACL repository
+     */
+    private boolean isFilteredByRepository(Object invocation, Object permission) {
+        if (!(invocation instanceof MethodInvocation) || !READ_PERMISSION.equals(permission.toString())) {
+            return false;
+        }
+        MethodInvocation mi = (MethodInvocation) invocation;
+        if (!(mi.getThis() instanceof AclJpaRepository)) {
+            return false;
+        }
+        for (Class<?> repositoryInterface : AopProxyUtils.proxiedUserInterfaces(mi.getThis())) {
+            if (repositoryInterface.getDeclaredAnnotation(NoAcl.class) != null) {
+                return false;
+            }
+        }
+        Method method = mi.getMethod();
+        if (!method.getName().startsWith("find") || method.getDeclaredAnnotation(NoAcl.class) != null) {
+            return false;
+        }
+        for (Class<?> filteredInterface : ACL_FILTERED_INTERFACES) {
+            if (ReflectionUtils.findMethod(filteredInterface, method.getName(), method.getParameterTypes()) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -16,16 +16,33 @@
 package com.berrycloud.acl.security.access;
 
 import java.io.Serializable;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.annotation.PostConstruct;
 import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
 import javax.persistence.PersistenceContext;
+import javax.persistence.Tuple;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.ParameterExpression;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
 
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -33,11 +50,34 @@ import org.springframework.data.jpa.repository.support.JpaEntityInformation;
 import org.springframework.data.jpa.repository.support.JpaEntityInformationSupport;
 import org.springframework.security.access.PermissionEvaluator;
 import org.springframework.security.core.Authentication;
+import org.springframework.util.ClassUtils;
 
+import com.berrycloud.acl.AclDecisionCache;
+import com.berrycloud.acl.AclInMemoryEvaluator;
+import com.berrycloud.acl.AclInMemoryEvaluator.Decision;
 import com.berrycloud.acl.AclSpecification;
+import com.berrycloud.acl.AclSpecification.Outcome;
+import com.berrycloud.acl.data.AclMetaData;
 
 /**
  * PermissionEvaluator for ACL managed entities. Permissions are checked via {@link AclSpecification}.
+ * <p>
+ * The evaluator is called concurrently by the request threads, so all of its caches are concurrent maps: the entity
+ * information of the ACL entities is precomputed from the {@link AclMetaData} at startup (other classes, e.g. the
+ * proxies of the entities are added on their first use) and the resolved target type names are cached too. The
+ * permission is checked by an existence query what stops at the first permitted row.
+ * <p>
+ * The permissions of a list of entities can be checked by {@link #permissionsFor(Class, Collection, Collection)} in
+ * one query. It can be used in SpEL expressions via the bean reference of the evaluator, e.g.
+ * {@code @PreAuthorize("@aclPermissionEvaluator.permissionsFor(T(Document), #ids, 'update').keySet().containsAll(#ids)")}
+ * <p>
+ * The permission to a managed entity is evaluated by the {@link AclInMemoryEvaluator} first (if it's available). The
+ * existence query is executed only if the decision depends on an association what is not loaded. The results of the
+ * existence queries are cached by the {@link AclDecisionCache} (if it's available).
+ * <p>
+ * The permission to a modified managed entity is checked against its stored state: the in-memory evaluation is
+ * skipped and the changes are not flushed before the existence query, so a modified {@code @AclOwner} property cannot
+ * grant a permission.
  *
  * @author István Rátkai (Selindek)
  */
@@ -45,8 +85,10 @@ public class AclPermissionEvaluator implements PermissionEvaluator {
 
     private static Logger LOG = LoggerFactory.getLogger(AclPermissionEvaluator.class);
 
-    // Dynamically filled cache for entityInformation
-    private final Map<Class<?>, JpaEntityInformation<?, ?>> entityInformationMap = new HashMap<>();
+    private final Map<Class<?>, JpaEntityInformation<?, ?>> entityInformationMap = new ConcurrentHashMap<>();
+
+    // Resolved target type names (the invalid names are not cached, so the map cannot be flooded by them)
+    private final Map<String, Class<?>> targetTypeMap = new ConcurrentHashMap<>();
 
     @PersistenceContext
     private EntityManager em;
@@ -54,6 +96,26 @@ public class AclPermissionEvaluator implements PermissionEvaluator {
     @Autowired
     private AclSpecification aclSpecification;
 
+    @Autowired(required = false)
+    private AclMetaData aclMetaData;
+
+    @Autowired(required = false)
+    private AclInMemoryEvaluator inMemoryEvaluator;
+
+    @Autowired(required = false)
+    private AclDecisionCache decisionCache;
+
+    @PostConstruct
+    public void init() {
+        if (aclMetaData == null) {
+            return;
+        }
+        for (Class<?> entityClass : aclMetaData.getEntityClasses()) {
+            entityInformationMap.put(entityClass, JpaEntityInformationSupport.getEntityInformation(entityClass, em));
+            targetTypeMap.put(entityClass.getName(), entityClass);
+        }
+    }
+
     @Override
     public boolean hasPermission(Authentication authentication, Object targetDomainObject, Object permission) {
         if (targetDomainObject == null) {
@@ -61,6 +123,18 @@ public class AclPermissionEvaluator implements PermissionEvaluator {
         }
         try {
             Class<?> domainClass = targetDomainObject.getClass();
+            if (em.contains(targetDomainObject)) {
+                if (isDirty(targetDomainObject)) {
+                    return hasStoredPermission(authentication, getId(targetDomainObject), domainClass, permission);
+                }
+                if (inMemoryEvaluator != null) {
+                    Decision decision = inMemoryEvaluator.evaluate(targetDomainObject,
+                            getPermissionString(permission));
+                    if (decision != Decision.UNKNOWN) {
+                        return decision == Decision.GRANTED;
+                    }
+                }
+            }
             return hasPermission(authentication, getId(targetDomainObject), domainClass, permission);
         } catch (Exception ex) {
             LOG.warn("Invalid target for AclPermissionEvaluator: {}", targetDomainObject);
@@ -72,32 +146,215 @@ public class AclPermissionEvaluator implements PermissionEvaluator {
     @Override
     public boolean hasPermission(Authentication authentication, Serializable targetId, String targetType,
             Object permission) {
-        try {
-            return hasPermission(authentication, targetId, Class.forName(targetType), permission);
-        } catch (ClassNotFoundException ex) {
-            LOG.warn("Invalid target type for AclPermissionEvaluator: {}", targetType);
-            LOG.trace("Details: ", ex);
-            return false;
+        Class<?> domainClass = targetTypeMap.get(targetType);
+        if (domainClass == null) {
+            domainClass = resolveTargetType(targetType);
+            if (domainClass == null) {
+                LOG.warn("Invalid target type for AclPermissionEvaluator: {}", targetType);
+                return false;
+            }
+            targetTypeMap.put(targetType, domainClass);
         }
+        return hasPermission(authentication, targetId, domainClass, permission);
     }
 
     /**
-     * Check permission by directly creating a JPA count query with ACL support for the given permission
+     * Check permission by directly creating a JPA existence query with ACL support for the given permission
      */
     public <T> boolean hasPermission(Authentication authentication, Object targetId, Class<T> domainClass,
             Object permission) {
         String permissionString = getPermissionString(permission);
+        if (aclSpecification.getOutcome(domainClass, permissionString) == Outcome.DENIED) {
+            return false;
+        }
+        if (decisionCache != null) {
+            return decisionCache.isPermitted(domainClass, targetId, permissionString,
+                    () -> queryPermission(targetId, domainClass, permissionString));
+        }
+        return queryPermission(targetId, domainClass, permissionString);
+    }
+
+    /**
+     * Checks the permission to the stored state of the entity: the pending changes are not flushed before the query
+     */
+    private <T> boolean hasStoredPermission(Authentication authentication, Object targetId, Class<T> domainClass,
+            Object permission) {
+        FlushModeType oldMode = em.getFlushMode();
+        em.setFlushMode(FlushModeType.COMMIT);
+        try {
+            return hasPermission(authentication, targetId, domainClass, permission);
+        } finally {
+            em.setFlushMode(oldMode);
+        }
+    }
+
+    /**
+     * Checks if the given managed entity is modified since it was loaded. The entities without a loaded state (e.g. the
+     * proxies) are treated as modified.
+     */
+    private boolean isDirty(Object entity) {
+        SessionImplementor session = em.unwrap(SessionImplementor.class);
+        EntityEntry entry = session.getPersistenceContext().getEntry(entity);
+        if (entry == null || entry.getLoadedState() == null) {
+            return true;
+        }
+        EntityPersister persister = entry.getPersister();
+        Object[] values = persister.getPropertyValues(entity);
+        for (Object value : values) {
+            if (value instanceof PersistentCollection && ((PersistentCollection) value).isDirty()) {
+                return true;
+            }
+        }
+        return persister.findDirty(values, entry.getLoadedState(), entity, session) != null;
+    }
+
+    private <T> boolean queryPermission(Object targetId, Class<T> domainClass, String permissionString) {
 
         CriteriaBuilder builder = em.getCriteriaBuilder();
-        CriteriaQuery<Long> query = builder.createQuery(Long.class);
+        CriteriaQuery<Object> query = builder.createQuery(Object.class);
 
         Root<T> root = query.from(domainClass);
-        query.select(builder.count(root));
+        String idAttribute = getEntityInformation(domainClass).getIdAttribute().getName();
+        query.select(root.get(idAttribute));
 
-        Predicate idPredicate = builder.equal(root.get(getEntityInformation(domainClass).getIdAttribute()), targetId);
-        Predicate aclPredicate = aclSpecification.toPredicate(root, query, builder, permissionString);
+        Predicate idPredicate = builder.equal(root.get(idAttribute), targetId);
+        Predicate aclPredicate = aclSpecification.toPredicate(root, query, builder, permissionString,
+                aclSpecification.createUserIdParameter(builder));
         query.where(builder.and(idPredicate, aclPredicate));
-        return em.createQuery(query).getSingleResult() != 0;
+        return !aclSpecification.bindUserId(em.createQuery(query)).setMaxResults(1).getResultList().isEmpty();
+    }
+
+    /**
+     * Returns the given permissions the current user has to the entities with the given ids. The permissions are checked
+     * in one query: every permission is a CASE expression over the ACL subquery of the entity type. The entities without
+     * any of the given permissions (and the missing ones) are not included in the returned map.
+     *
+     * @param domainClass
+     *            the type of the entities
+     * @param ids
+     *            the ids of the checked entities
+     * @param permissions
+     *            the checked permissions
+     * @return the map of the ids and the permissions the user has to the entity
+     */
+    public <ID> Map<ID, Set<String>> permissionsFor(Class<?> domainClass, Collection<ID> ids,
+            Collection<String> permissions) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<String> checkedPermissions = new ArrayList<>();
+        for (String permission : new LinkedHashSet<>(permissions)) {
+            if (aclSpecification.getOutcome(domainClass, permission) != Outcome.DENIED) {
+                checkedPermissions.add(permission);
+            }
+        }
+        if (checkedPermissions.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        CriteriaBuilder builder = em.getCriteriaBuilder();
+        CriteriaQuery<Tuple> query = builder.createTupleQuery();
+        @SuppressWarnings("unchecked")
+        Root<Object> root = (Root<Object>) query.from(domainClass);
+        String idAttribute = getEntityInformation(domainClass).getIdAttribute().getName();
+
+        List<Selection<?>> selections = new ArrayList<>();
+        selections.add(root.get(idAttribute));
+        List<Predicate> anyPermission = new ArrayList<>();
+        ParameterExpression<Object> userId = aclSpecification.createUserIdParameter(builder);
+        for (String permission : checkedPermissions) {
+            Predicate permitted = aclSpecification.toSubqueryPredicate(root, query, builder, permission, userId);
+            selections.add(builder.selectCase().when(permitted, 1).otherwise(0));
+            anyPermission.add(permitted);
+        }
+        @SuppressWarnings("rawtypes")
+        ParameterExpression<Collection> idsParameter = builder.parameter(Collection.class);
+        query.multiselect(selections).where(root.get(idAttribute).in(idsParameter),
+                builder.or(anyPermission.toArray(new Predicate[anyPermission.size()])));
+
+        Map<ID, Set<String>> result = new LinkedHashMap<>();
+        for (Tuple tuple : aclSpecification.bindUserId(em.createQuery(query)).setParameter(idsParameter, ids)
+                .getResultList()) {
+            Set<String> granted = new LinkedHashSet<>();
+            for (int i = 0; i < checkedPermissions.size(); i++) {
+                if (((Number) tuple.get(i + 1)).intValue() != 0) {
+                    granted.add(checkedPermissions.get(i));
+                }
+            }
+            @SuppressWarnings("unchecked")
+            ID id = (ID) tuple.get(0);
+            result.put(id, granted);
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #permissionsFor(Class, Collection, Collection)}
+     */
+    public <ID> Map<ID, Set<String>> permissionsFor(Class<?> domainClass, Collection<ID> ids, String... permissions) {
+        return permissionsFor(domainClass, ids, Arrays.asList(permissions));
+    }
+
+    /**
+     * Returns the elements of the given collection the current user has the given permission to (in their original
+     * order). The permissions of the entities are checked by one {@link #permissionsFor(Class, Collection, Collection)}
+     * query per entity type instead of one query per element. Elements what are not ACL entities are checked by
+     * {@link #hasPermission(Authentication, Object, Object)} one by one.
+     *
+     * @param authentication
+     *            the current authentication
+     * @param elements
+     *            the filtered elements
+     * @param permission
+     *            the checked permission
+     * @return the list of the permitted elements
+     */
+    public <T> List<T> filterPermitted(Authentication authentication, Collection<T> elements, Object permission) {
+        String permissionString = getPermissionString(permission);
+        Map<Class<?>, Map<Object, Boolean>> idsByType = new LinkedHashMap<>();
+        for (T element : elements) {
+            Class<?> entityClass = getEntityClass(element);
+            if (entityClass != null) {
+                idsByType.computeIfAbsent(entityClass, type -> new LinkedHashMap<>()).put(getId(entityClass, element),
+                        Boolean.FALSE);
+            }
+        }
+        for (Map.Entry<Class<?>, Map<Object, Boolean>> entry : idsByType.entrySet()) {
+            for (Object id : permissionsFor(entry.getKey(), entry.getValue().keySet(), permissionString).keySet()) {
+                entry.getValue().put(id, Boolean.TRUE);
+            }
+        }
+
+        List<T> permitted = new ArrayList<>();
+        for (T element : elements) {
+            Class<?> entityClass = getEntityClass(element);
+            if (entityClass == null ? hasPermission(authentication, element, permission)
+                    : idsByType.get(entityClass).get(getId(entityClass, element))) {
+                permitted.add(element);
+            }
+        }
+        return permitted;
+    }
+
+    /**
+     * Returns the ACL entity type of the given object (it can be a proxy of the entity) or null if it's not an ACL
+     * entity
+     */
+    private Class<?> getEntityClass(Object object) {
+        if (object == null || aclMetaData == null) {
+            return null;
+        }
+        for (Class<?> type = object.getClass(); type != Object.class; type = type.getSuperclass()) {
+            if (aclMetaData.getAclEntityMetaData(type) != null) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Object getId(Class<T> entityClass, Object entity) {
+        return getEntityInformation(entityClass).getId((T) entity);
     }
 
     protected <T> Object getId(T object) {
@@ -109,19 +366,23 @@ public class AclPermissionEvaluator implements PermissionEvaluator {
         return id;
     }
 
+    @SuppressWarnings("unchecked")
     protected <T> JpaEntityInformation<T, ?> getEntityInformation(Class<T> domainClass) {
-        @SuppressWarnings("unchecked")
-        JpaEntityInformation<T, ?> entityInformation = (JpaEntityInformation<T, ?>) entityInformationMap
-                .get(domainClass);
-        if (entityInformation == null) {
-            entityInformation = JpaEntityInformationSupport.getEntityInformation(domainClass, em);
-            entityInformationMap.put(domainClass, entityInformation);
-        }
-        return entityInformation;
+        return (JpaEntityInformation<T, ?>) entityInformationMap.computeIfAbsent(domainClass,
+                type -> JpaEntityInformationSupport.getEntityInformation(type, em));
     }
 
     protected String getPermissionString(Object permission) {
         return permission.toString();
     }
 
+    private Class<?> resolveTargetType(String targetType) {
+        try {
+            return ClassUtils.forName(targetType, getClass().getClassLoader());
+        } catch (ClassNotFoundException | LinkageError ex) {
+            LOG.trace("Details: ", ex);
+            return null;
+        }
+    }
+
 }
@@ -15,6 +15,7 @@
  */
 package org.springframework.data.jpa.repository.query;
 
+import com.berrycloud.acl.AclDecisionCache;
 import com.berrycloud.acl.AclSpecification;
 import com.berrycloud.acl.repository.NoAcl;
 import org.slf4j.Logger;
@@ -89,10 +90,10 @@ public final class AclJpaQueryLookupStrategy {
             NoAcl noAclMethod = method.getDeclaredAnnotation(NoAcl.class);
             boolean needAcl = noAclRepo == null && noAclMethod == null;
 
-            RepositoryQuery query = resolveQuery(new JpaQueryMethod(method, metadata, factory, provider), em,
+            RepositoryQuery query = resolveQuery(new AclJpaQueryMethod(method, metadata, factory, provider), em,
                     namedQueries, needAcl);
 
-            if (needAcl && !(query instanceof PartTreeAclJpaQuery)) {
+            if (needAcl && !(query instanceof PartTreeAclJpaQuery || query instanceof AclStringBasedJpaQuery)) {
                 LOG.error(
                         "Unsupported repository method '{}'. Acl was not activated for this method! Use @NoAcl annotation on the method for preventing this error message.",
                         method);
@@ -115,13 +116,18 @@ public final class AclJpaQueryLookupStrategy {
         private final PersistenceProvider persistenceProvider;
         private final EscapeCharacter escape;
         private final AclSpecification aclSpecification;
+        private final AclDecisionCache decisionCache;
+        private final int idChunkSize;
 
-        CreateQueryLookupStrategy(EntityManager em, QueryExtractor extractor, EscapeCharacter escape, AclSpecification aclSpecification) {
+        CreateQueryLookupStrategy(EntityManager em, QueryExtractor extractor, EscapeCharacter escape, AclSpecification aclSpecification,
+                                  AclDecisionCache decisionCache, int idChunkSize) {
 
             super(em, extractor);
             this.persistenceProvider = PersistenceProvider.fromEntityManager(em);
             this.escape = escape;
             this.aclSpecification = aclSpecification;
+            this.decisionCache = decisionCache;
+            this.idChunkSize = idChunkSize;
         }
 
         @Override
@@ -130,7 +136,8 @@ public final class AclJpaQueryLookupStrategy {
 
             try {
                 if (needAcl) {
-                    return new PartTreeAclJpaQuery(method, em, persistenceProvider, escape, aclSpecification);
+                    return new PartTreeAclJpaQuery(method, em, persistenceProvider, escape, aclSpecification,
+                            decisionCache, idChunkSize);
                 } else {
                     return new PartTreeJpaQuery(method, em, persistenceProvider, escape);
                 }
@@ -151,6 +158,8 @@ public final class AclJpaQueryLookupStrategy {
     private static class DeclaredQueryLookupStrategy extends AbstractQueryLookupStrategy {
 
         private final QueryMethodEvaluationContextProvider evaluationContextProvider;
+        private final AclSpecification aclSpecification;
+        private final AclDecisionCache decisionCache;
 
         /**
          * Creates a new {@link DeclaredQueryLookupStrategy}.
@@ -158,12 +167,17 @@ public final class AclJpaQueryLookupStrategy {
          * @param em
          * @param extractor
          * @param evaluationContextProvider
+         * @param aclSpecification
+         * @param decisionCache
          */
         DeclaredQueryLookupStrategy(EntityManager em, QueryExtractor extractor,
-            QueryMethodEvaluationContextProvider evaluationContextProvider) {
+            QueryMethodEvaluationContextProvider evaluationContextProvider, AclSpecification aclSpecification,
+            AclDecisionCache decisionCache) {
 
             super(em, extractor);
             this.evaluationContextProvider = evaluationContextProvider;
+            this.aclSpecification = aclSpecification;
+            this.decisionCache = decisionCache;
         }
 
         /*
@@ -178,6 +192,13 @@ public final class AclJpaQueryLookupStrategy {
         protected RepositoryQuery resolveQuery(JpaQueryMethod method, EntityManager em, NamedQueries namedQueries,
                                                boolean needAcl) {
 
+            if (needAcl && !method.isProcedureQuery()) {
+                RepositoryQuery query = resolveAclQuery(method, em, namedQueries);
+                if (null != query) {
+                    return query;
+                }
+            }
+
             RepositoryQuery query = JpaQueryFactory.INSTANCE.fromQueryAnnotation(method, em, evaluationContextProvider);
 
             if (null != query) {
@@ -205,6 +226,22 @@ public final class AclJpaQueryLookupStrategy {
             throw new IllegalStateException(
                     String.format("Did neither find a NamedQuery nor an annotated query for method %s!", method));
         }
+
+        /**
+         * Creates an ACL query from the query string of the {@link Query} annotation or of the named query (from the
+         * named-queries properties) of the method. Returns null if there is no such query.
+         */
+        private RepositoryQuery resolveAclQuery(JpaQueryMethod method, EntityManager em, NamedQueries namedQueries) {
+            String queryString = method.getAnnotatedQuery();
+            if (queryString == null && namedQueries.hasQuery(method.getNamedQueryName())) {
+                queryString = namedQueries.getQuery(method.getNamedQueryName());
+            }
+            if (queryString == null) {
+                return null;
+            }
+            return AclStringBasedJpaQuery.create(method, em, queryString, evaluationContextProvider, aclSpecification,
+                    decisionCache);
+        }
     }
 
     /**
@@ -274,6 +311,42 @@ public final class AclJpaQueryLookupStrategy {
                                              QueryMethodEvaluationContextProvider evaluationContextProvider,
                                              EscapeCharacter escape,
                                              AclSpecification aclSpecification) {
+        return create(em, key, extractor, evaluationContextProvider, escape, aclSpecification, null);
+    }
+
+    /**
+     * Creates a {@link QueryLookupStrategy} for the given {@link EntityManager} and {@link Key}. The bulk statements of
+     * the created queries invalidate the ACL decisions of the given cache.
+     *
+     * @param decisionCache             may be {@literal null}.
+     * @return
+     */
+    public static QueryLookupStrategy create(EntityManager em,
+                                             Key key,
+                                             QueryExtractor extractor,
+                                             QueryMethodEvaluationContextProvider evaluationContextProvider,
+                                             EscapeCharacter escape,
+                                             AclSpecification aclSpecification,
+                                             AclDecisionCache decisionCache) {
+        return create(em, key, extractor, evaluationContextProvider, escape, aclSpecification, decisionCache, 0);
+    }
+
+    /**
+     * Creates a {@link QueryLookupStrategy} for the given {@link EntityManager} and {@link Key}. The bulk statements of
+     * the created queries invalidate the ACL decisions of the given cache and bind at most the given number of ids.
+     *
+     * @param decisionCache             may be {@literal null}.
+     * @param idChunkSize               the maximum number of ids bound into one statement, zero means the default.
+     * @return
+     */
+    public static QueryLookupStrategy create(EntityManager em,
+                                             Key key,
+                                             QueryExtractor extractor,
+                                             QueryMethodEvaluationContextProvider evaluationContextProvider,
+                                             EscapeCharacter escape,
+                                             AclSpecification aclSpecification,
+                                             AclDecisionCache decisionCache,
+                                             int idChunkSize) {
 
         Assert.notNull(em, "EntityManager must not be null!");
         Assert.notNull(extractor, "QueryExtractor must not be null!");
@@ -281,13 +354,17 @@ public final class AclJpaQueryLookupStrategy {
 
         switch (key != null ? key : Key.CREATE_IF_NOT_FOUND) {
             case CREATE:
-                return new CreateQueryLookupStrategy(em, extractor, escape, aclSpecification);
+                return new CreateQueryLookupStrategy(em, extractor, escape, aclSpecification, decisionCache,
+                        idChunkSize);
             case USE_DECLARED_QUERY:
-                return new DeclaredQueryLookupStrategy(em, extractor, evaluationContextProvider);
+                return new DeclaredQueryLookupStrategy(em, extractor, evaluationContextProvider, aclSpecification,
+                        decisionCache);
             case CREATE_IF_NOT_FOUND:
                 return new CreateIfNotFoundQueryLookupStrategy(em, extractor,
-                        new CreateQueryLookupStrategy(em, extractor, escape, aclSpecification),
-                        new DeclaredQueryLookupStrategy(em, extractor, evaluationContextProvider));
+                        new CreateQueryLookupStrategy(em, extractor, escape, aclSpecification, decisionCache,
+                                idChunkSize),
+                        new DeclaredQueryLookupStrategy(em, extractor, evaluationContextProvider, aclSpecification,
+                                decisionCache));
             default:
                 throw new IllegalArgumentException(String.format("Unsupported query lookup strategy %s!", key));
         }
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.data.jpa.repository.query;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.data.jpa.provider.QueryExtractor;
+import org.springframework.data.projection.ProjectionFactory;
+import org.springframework.data.repository.core.RepositoryMetadata;
+
+/**
+ * Extension of the {@link JpaQueryMethod} what gives access to the ACL specific annotations of the repository method.
+ * (The original class keeps the method private.)
+ *
+ * @author István Rátkai (Selindek)
+ */
+public class AclJpaQueryMethod extends JpaQueryMethod {
+
+  private final Method method;
+
+  public AclJpaQueryMethod(Method method, RepositoryMetadata metadata, ProjectionFactory factory,
+      QueryExtractor extractor) {
+    super(method, metadata, factory, extractor);
+    this.method = method;
+  }
+
+  /**
+   * Returns the given annotation of the method or null if the method is not annotated with it.
+   *
+   * @param annotationType
+   * @return
+   */
+  public <A extends Annotation> A findAnnotation(Class<A> annotationType) {
+    return AnnotatedElementUtils.findMergedAnnotation(method, annotationType);
+  }
+
+  public boolean isAnnotationPresent(Class<? extends Annotation> annotationType) {
+    return findAnnotation(annotationType) != null;
+  }
+
+}
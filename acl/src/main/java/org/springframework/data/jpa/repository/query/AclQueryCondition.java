@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.data.jpa.repository.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Predicate.BooleanOperator;
+import javax.persistence.criteria.Root;
+
+import org.hibernate.engine.query.spi.HQLQueryPlan;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.hql.internal.ast.QueryTranslatorImpl;
+import org.hibernate.hql.spi.QueryTranslator;
+import org.hibernate.param.NamedParameterSpecification;
+import org.hibernate.param.ParameterSpecification;
+
+import com.berrycloud.acl.AclSpecification;
+
+/**
+ * The ACL id-subquery of an entity type for the current user, rendered from the criteria predicates of the
+ * {@link AclSpecification}, together with the values of its parameters. It can be injected into declared JPQL queries
+ * or - after translating it to SQL - into native queries. The parameters of the subquery are renamed (or renumbered),
+ * so they never collide with the parameters of the query.
+ * <p>
+ * The rendering needs Hibernate.
+ *
+ * @author István Rátkai (Selindek)
+ */
+class AclQueryCondition {
+
+  private static final String ACL_PARAMETER_PREFIX = "acl_";
+  private static final Pattern NAMED_PARAMETER = Pattern.compile(":(\\w+)");
+
+  /**
+   * The subquery split at its parameters (one more element than the parameter list)
+   */
+  private final List<String> fragments;
+
+  /**
+   * The names of the parameters of the subquery in the order of their occurrences
+   */
+  private final List<String> parameters;
+
+  private final Map<String, Object> values;
+
+  private AclQueryCondition(List<String> fragments, List<String> parameters, Map<String, Object> values) {
+    this.fragments = fragments;
+    this.parameters = parameters;
+    this.values = values;
+  }
+
+  /**
+   * Renders the JPQL id-subquery of the given entity type for the current user. Returns null if the user has the
+   * permission to all the entities (so there is nothing to inject).
+   */
+  @SuppressWarnings("unchecked")
+  static AclQueryCondition render(EntityManager em, AclSpecification aclSpecification, Class<?> entityType,
+      String idAttributeName, String permission) {
+
+    CriteriaBuilder cb = em.getCriteriaBuilder();
+    CriteriaQuery<Object> query = cb.createQuery(Object.class);
+    Root<Object> root = (Root<Object>) query.from(entityType);
+    Predicate predicate = aclSpecification.toPredicate(root, query, cb, permission,
+        aclSpecification.createUserIdParameter(cb));
+    if (predicate.getOperator() == BooleanOperator.AND && predicate.getExpressions().isEmpty()
+        && !predicate.isNegated()) {
+      return null;
+    }
+    query.select(root.get(idAttributeName)).where(predicate);
+    // The user id is bound before the values are captured, so the JPQL of the subquery is the same for every user
+    org.hibernate.query.Query<?> subquery = aclSpecification.bindUserId(em.createQuery(query))
+        .unwrap(org.hibernate.query.Query.class);
+
+    List<String> fragments = new ArrayList<>();
+    List<String> parameters = new ArrayList<>();
+    Map<String, Object> values = new LinkedHashMap<>();
+    String jpql = subquery.getQueryString();
+    Matcher matcher = NAMED_PARAMETER.matcher(jpql);
+    int position = 0;
+    while (matcher.find()) {
+      fragments.add(jpql.substring(position, matcher.start()));
+      parameters.add(matcher.group(1));
+      values.put(matcher.group(1), subquery.getParameterValue(matcher.group(1)));
+      position = matcher.end();
+    }
+    fragments.add(jpql.substring(position));
+    return new AclQueryCondition(fragments, parameters, values);
+  }
+
+  /**
+   * Returns the JPQL of the subquery (with its original parameter names).
+   */
+  String getJpql() {
+    StringBuilder builder = new StringBuilder(fragments.get(0));
+    for (int i = 0; i < parameters.size(); i++) {
+      builder.append(':').append(parameters.get(i)).append(fragments.get(i + 1));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Translates the subquery to SQL. The translation is taken from the query plan cache of Hibernate, so a subquery
+   * with the same JPQL is compiled only once.
+   */
+  AclQueryCondition toSql(EntityManager em) {
+    SessionFactoryImplementor sessionFactory = em.getEntityManagerFactory().unwrap(SessionFactoryImplementor.class);
+    // Hibernate 5.3 has no supported API for translating HQL to SQL: the deprecated query plan cache and the classic
+    // QueryTranslatorImpl are used (they are replaced by the SQM of Hibernate 6)
+    @SuppressWarnings("deprecation")
+    HQLQueryPlan plan = sessionFactory.getQueryPlanCache().getHQLQueryPlan(getJpql(), false,
+        Collections.emptyMap());
+    QueryTranslator translator = plan.getTranslators()[0];
+    String sql = translator.getSQLString();
+
+    List<String> sqlFragments = new ArrayList<>();
+    List<String> sqlParameters = new ArrayList<>();
+    int position = 0;
+    for (ParameterSpecification specification : ((QueryTranslatorImpl) translator)
+        .getCollectedParameterSpecifications()) {
+      int next = sql.indexOf('?', position);
+      if (next < 0 || !(specification instanceof NamedParameterSpecification)) {
+        throw new IllegalStateException("Cannot translate the ACL subquery to SQL: " + sql);
+      }
+      sqlFragments.add(sql.substring(position, next));
+      sqlParameters.add(((NamedParameterSpecification) specification).getName());
+      position = next + 1;
+    }
+    sqlFragments.add(sql.substring(position));
+    return new AclQueryCondition(sqlFragments, sqlParameters, values);
+  }
+
+  /**
+   * Returns a copy of this condition with the parameter values of the given one. (It must be rendered from the same
+   * JPQL.)
+   */
+  AclQueryCondition withValuesOf(AclQueryCondition condition) {
+    return new AclQueryCondition(fragments, parameters, condition.values);
+  }
+
+  /**
+   * Returns the {@code <idPath> in (<subquery>)} condition. The parameters are rendered as {@code :acl_<name>} named
+   * parameters or - if the first position is positive - as positional parameters starting at that position.
+   */
+  String toCondition(String idPath, int firstPosition) {
+    List<String> names = new ArrayList<>(values.keySet());
+    StringBuilder builder = new StringBuilder(idPath).append(" in (").append(fragments.get(0));
+    for (int i = 0; i < parameters.size(); i++) {
+      if (firstPosition > 0) {
+        builder.append('?').append(firstPosition + names.indexOf(parameters.get(i)));
+      } else {
+        builder.append(':').append(ACL_PARAMETER_PREFIX).append(parameters.get(i));
+      }
+      builder.append(fragments.get(i + 1));
+    }
+    return builder.append(')').toString();
+  }
+
+  /**
+   * Binds the parameters of the condition created by {@link #toCondition(String, int)} with the same position.
+   */
+  <T extends Query> T bind(T query, int firstPosition) {
+    int position = firstPosition;
+    for (Entry<String, Object> entry : values.entrySet()) {
+      if (firstPosition > 0) {
+        query.setParameter(position++, entry.getValue());
+      } else {
+        query.setParameter(ACL_PARAMETER_PREFIX + entry.getKey(), entry.getValue());
+      }
+    }
+    return query;
+  }
+
+}
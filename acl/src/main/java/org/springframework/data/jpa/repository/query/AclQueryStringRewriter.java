@@ -0,0 +1,288 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.data.jpa.repository.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Injects an additional condition into the top-level WHERE clause of a declared query string. The statement is split by
+ * a lightweight scanner what skips the parenthesized sub-expressions, the string literals and the SQL comments, so
+ * the condition is always applied to the outermost query. The split positions are cached per statement, so a
+ * statement is scanned only once.
+ *
+ * @author István Rátkai (Selindek)
+ */
+class AclQueryStringRewriter {
+
+  /**
+   * Clauses what can follow the WHERE clause of a statement
+   */
+  private static final Set<String> TRAILING_CLAUSES = new HashSet<>(
+      Arrays.asList("group", "having", "order", "limit", "offset", "fetch", "for"));
+
+  /**
+   * Set operations combining the results of several top-level queries
+   */
+  private static final Set<String> SET_OPERATIONS = new HashSet<>(Arrays.asList("union", "intersect", "except",
+      "minus"));
+
+  /**
+   * Keywords what can follow the root entity name (so it has no alias)
+   */
+  private static final Set<String> NON_ALIAS_KEYWORDS = new HashSet<>(Arrays.asList("where", "join", "left", "right",
+      "inner", "outer", "cross", "full", "set", "group", "having", "order", "limit", "offset", "fetch", "for",
+      "union"));
+
+  /**
+   * Statements with dynamic sorting are cached separately, so the cache must be limited
+   */
+  private static final int MAX_CACHED_STATEMENTS = 256;
+
+  private final Map<String, Split> splits = new ConcurrentHashMap<>();
+
+  /**
+   * Returns the statement with the given condition AND-ed to its top-level WHERE clause.
+   */
+  String rewrite(String statement, String condition) {
+    Split split = splits.get(statement);
+    if (split == null) {
+      split = Split.of(statement);
+      if (splits.size() < MAX_CACHED_STATEMENTS) {
+        splits.put(statement, split);
+      }
+    }
+    return split.apply(statement, condition);
+  }
+
+  /**
+   * Returns the root entity (or table) name and its alias of the given statement or null if the statement has no
+   * aliased root.
+   */
+  static String[] detectRoot(String statement) {
+    List<Token> tokens = scan(statement).tokens;
+    if (tokens.isEmpty()) {
+      return null;
+    }
+    int position = -1;
+    if ("update".equals(tokens.get(0).word)) {
+      position = tokens.get(0).end;
+    } else {
+      for (Token token : tokens) {
+        if ("from".equals(token.word)) {
+          position = token.end;
+          break;
+        }
+      }
+    }
+    if (position < 0) {
+      return null;
+    }
+
+    position = skipWhitespace(statement, position);
+    String entityName = readName(statement, position);
+    position = skipWhitespace(statement, position + entityName.length());
+    String alias = readName(statement, position);
+    if (alias.equalsIgnoreCase("as")) {
+      alias = readName(statement, skipWhitespace(statement, position + alias.length()));
+    }
+    if (entityName.isEmpty() || alias.isEmpty() || alias.indexOf('.') >= 0
+        || NON_ALIAS_KEYWORDS.contains(alias.toLowerCase())) {
+      return null;
+    }
+    return new String[] { entityName, alias };
+  }
+
+  /**
+   * Checks if the given statement combines several top-level queries by a set operation (e.g. {@code UNION}). The
+   * condition would be injected into the first query only, so these statements cannot be rewritten.
+   */
+  static boolean hasSetOperation(String statement) {
+    for (Token token : scan(statement).tokens) {
+      if (SET_OPERATIONS.contains(token.word)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the first word of the given statement in lower case.
+   */
+  static String detectStatementType(String statement) {
+    List<Token> tokens = scan(statement).tokens;
+    return tokens.isEmpty() ? "" : tokens.get(0).word;
+  }
+
+  private static String readName(String statement, int start) {
+    int end = start;
+    while (end < statement.length()
+        && (Character.isJavaIdentifierPart(statement.charAt(end)) || statement.charAt(end) == '.')) {
+      end++;
+    }
+    return statement.substring(start, end);
+  }
+
+  private static int skipWhitespace(String statement, int start) {
+    int position = start;
+    while (position < statement.length() && Character.isWhitespace(statement.charAt(position))) {
+      position++;
+    }
+    return position;
+  }
+
+  /**
+   * Collects the top-level words of the statement (in lower case). Property paths, parameter names, string literals,
+   * comments and parenthesized expressions are skipped.
+   */
+  private static Scan scan(String statement) {
+    Scan scan = new Scan();
+    int depth = 0;
+    int position = 0;
+    while (position < statement.length()) {
+      char c = statement.charAt(position);
+      if (c == '\'' || c == '"') {
+        int end = statement.indexOf(c, position + 1);
+        position = end < 0 ? statement.length() : end + 1;
+        scan.contentEnd = position;
+        continue;
+      }
+      if (statement.startsWith("--", position)) {
+        int end = statement.indexOf('\n', position);
+        position = end < 0 ? statement.length() : end + 1;
+        continue;
+      }
+      if (statement.startsWith("/*", position)) {
+        int end = statement.indexOf("*/", position + 2);
+        position = end < 0 ? statement.length() : end + 2;
+        continue;
+      }
+      if (Character.isJavaIdentifierStart(c)) {
+        int start = position;
+        while (position < statement.length() && Character.isJavaIdentifierPart(statement.charAt(position))) {
+          position++;
+        }
+        char previous = start == 0 ? ' ' : statement.charAt(start - 1);
+        if (depth == 0 && previous != '.' && previous != ':') {
+          scan.tokens.add(new Token(statement.substring(start, position).toLowerCase(), start, position));
+        }
+        scan.contentEnd = position;
+        continue;
+      }
+      if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+      }
+      position++;
+      if (!Character.isWhitespace(c)) {
+        scan.contentEnd = position;
+      }
+    }
+    return scan;
+  }
+
+  private static class Scan {
+
+    private final List<Token> tokens = new ArrayList<>();
+
+    /**
+     * The end of the last character what is not a whitespace or part of a comment
+     */
+    private int contentEnd;
+  }
+
+  private static class Token {
+
+    private final String word;
+    private final int start;
+    private final int end;
+
+    Token(String word, int start, int end) {
+      this.word = word;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  /**
+   * The insertion points of a statement
+   */
+  private static class Split {
+
+    /**
+     * The end of the WHERE keyword or -1 if the statement has no WHERE clause
+     */
+    private final int whereEnd;
+
+    /**
+     * The end of the WHERE clause (or the position where it should be inserted)
+     */
+    private final int clauseEnd;
+
+    private Split(int whereEnd, int clauseEnd) {
+      this.whereEnd = whereEnd;
+      this.clauseEnd = clauseEnd;
+    }
+
+    static Split of(String statement) {
+      Scan scan = scan(statement);
+      int whereEnd = -1;
+      boolean afterFrom = false;
+      for (int i = 0; i < scan.tokens.size(); i++) {
+        Token token = scan.tokens.get(i);
+        if (whereEnd < 0 && "where".equals(token.word)) {
+          whereEnd = token.end;
+        } else if ((whereEnd >= 0 || afterFrom) && isTrailingClause(scan.tokens, i)) {
+          return new Split(whereEnd, token.start);
+        } else if ("from".equals(token.word) || "update".equals(token.word) || "set".equals(token.word)) {
+          afterFrom = true;
+        }
+      }
+      // The trailing comments are kept at the end
+      return new Split(whereEnd, scan.contentEnd);
+    }
+
+    /**
+     * The JPQL fetch joins are not trailing clauses, only the SQL {@code FETCH FIRST} and {@code FETCH NEXT} are.
+     */
+    private static boolean isTrailingClause(List<Token> tokens, int index) {
+      String word = tokens.get(index).word;
+      if ("fetch".equals(word)) {
+        String next = index + 1 < tokens.size() ? tokens.get(index + 1).word : "";
+        return "first".equals(next) || "next".equals(next);
+      }
+      return TRAILING_CLAUSES.contains(word);
+    }
+
+    String apply(String statement, String condition) {
+      StringBuilder builder = new StringBuilder(statement.length() + condition.length() + 16);
+      if (whereEnd < 0) {
+        builder.append(statement, 0, clauseEnd).append(" where ").append(condition).append(' ');
+      } else {
+        builder.append(statement, 0, whereEnd).append(" (").append(statement, whereEnd, clauseEnd).append(") and ")
+            .append(condition).append(' ');
+      }
+      return builder.append(statement, clauseEnd, statement.length()).toString();
+    }
+  }
+
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.data.jpa.repository.query;
+
+import static com.berrycloud.acl.AclConstants.DELETE_PERMISSION;
+import static com.berrycloud.acl.AclConstants.READ_PERMISSION;
+import static com.berrycloud.acl.AclConstants.UPDATE_PERMISSION;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.Tuple;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.Loadable;
+import org.springframework.data.repository.query.QueryMethodEvaluationContextProvider;
+import org.springframework.data.repository.query.ReturnedType;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.util.StringUtils;
+
+import com.berrycloud.acl.AclDecisionCache;
+import com.berrycloud.acl.AclSpecification;
+import com.berrycloud.acl.repository.AclTableAlias;
+import com.berrycloud.acl.repository.NoAcl;
+
+/**
+ * {@link AbstractStringBasedJpaQuery} for the declared queries ({@code @Query} and named queries) of the ACL
+ * repositories. The ACL is injected into the top-level WHERE clause of the query (and of its count query) as an
+ * id-subquery of the root entity: {@code alias.id in (select ... where <acl predicates>)}. The subquery is rendered from
+ * the same criteria predicates the derived queries use, and its parameters are bound together with the parameters of
+ * the method. Select queries are checked against the READ, update and delete queries against the UPDATE and DELETE
+ * permissions.
+ * <p>
+ * The root of JPQL queries is detected automatically. Native queries are secured only if the method is annotated with
+ * {@link AclTableAlias}. Their subquery is translated to SQL by the query plan cache of Hibernate. If the ACL cannot be
+ * injected into a query then the repository cannot be created, unless the method is annotated with {@link NoAcl}.
+ * <p>
+ * The rendering of the subquery needs Hibernate.
+ *
+ * @author István Rátkai (Selindek)
+ */
+class AclStringBasedJpaQuery extends AbstractStringBasedJpaQuery {
+
+  private static final SpelExpressionParser PARSER = new SpelExpressionParser();
+
+  /**
+   * Different roles can produce different subqueries, so the cache must be limited
+   */
+  private static final int MAX_CACHED_SUBQUERIES = 64;
+
+  private final AclSpecification aclSpecification;
+  private final AclDecisionCache decisionCache;
+  private final Class<?> rootType;
+  private final String idAttributeName;
+  private final String idPath;
+  private final String permission;
+  private final boolean nativeQuery;
+  private final AclQueryStringRewriter rewriter = new AclQueryStringRewriter();
+
+  /**
+   * SQL translations of the ACL subqueries by their JPQL (native queries only)
+   */
+  private final Map<String, AclQueryCondition> sqlConditions = new ConcurrentHashMap<>();
+
+  /**
+   * The first free position for the ACL parameters or 0 if the query uses named parameters
+   */
+  private final int firstAclPosition;
+
+  private AclStringBasedJpaQuery(JpaQueryMethod method, EntityManager em, String queryString,
+      QueryMethodEvaluationContextProvider evaluationContextProvider, AclSpecification aclSpecification,
+      AclDecisionCache decisionCache, EntityType<?> rootType, String idPath, String permission) {
+
+    super(method, em, queryString, evaluationContextProvider, PARSER);
+
+    this.aclSpecification = aclSpecification;
+    this.decisionCache = decisionCache;
+    this.rootType = rootType.getJavaType();
+    this.idAttributeName = getIdAttribute(rootType).getName();
+    this.idPath = idPath;
+    this.nativeQuery = method.isNativeQuery();
+
+    if (StringUtils.hasText(permission)) {
+      this.permission = permission;
+    } else {
+      String statementType = AclQueryStringRewriter.detectStatementType(queryString);
+      this.permission = "update".equals(statementType) ? UPDATE_PERMISSION
+          : "delete".equals(statementType) ? DELETE_PERMISSION : READ_PERMISSION;
+    }
+
+    int maxPosition = 0;
+    boolean positional = false;
+    for (StringQuery.ParameterBinding binding : getQuery().getParameterBindings()) {
+      if (binding.getName() == null && binding.getPosition() != null) {
+        positional = true;
+        maxPosition = Math.max(maxPosition, binding.getPosition());
+      }
+    }
+    this.firstAclPosition = positional ? maxPosition + 1 : 0;
+  }
+
+  /**
+   * Creates an ACL query for the given query string. The modifying queries invalidate the ACL decisions of the given
+   * cache (if it's not null).
+   *
+   * @throws InvalidJpaQueryMethodException
+   *           if the ACL cannot be injected into the query (a JPQL query has no aliased root entity with a single id
+   *           attribute, a native query method is not annotated with {@link AclTableAlias} or the query has a set
+   *           operation like {@code UNION})
+   */
+  static AclStringBasedJpaQuery create(JpaQueryMethod method, EntityManager em, String queryString,
+      QueryMethodEvaluationContextProvider evaluationContextProvider, AclSpecification aclSpecification,
+      AclDecisionCache decisionCache) {
+
+    if (AclQueryStringRewriter.hasSetOperation(queryString)) {
+      throw unsupportedQuery(method, "the ACL cannot be applied to every branch of a set operation");
+    }
+    if (method.isNativeQuery()) {
+      return createNative(method, em, queryString, evaluationContextProvider, aclSpecification, decisionCache);
+    }
+
+    String[] root = AclQueryStringRewriter.detectRoot(queryString);
+    if (root == null) {
+      throw unsupportedQuery(method, "the query has no aliased root entity");
+    }
+    EntityType<?> rootType = findEntityType(em, root[0]);
+    if (rootType == null) {
+      throw unsupportedQuery(method, "unknown root entity " + root[0]);
+    }
+    if (!rootType.hasSingleIdAttribute()) {
+      throw unsupportedQuery(method, "the root entity has a composite id");
+    }
+    return new AclStringBasedJpaQuery(method, em, queryString, evaluationContextProvider, aclSpecification,
+        decisionCache, rootType, root[1] + "." + getIdAttribute(rootType).getName(), null);
+  }
+
+  private static AclStringBasedJpaQuery createNative(JpaQueryMethod method, EntityManager em, String queryString,
+      QueryMethodEvaluationContextProvider evaluationContextProvider, AclSpecification aclSpecification,
+      AclDecisionCache decisionCache) {
+
+    AclTableAlias tableAlias = method instanceof AclJpaQueryMethod
+        ? ((AclJpaQueryMethod) method).findAnnotation(AclTableAlias.class)
+        : null;
+    if (tableAlias == null) {
+      throw unsupportedQuery(method, "native queries must be annotated with @AclTableAlias");
+    }
+    if (method.getParameters().hasSortParameter() && !queryString.contains("#sort")) {
+      throw new InvalidJpaQueryMethodException(
+          "Cannot use native queries with dynamic sorting in method " + method);
+    }
+
+    Class<?> entityClass = tableAlias.entity() == void.class ? method.getEntityInformation().getJavaType()
+        : tableAlias.entity();
+    EntityType<?> rootType = em.getMetamodel().entity(entityClass);
+    if (!rootType.hasSingleIdAttribute()) {
+      throw unsupportedQuery(method, "the root entity has a composite id");
+    }
+    Loadable persister = (Loadable) em.getEntityManagerFactory().unwrap(SessionFactoryImplementor.class)
+        .getMetamodel().entityPersister(entityClass);
+    return new AclStringBasedJpaQuery(method, em, queryString, evaluationContextProvider, aclSpecification,
+        decisionCache, rootType, tableAlias.value() + "." + persister.getIdentifierColumnNames()[0],
+        tableAlias.permission());
+  }
+
+  private static InvalidJpaQueryMethodException unsupportedQuery(JpaQueryMethod method, String reason) {
+    return new InvalidJpaQueryMethodException(String.format(
+        "Cannot apply the ACL to the query of method %s: %s. Use @NoAcl annotation on the method if it's intended.",
+        method, reason));
+  }
+
+  /**
+   * The modifying queries are bulk statements what bypass the event listeners of the {@link AclDecisionCache}, so they
+   * invalidate the decisions of the root entity type after the execution.
+   */
+  @Override
+  protected JpaQueryExecution getExecution() {
+    JpaQueryExecution execution = super.getExecution();
+    if (decisionCache == null || !getQueryMethod().isModifyingQuery()) {
+      return execution;
+    }
+    return new JpaQueryExecution() {
+      @Override
+      protected Object doExecute(AbstractJpaQuery query, Object[] values) {
+        Object result = execution.doExecute(query, values);
+        decisionCache.invalidate(rootType);
+        return result;
+      }
+    };
+  }
+
+  @Override
+  protected Query createJpaQuery(String queryString, ReturnedType returnedType) {
+    AclQueryCondition condition = createAclCondition();
+    String securedQueryString = condition == null ? queryString
+        : rewriter.rewrite(queryString, condition.toCondition(idPath, firstAclPosition));
+    Query query = nativeQuery ? createNativeQuery(securedQueryString, returnedType)
+        : super.createJpaQuery(securedQueryString, returnedType);
+    return condition == null ? query : condition.bind(query, firstAclPosition);
+  }
+
+  @Override
+  protected Query doCreateCountQuery(Object[] values) {
+    AclQueryCondition condition = createAclCondition();
+    if (condition == null) {
+      return super.doCreateCountQuery(values);
+    }
+    String queryString = rewriter.rewrite(getCountQuery().getQueryString(),
+        condition.toCondition(idPath, firstAclPosition));
+    EntityManager em = getEntityManager();
+    Query query = nativeQuery ? em.createNativeQuery(queryString) : em.createQuery(queryString, Long.class);
+    return parameterBinder.get().bind(condition.bind(query, firstAclPosition), values);
+  }
+
+  /**
+   * Creates the native query the same way as {@link NativeJpaQuery} does.
+   */
+  private Query createNativeQuery(String queryString, ReturnedType returnedType) {
+    Class<?> type = getQueryMethod().isQueryForEntity() ? returnedType.getDomainType() : null;
+    if (!getQuery().hasConstructorExpression() && !getQuery().isDefaultProjection() && returnedType.isProjecting()
+        && !getMetamodel().isJpaManaged(returnedType.getReturnedType())) {
+      type = Tuple.class;
+    }
+    EntityManager em = getEntityManager();
+    return type == null ? em.createNativeQuery(queryString) : em.createNativeQuery(queryString, type);
+  }
+
+  /**
+   * Renders the ACL subquery of the root entity for the current user (in SQL for native queries). Returns null if the
+   * user has the permission to all the entities.
+   */
+  private AclQueryCondition createAclCondition() {
+    EntityManager em = getEntityManager();
+    AclQueryCondition condition = AclQueryCondition.render(em, aclSpecification, rootType, idAttributeName,
+        permission);
+    if (condition == null || !nativeQuery) {
+      return condition;
+    }
+    String jpql = condition.getJpql();
+    AclQueryCondition sqlCondition = sqlConditions.get(jpql);
+    if (sqlCondition == null) {
+      sqlCondition = condition.toSql(em);
+      if (sqlConditions.size() < MAX_CACHED_SUBQUERIES) {
+        sqlConditions.put(jpql, sqlCondition);
+      }
+    }
+    return sqlCondition.withValuesOf(condition);
+  }
+
+  private static EntityType<?> findEntityType(EntityManager em, String name) {
+    for (EntityType<?> entityType : em.getMetamodel().getEntities()) {
+      if (entityType.getName().equals(name) || entityType.getJavaType().getName().equals(name)) {
+        return entityType;
+      }
+    }
+    return null;
+  }
+
+  private static SingularAttribute<?, ?> getIdAttribute(EntityType<?> entityType) {
+    for (SingularAttribute<?, ?> attribute : entityType.getSingularAttributes()) {
+      if (attribute.isId()) {
+        return attribute;
+      }
+    }
+    throw new IllegalArgumentException("No id attribute found for " + entityType.getName());
+  }
+
+}
@@ -15,16 +15,26 @@
  */
 package org.springframework.data.jpa.repository.query;
 
+import static com.berrycloud.acl.AclConstants.DELETE_PERMISSION;
+import static com.berrycloud.acl.AclConstants.READ_PERMISSION;
+
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.persistence.EntityManager;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CompoundSelection;
 import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Order;
+import javax.persistence.criteria.ParameterExpression;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
@@ -33,13 +43,19 @@ import org.springframework.data.jpa.provider.PersistenceProvider;
 import org.springframework.data.jpa.repository.query.JpaQueryExecution.DeleteExecution;
 import org.springframework.data.jpa.repository.query.JpaQueryExecution.ExistsExecution;
 import org.springframework.data.jpa.repository.query.ParameterMetadataProvider.ParameterMetadata;
+import org.springframework.data.jpa.repository.support.JpaEntityInformation;
+import org.springframework.data.jpa.repository.support.JpaEntityInformationSupport;
 import org.springframework.data.repository.query.ParametersParameterAccessor;
 import org.springframework.data.repository.query.ResultProcessor;
 import org.springframework.data.repository.query.ReturnedType;
 import org.springframework.data.repository.query.parser.PartTree;
 
+import com.berrycloud.acl.AclDecisionCache;
 import com.berrycloud.acl.AclSpecification;
+import com.berrycloud.acl.AclSpecification.Outcome;
+import com.berrycloud.acl.repository.LoadBeforeDelete;
 import com.berrycloud.acl.search.Search;
+import com.berrycloud.acl.security.AclUserDetailsService;
 
 /**
  * This class is an extension of the {@link PartTreeJpaQuery} class with some addition for the Acl. The whole source was
@@ -56,15 +72,33 @@ import com.berrycloud.acl.search.Search;
  */
 public class PartTreeAclJpaQuery extends AbstractJpaQuery {
 
+  private static final String IDS_PARAMETER = "ids";
+
+  /**
+   * Maximum number of the cached query shapes per query preparer. (Dynamic sorting can produce any number of shapes.)
+   */
+  private static final int MAX_CACHED_QUERY_SHAPES = 64;
+
+  /**
+   * Maximum number of the ids bound into one bulk delete statement if it's not configured
+   */
+  private static final int DEFAULT_ID_CHUNK_SIZE = 1000;
+
   private final PartTree tree;
   private final JpaParameters parameters;
 
   private final QueryPreparer query;
   private final QueryPreparer countQuery;
+  private final QueryPreparer idQuery;
   private final EntityManager em;
   private final EscapeCharacter escape;
-  
+  private final JpaEntityInformation<?, ?> entityInformation;
+
   private final AclSpecification aclSpecification;
+  private final AclDecisionCache decisionCache;
+  private final String permission;
+  private final boolean bulkDelete;
+  private final int idChunkSize;
 
   /**
    * Creates a new {@link PartTreeJpaQuery}.
@@ -75,9 +109,13 @@ public class PartTreeAclJpaQuery extends AbstractJpaQuery {
    *          must not be {@literal null}.
    * @param persistenceProvider
    *          must not be {@literal null}.
+   * @param decisionCache
+   *          the cache invalidated by the bulk deletes, can be {@literal null}.
+   * @param idChunkSize
+   *          the maximum number of the ids bound into one bulk delete statement, zero means the default.
    */
   PartTreeAclJpaQuery(JpaQueryMethod method, EntityManager em, PersistenceProvider persistenceProvider, EscapeCharacter escape,
-      AclSpecification aclSpecification) {
+      AclSpecification aclSpecification, AclDecisionCache decisionCache, int idChunkSize) {
 
     super(method, em);
 
@@ -86,12 +124,21 @@ public class PartTreeAclJpaQuery extends AbstractJpaQuery {
     Class<?> domainClass = method.getEntityInformation().getJavaType();
     this.parameters = method.getParameters();
     this.aclSpecification = aclSpecification;
+    this.decisionCache = decisionCache;
+    this.idChunkSize = idChunkSize > 0 ? idChunkSize : DEFAULT_ID_CHUNK_SIZE;
+    this.entityInformation = JpaEntityInformationSupport.getEntityInformation(domainClass, em);
 
     try {
 
       this.tree = new PartTree(method.getName(), domainClass);
       this.countQuery = new CountQueryPreparer(persistenceProvider);
       this.query = tree.isCountProjection() ? countQuery : new QueryPreparer(persistenceProvider);
+      this.idQuery = tree.isDelete() ? new IdQueryPreparer(persistenceProvider) : null;
+      this.permission = tree.isDelete() ? DELETE_PERMISSION : READ_PERMISSION;
+      // Deleted entities can be returned only if they are loaded
+      this.bulkDelete = tree.isDelete() && !domainClass.isAssignableFrom(method.getReturnedObjectType())
+          && !(method instanceof AclJpaQueryMethod
+              && ((AclJpaQueryMethod) method).isAnnotationPresent(LoadBeforeDelete.class));
 
     } catch (Exception o_O) {
       throw new IllegalArgumentException(
@@ -129,7 +176,7 @@ public class PartTreeAclJpaQuery extends AbstractJpaQuery {
   protected JpaQueryExecution getExecution() {
 
     if (this.tree.isDelete()) {
-      return new DeleteExecution(em);
+      return bulkDelete ? new BulkDeleteExecution() : new DeleteExecution(em);
     } else if (this.tree.isExistsProjection()) {
       return new ExistsExecution();
     }
@@ -147,6 +194,7 @@ public class PartTreeAclJpaQuery extends AbstractJpaQuery {
   private class QueryPreparer {
 
     private final PersistenceProvider persistenceProvider;
+    private final Map<List<Object>, PreparedQuery> preparedQueries = new ConcurrentHashMap<>();
 
     QueryPreparer(PersistenceProvider persistenceProvider) {
 
@@ -154,19 +202,45 @@ public class PartTreeAclJpaQuery extends AbstractJpaQuery {
     }
 
     /**
-     * Creates a new {@link Query} for the given parameter values.
+     * Creates a new {@link Query} for the given parameter values. The prepared criteria query is cached per dynamic
+     * sort and {@link Outcome} of the ACL check, so the same query shape is reused (and the same JPQL is rendered) for
+     * all the users. The id of the current user is bound as a parameter.
      */
     public Query createQuery(Object[] values) {
 
       ParametersParameterAccessor accessor = new ParametersParameterAccessor(parameters, values);
+      Sort sort = getDynamicSort(values);
+      Outcome outcome = aclSpecification.getOutcome(entityInformation.getJavaType(), permission);
+
+      // Null values change the predicates and the search patterns are rendered into the query
+      boolean cacheable = !parameters.hasDynamicProjection() && !accessor.hasBindableNullValue()
+          && !(sort instanceof Search);
+      List<Object> shape = Arrays.asList(sort, outcome);
+
+      PreparedQuery prepared = cacheable ? preparedQueries.get(shape) : null;
+      if (prepared == null) {
+        prepared = prepare(accessor, sort, outcome);
+        if (cacheable && preparedQueries.size() < MAX_CACHED_QUERY_SHAPES) {
+          preparedQueries.put(shape, prepared);
+        }
+      }
+
+      TypedQuery<?> query = createQuery(prepared.criteriaQuery);
+      if (prepared.userId != null) {
+        query.setParameter(prepared.userId, AclUserDetailsService.getAclUserDetails().getUserId());
+      }
+      return restrictMaxResultsIfNecessary(invokeBinding(prepared.binder, query, values));
+    }
+
+    private PreparedQuery prepare(ParametersParameterAccessor accessor, Sort sort, Outcome outcome) {
 
       JpaQueryCreator creator = createCreator(persistenceProvider, Optional.of(accessor));
-      Sort sort = getDynamicSort(values);
       CriteriaQuery<?> criteriaQuery = creator.createQuery(sort);
       List<ParameterMetadata<?>> expressions = creator.getParameterExpressions();
       ParameterBinder parameterBinder = getBinder(expressions);
 
-      applyAcl(criteriaQuery);
+      ParameterExpression<Object> userId = applyAcl(criteriaQuery, outcome);
+      applySelection(criteriaQuery);
 
       if (sort instanceof Search) {
         aclSpecification.applySearch(criteriaQuery, em.getCriteriaBuilder(), criteriaQuery.getRoots().iterator().next(),
@@ -180,17 +254,33 @@ public class PartTreeAclJpaQuery extends AbstractJpaQuery {
         throw new IllegalStateException("ParameterBinder is null!");
       }
 
-      return restrictMaxResultsIfNecessary(invokeBinding(parameterBinder, createQuery(criteriaQuery), values));
+      return new PreparedQuery(criteriaQuery, parameterBinder, userId);
     }
 
-    private void applyAcl(CriteriaQuery<?> criteriaQuery) {
+    /**
+     * Applies the ACL predicates to the query. Returns the parameter of the user id or null if the predicates don't
+     * depend on the user.
+     */
+    @SuppressWarnings("unchecked")
+    private ParameterExpression<Object> applyAcl(CriteriaQuery<?> criteriaQuery, Outcome outcome) {
       CriteriaBuilder cb = em.getCriteriaBuilder();
-      @SuppressWarnings("unchecked")
       Root<Object> root = (Root<Object>) criteriaQuery.getRoots().iterator().next();
+      ParameterExpression<Object> userId = outcome == Outcome.FILTERED ? aclSpecification.createUserIdParameter(cb)
+          : null;
       Predicate original = criteriaQuery.getRestriction();
-      Predicate acl = aclSpecification.toPredicate(root, criteriaQuery, cb);
+      // Projections are checked by an id-subquery: DISTINCT would merge the equal projections of different entities
+      Predicate acl = criteriaQuery.getSelection() instanceof CompoundSelection
+          ? aclSpecification.toSubqueryPredicate(root, criteriaQuery, cb, permission, userId)
+          : aclSpecification.toPredicate(root, criteriaQuery, cb, permission, userId);
 
       criteriaQuery.where(original == null ? acl : cb.and(original, acl));
+      return userId;
+    }
+
+    /**
+     * Hook for changing the selection of the query after the ACL predicates were applied.
+     */
+    protected void applySelection(CriteriaQuery<?> criteriaQuery) {
     }
 
     /**
@@ -264,6 +354,24 @@ public class PartTreeAclJpaQuery extends AbstractJpaQuery {
     }
   }
 
+  /**
+   * A criteria query prepared for a query shape together with its binder
+   *
+   * @author István Rátkai (Selindek)
+   */
+  private static class PreparedQuery {
+
+    private final CriteriaQuery<?> criteriaQuery;
+    private final ParameterBinder binder;
+    private final ParameterExpression<Object> userId;
+
+    PreparedQuery(CriteriaQuery<?> criteriaQuery, ParameterBinder binder, ParameterExpression<Object> userId) {
+      this.criteriaQuery = criteriaQuery;
+      this.binder = binder;
+      this.userId = userId;
+    }
+  }
+
   /**
    * Special {@link QueryPreparer} to create count queries.
    * 
@@ -307,4 +415,71 @@ public class PartTreeAclJpaQuery extends AbstractJpaQuery {
       return binder.bind(query, values);
     }
   }
+
+  /**
+   * Special {@link QueryPreparer} to select only the ids of the matching entities.
+   *
+   * @author István Rátkai (Selindek)
+   */
+  private class IdQueryPreparer extends QueryPreparer {
+
+    IdQueryPreparer(PersistenceProvider persistenceProvider) {
+      super(persistenceProvider);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void applySelection(CriteriaQuery<?> criteriaQuery) {
+      Root<?> root = criteriaQuery.getRoots().iterator().next();
+      ((CriteriaQuery<Object>) criteriaQuery).select(root.get(entityInformation.getIdAttribute().getName()));
+      criteriaQuery.orderBy(Collections.<Order> emptyList());
+    }
+  }
+
+  /**
+   * Deletes the entities matching the derived query by a bulk delete statement without loading them. Only the ids of the
+   * entities are selected first, then the entities are deleted by their ids while the ACL is checked again in an
+   * id-subquery. (The predicates of the derived query are bound to a {@link CriteriaQuery}, so they cannot be moved into
+   * a {@link CriteriaDelete} directly.) Like {@code @Modifying(flushAutomatically = true, clearAutomatically = true)},
+   * the pending changes are flushed before the statement and the persistence context is cleared after it, so the
+   * deleted entities do not remain managed.
+   *
+   * @author István Rátkai (Selindek)
+   */
+  private class BulkDeleteExecution extends JpaQueryExecution {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Object doExecute(AbstractJpaQuery jpaQuery, Object[] values) {
+
+      List<Object> ids = idQuery.createQuery(values).getResultList();
+      if (ids.isEmpty()) {
+        return 0;
+      }
+
+      CriteriaBuilder cb = em.getCriteriaBuilder();
+      CriteriaDelete<Object> delete = cb.createCriteriaDelete((Class<Object>) entityInformation.getJavaType());
+      Root<Object> root = delete.from((Class<Object>) entityInformation.getJavaType());
+
+      Predicate idPredicate = root.get(entityInformation.getIdAttribute().getName())
+          .in(cb.parameter(Collection.class, IDS_PARAMETER));
+      delete.where(cb.and(idPredicate,
+          aclSpecification.toSubqueryPredicate(root, delete, cb, permission, aclSpecification.createUserIdParameter(cb))));
+
+      // The ids are bound in chunks, so the number of the parameters remains below the limits of the databases
+      Query query = aclSpecification.bindUserId(em.createQuery(delete));
+      em.flush();
+      int deleted = 0;
+      for (int from = 0; from < ids.size(); from += idChunkSize) {
+        deleted += query.setParameter(IDS_PARAMETER, ids.subList(from, Math.min(from + idChunkSize, ids.size())))
+            .executeUpdate();
+      }
+      em.clear();
+      // The bulk statement bypasses the event listeners of the cache
+      if (decisionCache != null) {
+        decisionCache.invalidate(entityInformation.getJavaType());
+      }
+      return deleted;
+    }
+  }
 }
@@ -18,31 +18,56 @@ package org.springframework.data.jpa.repository.support;
 import static com.berrycloud.acl.AclConstants.DELETE_PERMISSION;
 import static com.berrycloud.acl.AclConstants.READ_PERMISSION;
 import static com.berrycloud.acl.AclConstants.UPDATE_PERMISSION;
+import static com.berrycloud.acl.AclSpecification.USER_ID_PARAMETER;
 import static org.springframework.data.jpa.repository.query.QueryUtils.DELETE_ALL_QUERY_STRING;
 import static org.springframework.data.jpa.repository.query.QueryUtils.applyAndBind;
 import static org.springframework.data.jpa.repository.query.QueryUtils.getQueryString;
 import static org.springframework.data.jpa.repository.query.QueryUtils.toOrders;
 
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Member;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
-
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+
+import javax.persistence.AttributeNode;
+import javax.persistence.Column;
+import javax.persistence.EntityGraph;
 import javax.persistence.EntityManager;
 import javax.persistence.FlushModeType;
+import javax.persistence.JoinColumn;
 import javax.persistence.LockModeType;
 import javax.persistence.NoResultException;
 import javax.persistence.Parameter;
 import javax.persistence.Query;
+import javax.persistence.Tuple;
+import javax.persistence.TupleElement;
+import javax.persistence.Subgraph;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaDelete;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.CriteriaUpdate;
 import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.From;
 import javax.persistence.criteria.Join;
+import javax.persistence.criteria.JoinType;
 import javax.persistence.criteria.Order;
 import javax.persistence.criteria.ParameterExpression;
 import javax.persistence.criteria.Path;
@@ -50,23 +75,54 @@ import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 import javax.persistence.criteria.Selection;
 import javax.persistence.criteria.Subquery;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.Attribute.PersistentAttributeType;
 import javax.persistence.metamodel.EntityType;
 import javax.persistence.metamodel.SingularAttribute;
 
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.core.convert.support.DefaultConversionService;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.domain.Specification;
 import org.springframework.data.mapping.PersistentProperty;
+import org.springframework.data.mapping.PreferredConstructor;
+import org.springframework.data.mapping.model.PreferredConstructorDiscoverer;
+import org.springframework.data.projection.ProjectionFactory;
+import org.springframework.data.projection.ProjectionInformation;
+import org.springframework.data.projection.SpelAwareProxyProjectionFactory;
 import org.springframework.data.repository.support.PageableExecutionUtils;
+import org.springframework.data.util.DirectFieldAccessFallbackBeanWrapper;
+import org.springframework.data.util.Streamable;
 import org.springframework.lang.Nullable;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionOperations;
 import org.springframework.util.Assert;
-
+import org.springframework.util.ClassUtils;
+
+import com.berrycloud.acl.AclDecisionCache;
+import com.berrycloud.acl.AclFlushVerifier;
+import com.berrycloud.acl.AclPrincipalFingerprint;
+import com.berrycloud.acl.AclQueryCache;
+import com.berrycloud.acl.AclQueryCache.RenderedQuery;
+import com.berrycloud.acl.AclSharedResultCache;
+import com.berrycloud.acl.AclSharedResultCache.CachedPage;
 import com.berrycloud.acl.AclSpecification;
+import com.berrycloud.acl.AclSpecification.Outcome;
 import com.berrycloud.acl.repository.AclJpaRepository;
+import com.berrycloud.acl.repository.Aggregate;
+import com.berrycloud.acl.repository.PermittedEntity;
 import com.berrycloud.acl.search.Search;
+import com.berrycloud.acl.security.AclUserDetailsService;
 
 /**
  * Default implementation of the {@link AclJpaRepository} interface. This class uses the default SimpleJpaRepository
@@ -83,12 +139,29 @@ import com.berrycloud.acl.search.Search;
 @Transactional(readOnly = true)
 public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> implements AclJpaRepository<T, ID> {
 
+  private static Logger LOG = LoggerFactory.getLogger(SimpleAclJpaRepository.class);
+
   private static final String ID_MUST_NOT_BE_NULL = "The given id must not be null!";
+  private static final String IDS_PARAMETER = "ids";
+  private static final String ID_PARAMETER = "id";
+  private static final List<String> QUERY_VARIABLES = Arrays.asList(IDS_PARAMETER, ID_PARAMETER, USER_ID_PARAMETER);
+  private static final String VALUE_PARAMETER_PREFIX = "value";
+  private static final String VERSION_PARAMETER = "version";
+  private static final int DEFAULT_ID_CHUNK_SIZE = 1000;
 
   private final JpaEntityInformation<T, ?> entityInformation;
   private final EntityManager em;
 
   private AclSpecification aclSpecification;
+  private TransactionOperations transactionOperations;
+  private AclFlushVerifier flushVerifier;
+  private AclQueryCache queryCache;
+  private AclDecisionCache decisionCache;
+  private AclSharedResultCache resultCache;
+  private volatile List<String> updatableAttributes;
+  private volatile Optional<SingularAttribute<? super T, ?>> versionAttribute;
+  private int idChunkSize = DEFAULT_ID_CHUNK_SIZE;
+  private final ProjectionFactory projectionFactory = new SpelAwareProxyProjectionFactory();
 
   /**
    * Creates a new {@link SimpleAclJpaRepository} to manage objects of the given {@link JpaEntityInformation}.
@@ -121,6 +194,56 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
     this.aclSpecification = aclSpecification;
   }
 
+  /**
+   * Sets the verifier of the flush-time update permission check. If it's enabled the eager update permission check of
+   * the save methods is skipped.
+   */
+  public void setFlushVerifier(AclFlushVerifier flushVerifier) {
+    this.flushVerifier = flushVerifier;
+  }
+
+  /**
+   * Sets the cache of the rendered JPQL of the fixed-shape queries ({@link #isPermitted(Object, String)},
+   * {@link #permittedIds(Iterable, String)}, {@link #findById(Object, String)} and {@link #findAll(String)}).
+   */
+  public void setQueryCache(AclQueryCache queryCache) {
+    this.queryCache = queryCache;
+  }
+
+  /**
+   * Sets the request-scoped cache of the decisions of {@link #isPermitted(Object, String)} and
+   * {@link #findById(Object, String)}.
+   */
+  public void setDecisionCache(AclDecisionCache decisionCache) {
+    this.decisionCache = decisionCache;
+  }
+
+  /**
+   * Sets the cache of the results of {@link #findAll(Specification, Sort)} and
+   * {@link #findAll(Specification, Pageable)} shared by the equivalent principals.
+   */
+  public void setResultCache(AclSharedResultCache resultCache) {
+    this.resultCache = resultCache;
+    if (resultCache != null && aclSpecification != null) {
+      resultCache.registerResultType(getDomainClass());
+    }
+  }
+
+  /**
+   * Sets the maximum number of ids bound into one query by {@link #findAllById(Iterable, String)}.
+   */
+  public void setIdChunkSize(int idChunkSize) {
+    Assert.isTrue(idChunkSize > 0, "The id chunk size must be positive!");
+    this.idChunkSize = idChunkSize;
+  }
+
+  /**
+   * Sets the transaction operations used for splitting batch operations into several transactions.
+   */
+  public void setTransactionOperations(TransactionOperations transactionOperations) {
+    this.transactionOperations = transactionOperations;
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -176,50 +299,516 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
       for (T e : entities) {
         ids.add((ID) entityInformation.getId(e));
       }
-      doDelete(findAllById(ids, DELETE_PERMISSION));
+      deleteAllByIdInBatch(ids, DELETE_PERMISSION, false);
 
     } else {
       applyAndBind(getQueryString(DELETE_ALL_QUERY_STRING, entityInformation.getEntityName()), entities, em)
           .executeUpdate();
+      invalidateDecisions();
     }
 
   }
 
-  protected void doDelete(List<T> list) {
+  @Override
+  @Transactional
+  public int deleteAllByIdInBatch(Iterable<ID> ids, String permission, boolean strict) {
+    Assert.notNull(ids, "The given Iterable of ids not be null!");
+
+    Set<ID> idSet = new LinkedHashSet<>();
+    ids.forEach(idSet::add);
+    if (idSet.isEmpty()) {
+      return 0;
+    }
+
+    // The ids are deleted in chunks, so the number of the bound parameters remains below the limits of the databases
+    List<ID> idList = new ArrayList<>(idSet);
+    int deleted = 0;
+    for (int from = 0; from < idList.size(); from += idChunkSize) {
+      deleted += doDelete(idList.subList(from, Math.min(from + idChunkSize, idList.size())), permission);
+    }
+    if (strict && deleted != idSet.size()) {
+      throw new AclDeletePermissionException("Only " + deleted + " of " + idSet.size() + " "
+          + getDomainClass().getName() + " entities could be deleted");
+    }
+    return deleted;
+  }
+
+  @Override
+  @Transactional
+  public int deleteAllInBatch(String permission) {
+    return doDelete(null, permission);
+  }
+
+  @Override
+  @Transactional(propagation = Propagation.SUPPORTS)
+  public long deleteAll(String permission, int chunkSize) {
+    return deleteAll(null, permission, chunkSize, 0, null);
+  }
+
+  @Override
+  @Transactional(propagation = Propagation.SUPPORTS)
+  public long deleteAll(@Nullable Specification<T> spec, String permission, int chunkSize) {
+    return deleteAll(spec, permission, chunkSize, 0, null);
+  }
+
+  @Override
+  @Transactional(propagation = Propagation.SUPPORTS)
+  public long deleteAll(@Nullable Specification<T> spec, String permission, int chunkSize, long pauseMillis,
+      @Nullable LongConsumer progressListener) {
+    Assert.isTrue(chunkSize > 0, "The chunk size must be positive!");
+
+    long total = 0;
+    ID lastId = null;
+    while (true) {
+      DeletedChunk<ID> chunk = deleteChunk(spec, lastId, chunkSize, permission);
+      if (chunk.lastId == null) {
+        break;
+      }
+      lastId = chunk.lastId;
+      total += chunk.deleted;
+      LOG.debug("{} {} entities were deleted", total, getDomainClass().getSimpleName());
+      if (progressListener != null) {
+        progressListener.accept(total);
+      }
+      if (chunk.size < chunkSize) {
+        break;
+      }
+      if (pauseMillis > 0) {
+        try {
+          Thread.sleep(pauseMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Chunked delete was interrupted", e);
+        }
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Deletes the next chunk of the permitted entities in its own transaction. (Or in the current one if there is any.)
+   */
+  private DeletedChunk<ID> deleteChunk(@Nullable Specification<T> spec, @Nullable ID lastId, int chunkSize,
+      String permission) {
+    TransactionCallback<DeletedChunk<ID>> callback = status -> {
+      List<ID> ids = findIdsAfter(spec, lastId, chunkSize, permission);
+      if (ids.isEmpty()) {
+        return new DeletedChunk<>(null, 0, 0);
+      }
+      return new DeletedChunk<>(ids.get(ids.size() - 1), ids.size(), doDelete(ids, permission));
+    };
+    return transactionOperations == null ? callback.doInTransaction(null) : transactionOperations.execute(callback);
+  }
+
+  /**
+   * Deletes the entities with a single bulk delete statement. The ACL predicate is applied as an id-subquery, so no
+   * entities are loaded into the persistence context. The subquery selects from the deleted table, which is rejected by
+   * MySQL (error 1093), so this method can be overridden for MySQL, e.g. for selecting the permitted ids by a separate
+   * query first.
+   *
+   * @param ids
+   *          the ids of the entities to delete or {@literal null} for deleting all of the permitted entities
+   * @param permission
+   *          the permission we check against
+   * @return the number of the deleted entities
+   */
+  protected int doDelete(@Nullable Collection<ID> ids, String permission) {
     CriteriaBuilder cb = em.getCriteriaBuilder();
     CriteriaDelete<T> delete = cb.createCriteriaDelete(getDomainClass());
     Root<T> root = delete.from(getDomainClass());
 
-    Predicate inPredicate = root.in(list);
+    Predicate predicate = null;
+    if (ids != null) {
+      // Bulk criteria only support named parameters
+      predicate = root.get(entityInformation.getIdAttribute()).in(cb.parameter(Collection.class, IDS_PARAMETER));
+    }
 
-    delete.where(inPredicate);
+    if (aclSpecification != null && permission != null) {
+      Predicate permissionPredicate = aclSpecification.toSubqueryPredicate(root, delete, cb, permission,
+          createUserIdParameter());
+      predicate = predicate == null ? permissionPredicate : cb.and(predicate, permissionPredicate);
+    }
 
-    em.createQuery(delete).executeUpdate();
+    if (predicate != null) {
+      delete.where(predicate);
+    }
+
+    Query query = bindUserId(em.createQuery(delete));
+    if (ids != null) {
+      query.setParameter(IDS_PARAMETER, ids);
+    }
+    int deleted = query.executeUpdate();
+    invalidateDecisions();
+    return deleted;
   }
 
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.springframework.data.jpa.repository.JpaRepository#findAllById(java.lang.Iterable)
+   */
+  @Override
+  public List<T> findAllById(Iterable<ID> ids) {
+    return findAllById(ids, READ_PERMISSION);
+  }
+
+  /**
+   * Returns the permitted entities with the given ids in the order of the ids. Large id lists are split into chunks of
+   * {@link #setIdChunkSize(int) idChunkSize} ids, so the number of the bound parameters of one query remains below the
+   * limits of the databases. Composite ids are queried as OR-ed groups of their attributes.
+   */
   @Override
   public List<T> findAllById(Iterable<ID> ids, String permission) {
     if (ids == null || !ids.iterator().hasNext()) {
       return Collections.emptyList();
     }
 
-    if (entityInformation.hasCompositeId()) {
+    Set<ID> idSet = new LinkedHashSet<>();
+    ids.forEach(idSet::add);
+    List<ID> idList = new ArrayList<>(idSet);
 
-      List<T> results = new ArrayList<>();
+    int chunkSize = idChunkSize;
+    if (entityInformation.hasCompositeId()) {
+      // Every id binds all of its attributes
+      long attributeCount = Streamable.of(entityInformation.getIdAttributeNames()).stream().count();
+      chunkSize = (int) Math.max(1, chunkSize / Math.max(1, attributeCount));
+    }
 
-      for (ID id : ids) {
-        findById(id).ifPresent(results::add);
+    Map<Object, T> entities = new HashMap<>();
+    for (int from = 0; from < idList.size(); from += chunkSize) {
+      List<ID> chunk = idList.subList(from, Math.min(from + chunkSize, idList.size()));
+      for (T entity : findChunkById(chunk, permission)) {
+        entities.put(entityInformation.getId(entity), entity);
+      }
+    }
+    fetchGraph(new ArrayList<>(entities.values()));
+
+    // Merge back into the order of the given ids
+    List<T> results = new ArrayList<>(entities.size());
+    for (ID id : idSet) {
+      T entity = entities.get(id);
+      if (entity != null) {
+        results.add(entity);
       }
+    }
+    return results;
+  }
 
-      return results;
+  private List<T> findChunkById(List<ID> ids, String permission) {
+    if (entityInformation.hasCompositeId()) {
+      return getQuery(new ByCompositeIdsSpecification<>(entityInformation, ids), getDomainClass(), Sort.unsorted(),
+          permission, true).getResultList();
     }
 
     ByIdsSpecification<T> specification = new ByIdsSpecification<>(entityInformation);
-    TypedQuery<T> query = getQuery(specification, Sort.unsorted(), permission);
+    TypedQuery<T> query = getQuery(specification, getDomainClass(), Sort.unsorted(), permission, true);
 
     return query.setParameter(specification.parameter, ids).getResultList();
   }
 
+  @Override
+  public <R> List<R> findAll(@Nullable Specification<T> spec, Class<R> projection, Sort sort, String permission) {
+    return readProjections(spec, projection, sort, Pageable.unpaged(), permission);
+  }
+
+  @Override
+  public <R> Page<R> findAll(@Nullable Specification<T> spec, Class<R> projection, Pageable pageable,
+      String permission) {
+    List<R> content = readProjections(spec, projection, pageable.getSort(), pageable, permission);
+
+    return PageableExecutionUtils.getPage(content, pageable, () -> {
+      CriteriaBuilder builder = em.getCriteriaBuilder();
+      CriteriaQuery<Long> countQuery = builder.createQuery(Long.class);
+      countQuery.select(builder.count(applyProjectionCriteria(spec, countQuery, permission)));
+      return executeCountQuery(bindUserId(em.createQuery(countQuery)));
+    });
+  }
+
+  @Override
+  public Page<PermittedEntity<T>> findAllWithPermissions(@Nullable Specification<T> spec, Pageable pageable,
+      String... permissions) {
+    Assert.notNull(pageable, "The pageable must not be null!");
+
+    // Permissions denied by the roles of the user need no CASE expressions
+    List<String> checkedPermissions = new ArrayList<>();
+    Set<String> grantedPermissions = new LinkedHashSet<>();
+    for (String permission : new LinkedHashSet<>(Arrays.asList(permissions))) {
+      Outcome outcome = aclSpecification == null ? Outcome.GRANTED
+          : aclSpecification.getOutcome(getDomainClass(), permission);
+      if (outcome == Outcome.GRANTED) {
+        grantedPermissions.add(permission);
+      } else if (outcome == Outcome.FILTERED) {
+        checkedPermissions.add(permission);
+      }
+    }
+
+    CriteriaBuilder builder = em.getCriteriaBuilder();
+    CriteriaQuery<Tuple> query = builder.createTupleQuery();
+    Root<T> root = applyProjectionCriteria(spec, query, READ_PERMISSION);
+    List<Selection<?>> selections = new ArrayList<>();
+    selections.add(root);
+    ParameterExpression<Object> userId = createUserIdParameter();
+    for (String permission : checkedPermissions) {
+      Predicate permitted = aclSpecification.toSubqueryPredicate(root, query, builder, permission, userId);
+      selections.add(builder.selectCase().when(permitted, 1).otherwise(0));
+    }
+    query.multiselect(selections).orderBy(toOrders(pageable.getSort(), root, builder));
+
+    List<T> entities = new ArrayList<>();
+    List<PermittedEntity<T>> content = new ArrayList<>();
+    for (Tuple tuple : applyPaging(bindUserId(em.createQuery(query)), pageable).getResultList()) {
+      Set<String> entityPermissions = new LinkedHashSet<>(grantedPermissions);
+      for (int i = 0; i < checkedPermissions.size(); i++) {
+        if (((Number) tuple.get(i + 1)).intValue() != 0) {
+          entityPermissions.add(checkedPermissions.get(i));
+        }
+      }
+      @SuppressWarnings("unchecked")
+      T entity = (T) tuple.get(0);
+      entities.add(entity);
+      content.add(new PermittedEntity<>(entity, entityPermissions));
+    }
+    fetchGraph(entities);
+
+    return PageableExecutionUtils.getPage(content, pageable, () -> {
+      CriteriaQuery<Long> countQuery = builder.createQuery(Long.class);
+      countQuery.select(builder.count(applyProjectionCriteria(spec, countQuery, READ_PERMISSION)));
+      return executeCountQuery(bindUserId(em.createQuery(countQuery)));
+    });
+  }
+
+  /**
+   * Reads the projections of the given type. Closed interface projections select their properties as a tuple, DTO
+   * projections select their constructor parameters by a constructor expression and open projections select the
+   * entity itself.
+   */
+  protected <R> List<R> readProjections(@Nullable Specification<T> spec, Class<R> projection, Sort sort,
+      Pageable pageable, String permission) {
+    Assert.notNull(projection, "The projection type must not be null!");
+    Assert.notNull(sort, "The sort must not be null!");
+
+    CriteriaBuilder builder = em.getCriteriaBuilder();
+
+    if (!projection.isInterface()) {
+      CriteriaQuery<R> query = builder.createQuery(projection);
+      Root<T> root = applyProjectionCriteria(spec, query, permission);
+      List<Selection<?>> selections = new ArrayList<>();
+      for (PreferredConstructor.Parameter<Object, ?> parameter : PreferredConstructorDiscoverer.discover(projection)
+          .getParameters()) {
+        selections.add(root.get(parameter.getName()));
+      }
+      query.select(builder.construct(projection, selections.toArray(new Selection<?>[selections.size()])));
+      query.orderBy(toOrders(sort, root, builder));
+      return applyPaging(bindUserId(em.createQuery(query)), pageable).getResultList();
+    }
+
+    ProjectionInformation information = projectionFactory.getProjectionInformation(projection);
+    if (!information.isClosed()) {
+      // Open projections can access any property of the entity
+      CriteriaQuery<T> query = builder.createQuery(getDomainClass());
+      Root<T> root = applyProjectionCriteria(spec, query, permission);
+      query.select(root).orderBy(toOrders(sort, root, builder));
+      return applyPaging(bindUserId(em.createQuery(query)), pageable).getResultList().stream()
+          .map(entity -> projectionFactory.createProjection(projection, entity)).collect(Collectors.toList());
+    }
+
+    CriteriaQuery<Tuple> query = builder.createTupleQuery();
+    Root<T> root = applyProjectionCriteria(spec, query, permission);
+    List<Selection<?>> selections = new ArrayList<>();
+    for (PropertyDescriptor property : information.getInputProperties()) {
+      selections.add(root.get(property.getName()).alias(property.getName()));
+    }
+    query.multiselect(selections).orderBy(toOrders(sort, root, builder));
+
+    List<R> results = new ArrayList<>();
+    for (Tuple tuple : applyPaging(bindUserId(em.createQuery(query)), pageable).getResultList()) {
+      Map<String, Object> values = new HashMap<>();
+      for (TupleElement<?> element : tuple.getElements()) {
+        values.put(element.getAlias(), tuple.get(element));
+      }
+      results.add(projectionFactory.createProjection(projection, values));
+    }
+    return results;
+  }
+
+  private static <S> TypedQuery<S> applyPaging(TypedQuery<S> query, Pageable pageable) {
+    if (pageable.isPaged()) {
+      query.setFirstResult((int) pageable.getOffset());
+      query.setMaxResults(pageable.getPageSize());
+    }
+    return query;
+  }
+
+  @Override
+  public List<Tuple> aggregate(@Nullable Specification<T> spec, String permission, List<String> groupBy,
+      Aggregate... aggregates) {
+    Assert.notNull(groupBy, "The group-by properties must not be null!");
+    Assert.notEmpty(aggregates, "At least one aggregate must be given!");
+
+    CriteriaBuilder builder = em.getCriteriaBuilder();
+    CriteriaQuery<Tuple> query = builder.createTupleQuery();
+    Root<T> root = applyProjectionCriteria(spec, query, permission);
+
+    Map<String, Join<?, ?>> joins = new HashMap<>();
+    List<Selection<?>> selections = new ArrayList<>();
+    List<Expression<?>> groupings = new ArrayList<>();
+    for (String property : groupBy) {
+      Expression<?> expression = toAggregatePath(root, property, joins);
+      groupings.add(expression);
+      selections.add(expression.alias(property));
+    }
+    for (Aggregate aggregate : aggregates) {
+      selections.add(toAggregateExpression(builder, root, aggregate, joins).alias(aggregate.getAlias()));
+    }
+
+    query.multiselect(selections);
+    if (!groupings.isEmpty()) {
+      query.groupBy(groupings);
+      query.orderBy(groupings.stream().map(builder::asc).collect(Collectors.toList()));
+    }
+    return bindUserId(em.createQuery(query)).getResultList();
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static Expression<?> toAggregateExpression(CriteriaBuilder builder, Root<?> root, Aggregate aggregate,
+      Map<String, Join<?, ?>> joins) {
+    if (aggregate.getProperty() == null) {
+      return builder.count(root);
+    }
+    Expression<?> path = toAggregatePath(root, aggregate.getProperty(), joins);
+    switch (aggregate.getFunction()) {
+    case COUNT:
+      return builder.count(path);
+    case COUNT_DISTINCT:
+      return builder.countDistinct(path);
+    case SUM:
+      return builder.sum((Expression<Number>) path);
+    case AVG:
+      return builder.avg((Expression<Number>) path);
+    case MIN:
+      // least/greatest work for any comparable type (min/max are restricted to numbers)
+      return builder.least((Expression<Comparable>) path);
+    case MAX:
+      return builder.greatest((Expression<Comparable>) path);
+    default:
+      throw new IllegalArgumentException("Unknown aggregate function: " + aggregate.getFunction());
+    }
+  }
+
+  /**
+   * Resolves a dot-separated property path. The associations on the path are left-joined once per query.
+   */
+  private static Expression<?> toAggregatePath(Root<?> root, String property, Map<String, Join<?, ?>> joins) {
+    String[] names = property.split("\\.");
+    From<?, ?> from = root;
+    StringBuilder path = new StringBuilder();
+    for (int i = 0; i < names.length - 1; i++) {
+      From<?, ?> parent = from;
+      String name = names[i];
+      path.append(name).append('.');
+      from = joins.computeIfAbsent(path.toString(), key -> parent.join(name, JoinType.LEFT));
+    }
+    return from.get(names[names.length - 1]);
+  }
+
+  /**
+   * Applies the specification and the permission to the given query. The permission is checked by an id-subquery, so
+   * the query is not switched to DISTINCT (that would merge the equal projections of different entities).
+   */
+  private <S> Root<T> applyProjectionCriteria(@Nullable Specification<T> spec, CriteriaQuery<S> query,
+      String permission) {
+    CriteriaBuilder builder = em.getCriteriaBuilder();
+    Root<T> root = query.from(getDomainClass());
+
+    Predicate predicate = spec == null ? null : spec.toPredicate(root, query, builder);
+    if (aclSpecification != null && permission != null) {
+      Predicate permissionPredicate = aclSpecification.toSubqueryPredicate(root, query, builder, permission,
+          createUserIdParameter());
+      predicate = predicate == null ? permissionPredicate : builder.and(predicate, permissionPredicate);
+    }
+    if (predicate != null) {
+      query.where(predicate);
+    }
+    return root;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public boolean isPermitted(ID id, String permission) {
+    Assert.notNull(id, ID_MUST_NOT_BE_NULL);
+    if (decisionCache != null && aclSpecification != null && decisionCache.isActive() && !hasPendingChanges()) {
+      return decisionCache.isPermitted(getDomainClass(), toIdType(id), permission,
+          () -> queryPermitted(id, permission));
+    }
+    return queryPermitted(id, permission);
+  }
+
+  @SuppressWarnings("unchecked")
+  private boolean queryPermitted(ID id, String permission) {
+    Class<ID> idType = (Class<ID>) entityInformation.getIdType();
+    TypedQuery<ID> query = createShapedQuery("isPermitted", permission, idType, userId -> {
+      CriteriaQuery<ID> criteriaQuery = em.getCriteriaBuilder().createQuery(idType);
+      Root<T> root = applySpecificationToCriteria(
+          (r, q, cb) -> cb.equal(r.get(entityInformation.getIdAttribute()), cb.parameter(idType, ID_PARAMETER)),
+          getDomainClass(), criteriaQuery, permission, userId);
+      return criteriaQuery.select((Path<ID>) root.get(entityInformation.getIdAttribute()));
+    });
+
+    return !query.setParameter(ID_PARAMETER, toIdType(id)).setMaxResults(1).getResultList().isEmpty();
+  }
+
+  /**
+   * Returns the permitted ids of the given ones. Large id lists are checked in chunks of {@link #setIdChunkSize(int)
+   * idChunkSize} ids.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public List<ID> permittedIds(Iterable<ID> ids, String permission) {
+    if (ids == null || !ids.iterator().hasNext()) {
+      return Collections.emptyList();
+    }
+
+    Class<ID> idType = (Class<ID>) entityInformation.getIdType();
+    TypedQuery<ID> query = createShapedQuery("permittedIds", permission, idType, userId -> {
+      CriteriaQuery<ID> criteriaQuery = em.getCriteriaBuilder().createQuery(idType);
+      Root<T> root = applySpecificationToCriteria(
+          (r, q, cb) -> r.get(entityInformation.getIdAttribute()).in(cb.parameter(Iterable.class, IDS_PARAMETER)),
+          getDomainClass(), criteriaQuery, permission, userId);
+      return criteriaQuery.select((Path<ID>) root.get(entityInformation.getIdAttribute()));
+    });
+
+    List<Object> typedIds = new ArrayList<>();
+    ids.forEach(id -> typedIds.add(toIdType(id)));
+    List<ID> permittedIds = new ArrayList<>();
+    for (int from = 0; from < typedIds.size(); from += idChunkSize) {
+      List<Object> chunk = typedIds.subList(from, Math.min(from + idChunkSize, typedIds.size()));
+      permittedIds.addAll(query.setParameter(IDS_PARAMETER, chunk).getResultList());
+    }
+    return permittedIds;
+  }
+
+  @Override
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public List<ID> findIdsAfter(@Nullable Specification<T> spec, @Nullable ID lastId, int limit, String permission) {
+    Assert.isTrue(!entityInformation.hasCompositeId(), "Keyset pagination is not supported for composite ids!");
+    Assert.isTrue(limit > 0, "The limit must be positive!");
+
+    CriteriaBuilder builder = em.getCriteriaBuilder();
+    CriteriaQuery<ID> query = builder.createQuery((Class<ID>) entityInformation.getIdType());
+
+    Root<T> root = applySpecificationToCriteria(spec, getDomainClass(), query, permission);
+    Path<ID> idPath = (Path<ID>) root.get(entityInformation.getIdAttribute());
+
+    if (lastId != null) {
+      Predicate after = builder.greaterThan((Expression<Comparable>) idPath, (Comparable) lastId);
+      Predicate original = query.getRestriction();
+      query.where(original == null ? after : builder.and(original, after));
+    }
+    query.select(idPath).orderBy(builder.asc(idPath));
+
+    return bindUserId(em.createQuery(query)).setMaxResults(limit).getResultList();
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -228,7 +817,7 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
   @Override
   @Transactional
   public void deleteAll() {
-    doDelete(findAll(DELETE_PERMISSION));
+    deleteAllInBatch(DELETE_PERMISSION);
   }
 
   /*
@@ -239,14 +828,7 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
   @Override
   @Transactional
   public void deleteAllInBatch() {
-    if (aclSpecification != null) {
-      deleteAll();
-      return;
-    }
-    CriteriaBuilder cb = em.getCriteriaBuilder();
-    CriteriaDelete<T> delete = cb.createCriteriaDelete(getDomainClass());
-    delete.from(getDomainClass());
-    em.createQuery(delete).executeUpdate();
+    deleteAllInBatch(DELETE_PERMISSION);
   }
 
   @Override
@@ -267,17 +849,106 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
   @Override
   public Optional<T> findById(ID id, String permission) {
     Assert.notNull(id, ID_MUST_NOT_BE_NULL);
-    return findOne(new Specification<T>() {
+    boolean decisionCacheable = isDecisionCacheable();
+    long generation = decisionCacheable ? decisionCache.getGeneration() : 0;
+    Boolean decision = decisionCacheable ? decisionCache.get(getDomainClass(), toIdType(id), permission) : null;
+    if (decision != null) {
+      // The permitted entity is normally in the persistence context already
+      return decision ? Optional.ofNullable(em.find(getDomainClass(), toIdType(id))) : Optional.empty();
+    }
 
-      private static final long serialVersionUID = 1L;
+    TypedQuery<T> query = createShapedQuery("findById", permission, getDomainClass(), userId -> {
+      CriteriaQuery<T> criteriaQuery = em.getCriteriaBuilder().createQuery(getDomainClass());
+      Root<T> root = applySpecificationToCriteria(
+          (r, q, cb) -> cb.equal(r.get(entityInformation.getIdAttribute()),
+              cb.parameter(entityInformation.getIdType(), ID_PARAMETER)),
+          getDomainClass(), criteriaQuery, permission, userId);
+      return criteriaQuery.select(root);
+    });
 
-      @Override
-      public Predicate toPredicate(Root<T> root, CriteriaQuery<?> query, CriteriaBuilder cb) {
-        return cb.equal(root.get(entityInformation.getIdAttribute()), id);
+    try {
+      query.setParameter(ID_PARAMETER, toIdType(id));
+      T entity = applyRepositoryMethodMetadata(query, !isFetchGraphDeferrable()).getSingleResult();
+      fetchGraph(Collections.singletonList(entity));
+      if (decisionCacheable) {
+        decisionCache.put(getDomainClass(), toIdType(id), permission, true, generation);
+      }
+      return Optional.of(entity);
+    } catch (NoResultException e) {
+      if (decisionCacheable) {
+        decisionCache.put(getDomainClass(), toIdType(id), permission, false, generation);
       }
+      return Optional.empty();
+    }
+  }
 
-    }, permission);
+  /**
+   * Checks if the decision of {@link #findById(Object, String)} can be cached. The entities loaded with a lock or with
+   * query hints must be queried every time. The cached decisions are not used in a persistence context with pending
+   * changes either: only a real query flushes them before the check.
+   */
+  private boolean isDecisionCacheable() {
+    if (decisionCache == null || aclSpecification == null || !decisionCache.isActive()) {
+      return false;
+    }
+    return !hasQueryMetadata() && !hasPendingChanges();
+  }
 
+  private boolean hasQueryMetadata() {
+    CrudMethodMetadata metadata = getRepositoryMethodMetadata();
+    return metadata != null && (metadata.getLockModeType() != null || !metadata.getQueryHints().isEmpty()
+        || metadata.getEntityGraph().isPresent());
+  }
+
+  /**
+   * Returns the fingerprint the results of the given query are shared by or null if the results cannot be shared. The
+   * searches and the queries with lock or query hints are not shared. The results are not shared in a persistence
+   * context with pending changes either: only a real query flushes them before the read.
+   */
+  private AclPrincipalFingerprint getSharedFingerprint(@Nullable Specification<T> spec, Sort sort) {
+    if (resultCache == null || aclSpecification == null || !resultCache.isEnabled() || sort instanceof Search
+        || !resultCache.isCacheable(spec) || hasQueryMetadata() || hasPendingChanges()) {
+      return null;
+    }
+    return resultCache.getSharedFingerprint(getDomainClass(),
+        aclSpecification.getOutcome(getDomainClass(), READ_PERMISSION));
+  }
+
+  private boolean hasPendingChanges() {
+    return em.getFlushMode() == FlushModeType.AUTO && em.unwrap(Session.class).isDirty();
+  }
+
+  /**
+   * Returns the generation of the result cache. It's read before the fingerprint and the query, so a result evaluated
+   * concurrently with a write is not cached.
+   */
+  private long getResultCacheGeneration() {
+    return resultCache == null ? 0 : resultCache.getGeneration(getDomainClass());
+  }
+
+  private List<T> loadSharedResult(CachedPage cachedPage) {
+    return fetchGraph(resultCache.load(em, getDomainClass(), cachedPage));
+  }
+
+  private List<Object> getIds(List<T> entities) {
+    List<Object> ids = new ArrayList<>(entities.size());
+    for (T entity : entities) {
+      ids.add(entityInformation.getId(entity));
+    }
+    return ids;
+  }
+
+  /**
+   * Bulk statements bypass the Hibernate listeners, so the cached decisions and results of the domain type are dropped
+   * explicitly
+   */
+  private void invalidateDecisions() {
+    if (decisionCache != null) {
+      decisionCache.invalidate(getDomainClass());
+    }
+    if (resultCache != null) {
+      resultCache.invalidateType(getDomainClass());
+    }
   }
 
   /*
@@ -304,7 +975,7 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
    */
   @Override
   public boolean existsById(ID id) {
-    return findById(id).isPresent();
+    return isPermitted(id, READ_PERMISSION);
   }
 
   /*
@@ -319,7 +990,100 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
 
   @Override
   public List<T> findAll(String permission) {
-    return getQuery(null, Sort.unsorted(), permission).getResultList();
+    // The unsorted results are shared with findAll(Sort.unsorted())
+    long generation = getResultCacheGeneration();
+    AclPrincipalFingerprint fingerprint = READ_PERMISSION.equals(permission)
+        ? getSharedFingerprint(null, Sort.unsorted())
+        : null;
+    if (fingerprint != null) {
+      CachedPage cachedPage = resultCache.get(fingerprint, getDomainClass(), null, Sort.unsorted());
+      if (cachedPage != null) {
+        return loadSharedResult(cachedPage);
+      }
+    }
+    TypedQuery<T> query = createShapedQuery("findAll", permission, getDomainClass(), userId -> {
+      CriteriaQuery<T> criteriaQuery = em.getCriteriaBuilder().createQuery(getDomainClass());
+      return criteriaQuery
+          .select(applySpecificationToCriteria(null, getDomainClass(), criteriaQuery, permission, userId));
+    });
+    List<T> entities = fetchGraph(applyRepositoryMethodMetadata(query, !isFetchGraphDeferrable()).getResultList());
+    if (fingerprint != null) {
+      resultCache.put(fingerprint, getDomainClass(), null, Sort.unsorted(), getIds(entities), entities.size(),
+          generation);
+    }
+    return entities;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.springframework.data.jpa.repository.JpaRepository#findAll(org.springframework.data.domain.Sort)
+   */
+  @Override
+  public List<T> findAll(Sort sort) {
+    return findAll((Specification<T>) null, sort);
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.springframework.data.jpa.repository.JpaSpecificationExecutor#findAll(org.springframework.data.jpa.domain.
+   * Specification)
+   */
+  @Override
+  public List<T> findAll(@Nullable Specification<T> spec) {
+    return findAll(spec, Sort.unsorted());
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.springframework.data.jpa.repository.JpaSpecificationExecutor#findAll(org.springframework.data.jpa.domain.
+   * Specification, org.springframework.data.domain.Sort)
+   */
+  @Override
+  public List<T> findAll(@Nullable Specification<T> spec, Sort sort) {
+    long generation = getResultCacheGeneration();
+    AclPrincipalFingerprint fingerprint = getSharedFingerprint(spec, sort);
+    if (fingerprint != null) {
+      CachedPage cachedPage = resultCache.get(fingerprint, getDomainClass(), spec, sort);
+      if (cachedPage != null) {
+        return loadSharedResult(cachedPage);
+      }
+    }
+    List<T> entities = fetchGraph(getQuery(spec, getDomainClass(), sort, READ_PERMISSION, true).getResultList());
+    if (fingerprint != null) {
+      resultCache.put(fingerprint, getDomainClass(), spec, sort, getIds(entities), entities.size(),
+          generation);
+    }
+    return entities;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see org.springframework.data.jpa.repository.JpaSpecificationExecutor#findAll(org.springframework.data.jpa.domain.
+   * Specification, org.springframework.data.domain.Pageable)
+   */
+  @Override
+  public Page<T> findAll(@Nullable Specification<T> spec, Pageable pageable) {
+    long generation = getResultCacheGeneration();
+    AclPrincipalFingerprint fingerprint = getSharedFingerprint(spec, pageable.getSort());
+    if (fingerprint != null) {
+      CachedPage cachedPage = resultCache.get(fingerprint, getDomainClass(), spec, pageable);
+      if (cachedPage != null) {
+        return new PageImpl<>(loadSharedResult(cachedPage), pageable, cachedPage.getTotal());
+      }
+    }
+    TypedQuery<T> query = getQuery(spec, getDomainClass(), pageable.getSort(), READ_PERMISSION, true);
+    Page<T> page = pageable.isUnpaged() ? new PageImpl<>(query.getResultList())
+        : readPage(query, getDomainClass(), pageable, spec);
+    fetchGraph(page.getContent());
+    if (fingerprint != null) {
+      resultCache.put(fingerprint, getDomainClass(), spec, pageable, getIds(page.getContent()),
+          page.getTotalElements(), generation);
+    }
+    return page;
   }
 
   /*
@@ -337,7 +1101,9 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
   public Optional<T> findOne(Specification<T> spec, String permission) {
 
     try {
-      return Optional.of(getQuery(spec, Sort.unsorted(), permission).getSingleResult());
+      T entity = getQuery(spec, getDomainClass(), Sort.unsorted(), permission, true).getSingleResult();
+      fetchGraph(Collections.singletonList(entity));
+      return Optional.of(entity);
     } catch (NoResultException e) {
       return Optional.empty();
     }
@@ -372,21 +1138,235 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
       }
       em.persist(entity);
       return entity;
+    } else if (isUpdateVerifiedOnFlush()) {
+      return em.merge(entity);
     } else {
       FlushModeType oldMode = em.getFlushMode();
       em.setFlushMode(FlushModeType.COMMIT);
       Object id = entityInformation.getId(entity);
-      findById((ID) id, UPDATE_PERMISSION).orElseThrow(
-          () -> new AclUpdatePermissionException("Cannot update" + getDomainClass().getName() + " with id " + id));
+      if (!isPermitted((ID) id, UPDATE_PERMISSION)) {
+        throw new AclUpdatePermissionException("Cannot update" + getDomainClass().getName() + " with id " + id);
+      }
       em.setFlushMode(oldMode);
       return em.merge(entity);
     }
   }
 
+  /**
+   * Saves all the given entities with permission check. The create permission is evaluated only once per entity type
+   * and the update permission of all the existing entities is checked by a single id-only query, so the entities are
+   * not loaded before the merge. No flush is triggered between the writes, so the statements can be sent in JDBC
+   * batches if {@code hibernate.jdbc.batch_size} is configured.
+   */
+  @SuppressWarnings("unchecked")
+  @Override
+  @Transactional
+  public <S extends T> List<S> saveAll(Iterable<S> entities) {
+    Assert.notNull(entities, "The given Iterable of entities not be null!");
+    if (aclSpecification == null) {
+      return super.saveAll(entities);
+    }
+
+    List<S> entityList = new ArrayList<>();
+    Set<ID> existingIds = new LinkedHashSet<>();
+    Map<Class<?>, Boolean> creatable = new HashMap<>();
+    for (S entity : entities) {
+      entityList.add(entity);
+      if (entityInformation.isNew(entity)) {
+        // The create permission depends on the type of the entity and the authorities of the current user only
+        if (!creatable.computeIfAbsent(entity.getClass(), type -> aclSpecification.canBeCreated(entity))) {
+          throw new AclCreatePermissionException("New entity cannot be created.");
+        }
+      } else {
+        existingIds.add((ID) entityInformation.getId(entity));
+      }
+    }
+
+    if (!existingIds.isEmpty() && !isUpdateVerifiedOnFlush()) {
+      // Managed entities must not be flushed before the check
+      FlushModeType oldMode = em.getFlushMode();
+      em.setFlushMode(FlushModeType.COMMIT);
+      try {
+        Set<ID> permittedIds = new HashSet<>(permittedIds(existingIds, UPDATE_PERMISSION));
+        for (ID id : existingIds) {
+          if (!permittedIds.contains(id)) {
+            throw new AclUpdatePermissionException("Cannot update " + getDomainClass().getName() + " with id " + id);
+          }
+        }
+      } finally {
+        em.setFlushMode(oldMode);
+      }
+    }
+
+    // The entities are not exempted from the flush-time verification (if it's enabled)
+    List<S> result = new ArrayList<>(entityList.size());
+    for (S entity : entityList) {
+      result.add(super.save(entity));
+    }
+    return result;
+  }
+
   @Override
   @Transactional
   public <S extends T> S saveWithoutPermissionCheck(S entity) {
-    return super.save(entity);
+    S savedEntity = super.save(entity);
+    if (flushVerifier != null) {
+      flushVerifier.exempt(savedEntity);
+    }
+    return savedEntity;
+  }
+
+  private boolean isUpdateVerifiedOnFlush() {
+    return flushVerifier != null && flushVerifier.isEnabled();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  @Transactional
+  public <S extends T> S update(S entity, String... attributes) {
+    Assert.notNull(entity, "The entity must not be null!");
+    if (em.contains(entity)) {
+      // The changes of a managed entity would be flushed before the update statement anyway
+      return save(entity);
+    }
+    Assert.isTrue(!entityInformation.isNew(entity), "A new entity cannot be updated!");
+
+    BeanWrapper wrapper = new DirectFieldAccessFallbackBeanWrapper(entity);
+    Map<String, Object> values = new LinkedHashMap<>();
+    for (String attribute : attributes.length == 0 ? getUpdatableAttributes() : Arrays.asList(attributes)) {
+      values.put(attribute, wrapper.getPropertyValue(attribute));
+    }
+    SingularAttribute<? super T, ?> version = getVersionAttribute().orElse(null);
+    if (version != null) {
+      // The current version is checked by the update
+      values.put(version.getName(), wrapper.getPropertyValue(version.getName()));
+    }
+    update((ID) entityInformation.getId(entity), values);
+    if (version != null) {
+      wrapper.setPropertyValue(version.getName(), nextVersion((Number) values.get(version.getName())));
+    }
+    return entity;
+  }
+
+  @Override
+  @Transactional
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public void update(ID id, Map<String, ?> values) {
+    Assert.notNull(id, ID_MUST_NOT_BE_NULL);
+    Assert.notEmpty(values, "The values must not be empty!");
+
+    CriteriaBuilder cb = em.getCriteriaBuilder();
+    CriteriaUpdate<T> update = cb.createCriteriaUpdate(getDomainClass());
+    Root<T> root = update.from(getDomainClass());
+
+    SingularAttribute<? super T, ?> version = getVersionAttribute().orElse(null);
+    Object expectedVersion = null;
+
+    // Bulk criteria only support named parameters
+    Map<String, Object> parameters = new HashMap<>();
+    for (Entry<String, ?> value : values.entrySet()) {
+      if (version != null && version.getName().equals(value.getKey())) {
+        expectedVersion = value.getValue();
+        continue;
+      }
+      Path<Object> path = root.get(value.getKey());
+      String name = VALUE_PARAMETER_PREFIX + parameters.size();
+      Expression<Object> parameter = cb.parameter((Class) path.getJavaType(), name);
+      update.<Object> set(path, parameter);
+      parameters.put(name, value.getValue());
+    }
+
+    Predicate predicate = cb.equal(root.get(entityInformation.getIdAttribute()),
+        cb.parameter(entityInformation.getIdType(), ID_PARAMETER));
+    if (version != null) {
+      Path<Number> versionPath = root.get(version.getName());
+      update.set(versionPath, cb.sum(versionPath, 1));
+      if (expectedVersion != null) {
+        predicate = cb.and(predicate,
+            cb.equal(versionPath, cb.parameter(versionPath.getJavaType(), VERSION_PARAMETER)));
+        parameters.put(VERSION_PARAMETER, expectedVersion);
+      }
+    }
+    if (aclSpecification != null) {
+      predicate = cb.and(predicate,
+          aclSpecification.toSubqueryPredicate(root, update, cb, UPDATE_PERMISSION, createUserIdParameter()));
+    }
+    update.where(predicate);
+
+    Query query = bindUserId(em.createQuery(update)).setParameter(ID_PARAMETER, id);
+    parameters.forEach(query::setParameter);
+    if (query.executeUpdate() == 0) {
+      if (expectedVersion != null && queryPermitted(id, UPDATE_PERMISSION)) {
+        throw new ObjectOptimisticLockingFailureException(getDomainClass(), id);
+      }
+      throw new AclUpdatePermissionException("Cannot update " + getDomainClass().getName() + " with id " + id);
+    }
+    invalidateDecisions();
+
+    // The reference is the managed instance if there is any, otherwise a lazy proxy loading the updated state
+    T reference = em.getReference(getDomainClass(), id);
+    if (em.getEntityManagerFactory().getPersistenceUnitUtil().isLoaded(reference)) {
+      em.refresh(reference);
+    }
+  }
+
+  /**
+   * Returns the version attribute of the domain type (if any). Only numeric versions are supported by bulk updates.
+   */
+  private Optional<SingularAttribute<? super T, ?>> getVersionAttribute() {
+    if (versionAttribute == null) {
+      SingularAttribute<? super T, ?> version = null;
+      for (SingularAttribute<? super T, ?> attribute : em.getMetamodel().entity(getDomainClass())
+          .getSingularAttributes()) {
+        if (attribute.isVersion()) {
+          Class<?> type = ClassUtils.resolvePrimitiveIfNecessary(attribute.getJavaType());
+          Assert.isTrue(Number.class.isAssignableFrom(type), "Only numeric versions are supported by the bulk update of " + getDomainClass().getName());
+          version = attribute;
+        }
+      }
+      versionAttribute = Optional.ofNullable(version);
+    }
+    return versionAttribute;
+  }
+
+  private static Number nextVersion(Number version) {
+    if (version instanceof Long) {
+      return version.longValue() + 1;
+    }
+    if (version instanceof Short) {
+      return (short) (version.shortValue() + 1);
+    }
+    return version.intValue() + 1;
+  }
+
+  /**
+   * Returns the names of the attributes written by {@link #update(Object, String...)} by default: the basic and
+   * many-to-one attributes except the id, the version and the ones mapped as not updatable.
+   */
+  protected List<String> getUpdatableAttributes() {
+    if (updatableAttributes == null) {
+      List<String> names = new ArrayList<>();
+      for (SingularAttribute<? super T, ?> attribute : em.getMetamodel().entity(getDomainClass())
+          .getSingularAttributes()) {
+        PersistentAttributeType type = attribute.getPersistentAttributeType();
+        if (!attribute.isId() && !attribute.isVersion()
+            && (type == PersistentAttributeType.BASIC || type == PersistentAttributeType.MANY_TO_ONE)
+            && isUpdatable(attribute.getJavaMember())) {
+          names.add(attribute.getName());
+        }
+      }
+      updatableAttributes = Collections.unmodifiableList(names);
+    }
+    return updatableAttributes;
+  }
+
+  private static boolean isUpdatable(Member member) {
+    if (!(member instanceof AnnotatedElement)) {
+      return true;
+    }
+    Column column = ((AnnotatedElement) member).getAnnotation(Column.class);
+    JoinColumn joinColumn = ((AnnotatedElement) member).getAnnotation(JoinColumn.class);
+    return (column == null || column.updatable()) && (joinColumn == null || joinColumn.updatable());
   }
 
   /**
@@ -425,6 +1405,18 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
 
   protected <S extends T> TypedQuery<S> getQuery(Specification<S> spec, Class<S> domainClass, Sort sort,
       String permission) {
+    return getQuery(spec, domainClass, sort, permission, false);
+  }
+
+  /**
+   * Creates a {@link TypedQuery} for the given {@link Specification} and {@link Sort}.
+   *
+   * @param deferFetchGraph
+   *          if true, the fetch graph of the repository method is not applied to the query, because the caller loads
+   *          it by {@link #fetchGraph(List)} after the permitted entities are selected
+   */
+  protected <S extends T> TypedQuery<S> getQuery(Specification<S> spec, Class<S> domainClass, Sort sort,
+      String permission, boolean deferFetchGraph) {
 
     CriteriaBuilder builder = em.getCriteriaBuilder();
     CriteriaQuery<S> query = builder.createQuery(domainClass);
@@ -442,7 +1434,8 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
       }
     }
 
-    return applyRepositoryMethodMetadata(em.createQuery(query));
+    return applyRepositoryMethodMetadata(bindUserId(em.createQuery(query)),
+        !(deferFetchGraph && isFetchGraphDeferrable()));
   }
 
   /**
@@ -488,7 +1481,7 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
     // Remove all Orders the Specifications might have applied
     query.orderBy(Collections.<Order> emptyList());
 
-    return em.createQuery(query);
+    return bindUserId(em.createQuery(query));
   }
 
   @Override
@@ -526,7 +1519,8 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
   }
 
   /**
-   * Applies the given {@link Specification} to the given {@link CriteriaQuery}.
+   * Applies the given {@link Specification} to the given {@link CriteriaQuery}. The id of the current user is referred
+   * by a parameter in the ACL predicates, so the created query has to be bound by {@link #bindUserId(Query)}.
    *
    * @param spec
    *          can be {@literal null}.
@@ -538,6 +1532,15 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
    */
   private <S, U extends T> Root<U> applySpecificationToCriteria(Specification<U> spec, Class<U> domainClass,
       CriteriaQuery<S> query, String permission) {
+    return applySpecificationToCriteria(spec, domainClass, query, permission, createUserIdParameter());
+  }
+
+  /**
+   * Same as {@link #applySpecificationToCriteria(Specification, Class, CriteriaQuery, String)} but the id of the current
+   * user is referred by the given expression in the ACL predicates (or as a literal if it's null).
+   */
+  private <S, U extends T> Root<U> applySpecificationToCriteria(Specification<U> spec, Class<U> domainClass,
+      CriteriaQuery<S> query, String permission, @Nullable Expression<?> userId) {
 
     Assert.notNull(query, "query cannot be null");
     Assert.notNull(domainClass, "domainClass cannot be null");
@@ -549,7 +1552,7 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
 
     // Permission specification must be executed AFTER all of the other specifications
     if (aclSpecification != null && permission != null) {
-      Predicate permissionPredicate = aclSpecification.toPredicate(root, query, builder, permission);
+      Predicate permissionPredicate = aclSpecification.toPredicate(root, query, builder, permission, userId);
       predicate = predicate == null ? permissionPredicate : builder.and(predicate, permissionPredicate);
     }
 
@@ -560,7 +1563,62 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
     return root;
   }
 
+  /**
+   * Creates the query of a fixed-shape operation. The criteria query is created by the given factory from the parameter
+   * of the user id (or null if the user id is not needed). If the query cache is available, the criteria query of a
+   * shape is built and rendered only once and the query is created from the cached JPQL, so all the users with the same
+   * {@link Outcome} share the same query plan. The caller has to bind the {@value #ID_PARAMETER} and
+   * {@value #IDS_PARAMETER} parameters the factory used.
+   */
+  private <R> TypedQuery<R> createShapedQuery(String operation, String permission, Class<R> resultClass,
+      Function<ParameterExpression<Object>, CriteriaQuery<R>> criteriaFactory) {
+
+    if (queryCache == null || aclSpecification == null) {
+      return bindUserId(em.createQuery(criteriaFactory.apply(createUserIdParameter())));
+    }
+
+    Outcome outcome = aclSpecification.getOutcome(getDomainClass(), permission);
+    Object userId = outcome == Outcome.FILTERED ? AclUserDetailsService.getAclUserDetails().getUserId() : null;
+    List<Object> shape = Arrays.asList(getDomainClass(), operation, permission, outcome);
+    RenderedQuery renderedQuery = queryCache.get(shape, () -> {
+      ParameterExpression<Object> userIdParameter = userId == null ? null
+          : aclSpecification.createUserIdParameter(em.getCriteriaBuilder());
+      return RenderedQuery.of(em.createQuery(criteriaFactory.apply(userIdParameter)), QUERY_VARIABLES);
+    });
+
+    TypedQuery<R> query = renderedQuery.createQuery(em, resultClass);
+    return renderedQuery.hasVariable(USER_ID_PARAMETER) ? query.setParameter(USER_ID_PARAMETER, userId) : query;
+  }
+
+  /**
+   * Returns the parameter of the id of the current user for the ACL predicates (or null if there is no ACL).
+   */
+  @Nullable
+  private ParameterExpression<Object> createUserIdParameter() {
+    return aclSpecification == null ? null : aclSpecification.createUserIdParameter(em.getCriteriaBuilder());
+  }
+
+  /**
+   * Binds the id of the current user to the given query if its ACL predicates refer to the parameter of it.
+   */
+  private <Q extends Query> Q bindUserId(Q query) {
+    return aclSpecification == null ? query : aclSpecification.bindUserId(query);
+  }
+
+  /**
+   * Converts the given id to the id type of the entity. (The literal ids of the criteria queries were converted by the
+   * persistence provider, but the bound parameters must have the exact type.)
+   */
+  private Object toIdType(Object id) {
+    Class<?> idType = entityInformation.getIdType();
+    return idType.isInstance(id) ? id : DefaultConversionService.getSharedInstance().convert(id, idType);
+  }
+
   private <S> TypedQuery<S> applyRepositoryMethodMetadata(TypedQuery<S> query) {
+    return applyRepositoryMethodMetadata(query, true);
+  }
+
+  private <S> TypedQuery<S> applyRepositoryMethodMetadata(TypedQuery<S> query, boolean withFetchGraphs) {
 
     if (getRepositoryMethodMetadata() == null) {
       return query;
@@ -569,18 +1627,136 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
     LockModeType type = getRepositoryMethodMetadata().getLockModeType();
     TypedQuery<S> toReturn = type == null ? query : query.setLockMode(type);
 
-    applyQueryHints(toReturn);
+    applyQueryHints(toReturn, withFetchGraphs);
 
     return toReturn;
   }
 
-  private void applyQueryHints(Query query) {
+  private void applyQueryHints(Query query, boolean withFetchGraphs) {
 
-    for (Entry<String, Object> hint : getQueryHints().withFetchGraphs(em)) {
+    for (Entry<String, Object> hint : withFetchGraphs ? getQueryHints().withFetchGraphs(em) : getQueryHints()) {
       query.setHint(hint.getKey(), hint.getValue());
     }
   }
 
+  /**
+   * The fetch graph is loaded in a separate phase if the ACL joins and the forced DISTINCT would be combined with the
+   * fetch joins of the graph.
+   */
+  private boolean isFetchGraphDeferrable() {
+    return aclSpecification != null && !entityInformation.hasCompositeId();
+  }
+
+  /**
+   * Returns the fetch (or load) graph of the current repository method or null if there is none.
+   */
+  @Nullable
+  private EntityGraph<?> getEntityGraph() {
+    if (getRepositoryMethodMetadata() == null || !getRepositoryMethodMetadata().getEntityGraph().isPresent()) {
+      return null;
+    }
+    for (Entry<String, Object> hint : getQueryHints().withFetchGraphs(em)) {
+      if (hint.getValue() instanceof EntityGraph) {
+        return (EntityGraph<?>) hint.getValue();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Loads the associations of the fetch graph of the current repository method into the given (already permitted and
+   * managed) entities. The entities are selected by their ids without the ACL predicates: all the singular
+   * associations are fetched by one query and every collection by its own one, so the collections don't multiply each
+   * other's rows. The nested subgraphs (e.g. the {@code createdBy.groups} attribute path) are loaded the same way into
+   * the fetched associations, one level after the other. Long id lists are split into chunks.
+   *
+   * @return the given entities
+   */
+  protected <S extends T> List<S> fetchGraph(List<S> entities) {
+    EntityGraph<?> graph = isFetchGraphDeferrable() ? getEntityGraph() : null;
+    if (graph == null || entities.isEmpty()) {
+      return entities;
+    }
+
+    List<Object> ids = entities.stream().filter(getDomainClass()::isInstance).map(entityInformation::getId)
+        .distinct().collect(Collectors.toList());
+    fetchAttributeNodes(entityInformation, ids, graph.getAttributeNodes());
+    return entities;
+  }
+
+  /**
+   * Fetches the given attribute nodes into the entities with the given ids, then the nodes of their subgraphs into the
+   * fetched associations. (The subgraphs of the entity types with composite ids are not followed.)
+   */
+  private void fetchAttributeNodes(JpaEntityInformation<?, ?> information, List<Object> ids,
+      List<AttributeNode<?>> nodes) {
+    EntityType<?> entityType = em.getMetamodel().entity(information.getJavaType());
+    List<String> singularAttributes = new ArrayList<>();
+    List<String> pluralAttributes = new ArrayList<>();
+    List<AttributeNode<?>> nestedNodes = new ArrayList<>();
+    for (AttributeNode<?> node : nodes) {
+      Attribute<?, ?> attribute = entityType.getAttribute(node.getAttributeName());
+      if (attribute.isCollection()) {
+        pluralAttributes.add(attribute.getName());
+      } else if (attribute.isAssociation()) {
+        singularAttributes.add(attribute.getName());
+      } else {
+        continue;
+      }
+      if (!node.getSubgraphs().isEmpty()) {
+        nestedNodes.add(node);
+      }
+    }
+
+    Set<Object> fetched = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (int from = 0; from < ids.size(); from += idChunkSize) {
+      List<Object> chunk = ids.subList(from, Math.min(from + idChunkSize, ids.size()));
+      if (!singularAttributes.isEmpty()) {
+        fetched.addAll(fetchAttributes(information, chunk, singularAttributes));
+      }
+      for (String attribute : pluralAttributes) {
+        fetched.addAll(fetchAttributes(information, chunk, Collections.singletonList(attribute)));
+      }
+    }
+
+    for (AttributeNode<?> node : nestedNodes) {
+      for (Subgraph<?> subgraph : node.getSubgraphs().values()) {
+        JpaEntityInformation<?, ?> targetInformation = JpaEntityInformationSupport
+            .getEntityInformation(subgraph.getClassType(), em);
+        if (targetInformation.hasCompositeId()) {
+          continue;
+        }
+        List<Object> targetIds = new ArrayList<>();
+        for (Object entity : fetched) {
+          Object value = new DirectFieldAccessFallbackBeanWrapper(entity).getPropertyValue(node.getAttributeName());
+          Collection<?> targets = value instanceof Collection ? (Collection<?>) value
+              : value instanceof Map ? ((Map<?, ?>) value).values() : Collections.singleton(value);
+          for (Object target : targets) {
+            if (target != null) {
+              targetIds.add(em.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(target));
+            }
+          }
+        }
+        fetchAttributeNodes(targetInformation, targetIds.stream().distinct().collect(Collectors.toList()),
+            subgraph.getAttributeNodes());
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<?> fetchAttributes(JpaEntityInformation<?, ?> information, List<Object> ids, List<String> attributes) {
+    CriteriaBuilder builder = em.getCriteriaBuilder();
+    CriteriaQuery<Object> query = builder.createQuery((Class<Object>) information.getJavaType());
+    Root<Object> root = query.from((Class<Object>) information.getJavaType());
+    for (String attribute : attributes) {
+      root.fetch(attribute, JoinType.LEFT);
+    }
+    query.select(root).distinct(true).where(root.get(information.getIdAttribute().getName())
+        .in(builder.parameter(Collection.class, IDS_PARAMETER)));
+
+    return em.createQuery(query).setParameter(IDS_PARAMETER, ids).getResultList();
+  }
+
   @Override
   @Transactional
   public void clear() {
@@ -688,6 +1864,50 @@ public class SimpleAclJpaRepository<T, ID> extends SimpleJpaRepository<T, ID> im
 
   }
 
+  private static final class DeletedChunk<ID> {
+
+    private final ID lastId;
+    private final int size;
+    private final int deleted;
+
+    private DeletedChunk(ID lastId, int size, int deleted) {
+      this.lastId = lastId;
+      this.size = size;
+      this.deleted = deleted;
+    }
+  }
+
+  /**
+   * {@link Specification} that gives access to the entities with the given composite ids as OR-ed groups of the id
+   * attributes.
+   */
+  private static final class ByCompositeIdsSpecification<T> implements Specification<T> {
+
+    private static final long serialVersionUID = -5372215064235380155L;
+
+    private final JpaEntityInformation<T, ?> entityInformation;
+    private final Collection<?> ids;
+
+    public ByCompositeIdsSpecification(JpaEntityInformation<T, ?> entityInformation, Collection<?> ids) {
+      this.entityInformation = entityInformation;
+      this.ids = ids;
+    }
+
+    @Override
+    public Predicate toPredicate(Root<T> root, CriteriaQuery<?> query, CriteriaBuilder cb) {
+      List<Predicate> idPredicates = new ArrayList<>();
+      for (Object id : ids) {
+        List<Predicate> attributePredicates = new ArrayList<>();
+        for (String attributeName : entityInformation.getIdAttributeNames()) {
+          attributePredicates.add(
+              cb.equal(root.get(attributeName), entityInformation.getCompositeIdAttributeValue(id, attributeName)));
+        }
+        idPredicates.add(cb.and(attributePredicates.toArray(new Predicate[attributePredicates.size()])));
+      }
+      return cb.or(idPredicates.toArray(new Predicate[idPredicates.size()]));
+    }
+  }
+
   /**
    * Specification that gives access to the {@link Parameter} instance used to bind the ids for
    * {@link SimpleJpaRepository#findAllById(Iterable)}. Workaround for OpenJPA not binding collections to in-clauses
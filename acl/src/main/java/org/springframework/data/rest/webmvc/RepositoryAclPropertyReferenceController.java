@@ -204,11 +204,12 @@ public class RepositoryAclPropertyReferenceController extends AbstractRepository
 
       if (propertyValue != null) {
         if (AclConstants.UPDATE_PERMISSION == prop.requiredPermission) {
-          // OneToOne property without UPDATE permission on this side -> reload with UPDATE permission
-          propertyValue = prop.propertyRepository
-              .findById(repositories.getEntityInformationFor(prop.propertyType).getId(propertyValue),
-                  AclConstants.UPDATE_PERMISSION)
-              .orElseThrow(AclUpdatePermissionException::new);
+          // OneToOne property without UPDATE permission on this side -> check UPDATE permission of the other side
+          if (!prop.propertyRepository.isPermitted(
+              repositories.getEntityInformationFor(prop.propertyType).getId(propertyValue),
+              AclConstants.UPDATE_PERMISSION)) {
+            throw new AclUpdatePermissionException();
+          }
 
         }
         prop.wipeValue();
@@ -591,6 +592,8 @@ public class RepositoryAclPropertyReferenceController extends AbstractRepository
 
     // We first load the parent domainObject and check the permissions needed
     AclJpaRepository<Object, Object> parentRepository = getAclRepository(property.getOwner().getType());
+    Object parentId = conversionService.convert(id,
+        repositories.getEntityInformationFor(property.getOwner().getType()).getIdType());
 
     if (!HttpMethod.GET.equals(method)) {
       // POST/PATCH/PUT/DELETE -> UPDATE permission is needed
@@ -598,7 +601,7 @@ public class RepositoryAclPropertyReferenceController extends AbstractRepository
         // Other side is a singular property: need UPDATE permission only to the other side of the association
         propertyPermission = AclConstants.UPDATE_PERMISSION;
       } else {
-        domainObj = parentRepository.findById(id, AclConstants.UPDATE_PERMISSION);
+        domainObj = parentRepository.findById(parentId, AclConstants.UPDATE_PERMISSION);
         if (!domainObj.isPresent()) {
           if (property.isMap() || property.isAnnotationPresent(ManyToOne.class)) {
             // Singular property reference or map: UPDATE permission is mandatory on this side
@@ -611,7 +614,7 @@ public class RepositoryAclPropertyReferenceController extends AbstractRepository
       }
     }
     if (!domainObj.isPresent()) {
-      domainObj = parentRepository.findById(id, AclConstants.READ_PERMISSION);
+      domainObj = parentRepository.findById(parentId, AclConstants.READ_PERMISSION);
     }
     if (!domainObj.isPresent()) {
       throw new AclReadPermissionException();
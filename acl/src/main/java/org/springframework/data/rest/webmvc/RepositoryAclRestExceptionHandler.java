@@ -17,12 +17,15 @@ package org.springframework.data.rest.webmvc;
 
 import org.springframework.data.jpa.repository.support.AclReadPermissionException;
 import org.springframework.data.jpa.repository.support.InsufficientAclPermissionException;
+import org.springframework.data.rest.webmvc.support.ExceptionMessage;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 
+import com.berrycloud.acl.configuration.rest.TooManyRequestedPermissionsException;
+
 /**
  * Exception handler for ACl specific exceptions.
  *
@@ -56,4 +59,16 @@ public class RepositoryAclRestExceptionHandler {
     return new ResponseEntity<>(new HttpHeaders(), HttpStatus.FORBIDDEN);
   }
 
+  /**
+   * Handles {@link TooManyRequestedPermissionsException} by returning {@code 400 Bad Request}.
+   *
+   * @param o_O
+   *          the exception to handle.
+   * @return
+   */
+  @ExceptionHandler
+  ResponseEntity<ExceptionMessage> handleBadRequest(TooManyRequestedPermissionsException o_O) {
+    return new ResponseEntity<>(new ExceptionMessage(o_O), new HttpHeaders(), HttpStatus.BAD_REQUEST);
+  }
+
 }
@@ -6,38 +6,71 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Tuple;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationContext;
 import org.springframework.data.domain.Example;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.domain.Specification;
+import org.springframework.data.jpa.repository.EntityGraph;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.query.InvalidJpaQueryMethodException;
 import org.springframework.data.jpa.repository.support.AclDeletePermissionException;
 import org.springframework.data.jpa.repository.support.AclReadPermissionException;
 import org.springframework.data.jpa.repository.support.AclUpdatePermissionException;
+import org.springframework.data.repository.query.Param;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import com.berrycloud.acl.AclInMemoryEvaluator.Decision;
 import com.berrycloud.acl.domain.SimpleAclRole;
 import com.berrycloud.acl.domain.SimpleAclUser;
+import com.berrycloud.acl.repository.AclJpaRepository;
+import com.berrycloud.acl.repository.AclJpaRepositoryFactory;
+import com.berrycloud.acl.repository.AclTableAlias;
+import com.berrycloud.acl.repository.Aggregate;
+import com.berrycloud.acl.repository.PermittedEntity;
 import com.berrycloud.acl.sample.all.AclAppAll;
 import com.berrycloud.acl.sample.all.entity.Attachment;
 import com.berrycloud.acl.sample.all.entity.Document;
@@ -46,6 +79,8 @@ import com.berrycloud.acl.sample.all.entity.PersonHasPersonPermission;
 import com.berrycloud.acl.sample.all.entity.Project;
 import com.berrycloud.acl.sample.all.entity.TestGroup;
 import com.berrycloud.acl.sample.all.entity.Theme;
+import com.berrycloud.acl.sample.all.projection.PersonName;
+import com.berrycloud.acl.sample.all.projection.PersonNameDto;
 import com.berrycloud.acl.sample.all.repository.AttachmentRepository;
 import com.berrycloud.acl.sample.all.repository.DocumentRepository;
 import com.berrycloud.acl.sample.all.repository.GroupRepository;
@@ -57,6 +92,7 @@ import com.berrycloud.acl.sample.all.repository.ThemeRepository;
 import com.berrycloud.acl.sample.all.service.PersonService;
 import com.berrycloud.acl.security.AclUserDetails;
 import com.berrycloud.acl.security.AclUserDetailsService;
+import com.berrycloud.acl.security.access.AclPermissionEvaluator;
 
 @SpringBootTest(classes = AclAppAll.class)
 @RunWith(SpringRunner.class)
@@ -69,6 +105,36 @@ public class AclAllRepositoryIntegrationTest {
   @Autowired
   private AclLogic aclLogic;
 
+  @Autowired
+  private AclFlushVerifier aclFlushVerifier;
+
+  @Autowired
+  private AclQueryCache aclQueryCache;
+
+  @Autowired
+  private AclDecisionCache aclDecisionCache;
+
+  @Autowired
+  private AclSharedDecisionCache aclSharedDecisionCache;
+
+  @Autowired
+  private AclSharedResultCache aclSharedResultCache;
+
+  @Autowired
+  private AclSpecification aclSpecification;
+
+  @Autowired
+  private AclPermissionEvaluator aclPermissionEvaluator;
+
+  @Autowired
+  private ApplicationContext applicationContext;
+
+  @Autowired
+  private AclInMemoryEvaluator aclInMemoryEvaluator;
+
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
   @Autowired
   private AclUserDetailsService<?> aclUserDetailsService;
 
@@ -135,6 +201,19 @@ public class AclAllRepositoryIntegrationTest {
 
   }
 
+  @After
+  public void resetFlushVerifier() {
+    aclFlushVerifier.setEnabled(false);
+    aclDecisionCache.setEnabled(false);
+    aclSharedDecisionCache.setEnabled(false);
+    aclSharedDecisionCache.setTimeToLive(Duration.ofSeconds(60));
+    aclSharedDecisionCache.setMaxSize(10000);
+    aclSharedResultCache.setEnabled(false);
+    aclSharedResultCache.setTimeToLive(Duration.ofSeconds(60));
+    aclSharedResultCache.setMaxProfiles(10000);
+    aclSharedResultCache.clear();
+  }
+
   public void setAuthentication(String username) {
     if (username == null) {
       SecurityContextHolder.getContext().setAuthentication(null);
@@ -514,6 +593,74 @@ public class AclAllRepositoryIntegrationTest {
     assertTrue(personService.loadInvalidObject(null, AclConstants.READ_PERMISSION));
   }
 
+  @Test
+  public void testGivenUserAuthenticationWhenCallAuthorizedMethodByIdsWithPermissionThenMethodIsCalled() {
+    setAuthentication("user");
+    assertTrue(personService.loadPersons(Arrays.asList(user.getId(), user2.getId()), AclConstants.READ_PERMISSION));
+  }
+
+  @Test(expected = AccessDeniedException.class)
+  public void testGivenUserAuthenticationWhenCallAuthorizedMethodByIdsWithoutPermissionThenThrowException() {
+    setAuthentication("user");
+    assertTrue(personService.loadPersons(Arrays.asList(user.getId(), user3.getId()), AclConstants.READ_PERMISSION));
+  }
+
+  @Test
+  public void testGivenContextWhenGetPermissionEvaluatorByOriginalNameThenSameBeanIsReturned() {
+    assertTrue(applicationContext.getBean("AclPermissionEvaluator") == aclPermissionEvaluator);
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallPermissionsForThenPermissionsAreReturnedInOneQuery() {
+    Document doc1 = documentRepository.saveWithoutPermissionCheck(new Document("doc1", "content", user));
+    Document doc2 = documentRepository.saveWithoutPermissionCheck(new Document("doc2", "content", user3));
+    List<Integer> ids = Arrays.asList(doc1.getId(), doc2.getId());
+    documentRepository.flush();
+
+    setAuthentication("user");
+    Statistics statistics = em.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    Map<Integer, Set<String>> permissions;
+    try {
+      statistics.clear();
+      permissions = aclPermissionEvaluator.permissionsFor(Document.class, ids, AclConstants.READ_PERMISSION,
+          AclConstants.UPDATE_PERMISSION, "manage");
+      assertThat(statistics.getPrepareStatementCount(), is(1L));
+    } finally {
+      statistics.setStatisticsEnabled(false);
+    }
+    assertThat(permissions.keySet(), is(Collections.singleton(doc1.getId())));
+    assertTrue(permissions.get(doc1.getId()).contains(AclConstants.READ_PERMISSION));
+    assertTrue(permissions.get(doc1.getId()).contains(AclConstants.UPDATE_PERMISSION));
+
+    setAuthentication("admin");
+    permissions = aclPermissionEvaluator.permissionsFor(Document.class, ids, AclConstants.READ_PERMISSION,
+        AclConstants.DELETE_PERMISSION);
+    assertThat(permissions.size(), is(2));
+    assertThat(permissions.get(doc2.getId()).size(), is(2));
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallFindAllWithPermissionsThenPermissionsAreReturned() {
+    Document doc1 = documentRepository.saveWithoutPermissionCheck(new Document("doc1", "content", user));
+    documentRepository.saveWithoutPermissionCheck(new Document("doc2", "content", user3));
+    Specification<Document> docs = (root, query, cb) -> cb.like(root.get("name"), "doc%");
+
+    setAuthentication("user");
+    Page<PermittedEntity<Document>> page = documentRepository.findAllWithPermissions(docs,
+        PageRequest.of(0, 10, Sort.by("name")), AclConstants.UPDATE_PERMISSION, "manage");
+    assertThat(page.getTotalElements(), is(1L));
+    assertThat(page.getContent().get(0).getEntity().getId(), is(doc1.getId()));
+    assertTrue(page.getContent().get(0).hasPermission(AclConstants.UPDATE_PERMISSION));
+
+    setAuthentication("admin");
+    page = documentRepository.findAllWithPermissions(docs, PageRequest.of(0, 10, Sort.by("name")),
+        AclConstants.UPDATE_PERMISSION, AclConstants.DELETE_PERMISSION);
+    assertThat(page.getTotalElements(), is(2L));
+    assertThat(page.getContent().get(1).getEntity().getName(), is("doc2"));
+    assertThat(page.getContent().get(1).getPermissions().size(), is(2));
+  }
+
   @Test
   public void testGivenUserAuthenticationWhenCallHasAuthorityThenReturnProperValues() {
     setAuthentication("user");
@@ -689,4 +836,1130 @@ public class AclAllRepositoryIntegrationTest {
 
     assertTrue(personRepository.existsById(user.getId()));
   }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallFindIdsAfterThenReturnPermittedIdsPageByPage() {
+    setAuthentication("user");
+    List<Integer> ids = personRepository.findIdsAfter(null, null, 1, AclConstants.READ_PERMISSION);
+    assertThat(ids, is(Arrays.asList(user.getId())));
+    ids = personRepository.findIdsAfter(null, ids.get(0), 1, AclConstants.READ_PERMISSION);
+    assertThat(ids, is(Arrays.asList(user2.getId())));
+    assertTrue(personRepository.findIdsAfter(null, ids.get(0), 1, AclConstants.READ_PERMISSION).isEmpty());
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallDeleteAllByIdInBatchThenReturnNumberOfDeletedUsers() {
+    setAuthentication("user");
+    Person deleteUser = new Person("delme", "d", "d");
+    deleteUser.setCreatedBy(user);
+    personRepository.saveWithoutPermissionCheck(deleteUser);
+    int deleted = personRepository.deleteAllByIdInBatch(Arrays.asList(admin.getId(), deleteUser.getId()),
+        AclConstants.DELETE_PERMISSION, false);
+    assertThat(deleted, is(1));
+    personRepository.clear();
+    assertFalse(personRepository.findByIdWithoutPermissionCheck(deleteUser.getId()).isPresent());
+    assertTrue(personRepository.findByIdWithoutPermissionCheck(admin.getId()).isPresent());
+  }
+
+  @Test
+  public void testGivenSmallIdChunkSizeWhenCallBatchDeletesThenIdsAreDeletedInChunks() {
+    AclJpaRepositoryFactory factory = new AclJpaRepositoryFactory(em, aclSpecification);
+    factory.setIdChunkSize(2);
+    PersonRepository chunkedRepository = factory.getRepository(PersonRepository.class);
+    List<Integer> ids = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      ids.add(personRepository.saveWithoutPermissionCheck(new Person("delme" + i, "d", "deleted", user)).getId());
+    }
+    for (int i = 0; i < 3; i++) {
+      personRepository.saveWithoutPermissionCheck(new Person("derived" + i, "d", "derived", user));
+    }
+    personRepository.flush();
+    setAuthentication("user");
+
+    Statistics statistics = em.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    try {
+      // The statements of one chunk (the bulk delete of the entity and of its collection tables)
+      statistics.clear();
+      assertThat(chunkedRepository.deleteAllByIdInBatch(ids.subList(0, 1), AclConstants.DELETE_PERMISSION, true),
+          is(1));
+      long chunkStatements = statistics.getPrepareStatementCount();
+
+      statistics.clear();
+      assertThat(chunkedRepository.deleteAllByIdInBatch(ids.subList(1, 4), AclConstants.DELETE_PERMISSION, true),
+          is(3));
+      assertThat(statistics.getPrepareStatementCount(), is(2 * chunkStatements));
+
+      statistics.clear();
+      assertThat(chunkedRepository.deleteByLastName("derived"), is(3L));
+      // The id query and two chunks
+      assertThat(statistics.getPrepareStatementCount(), is(1 + 2 * chunkStatements));
+    } finally {
+      statistics.setStatisticsEnabled(false);
+    }
+    personRepository.clear();
+    assertThat(personRepository.findNoAclAllByIdNotNull().size(), is(4));
+  }
+
+  @Test(expected = AclDeletePermissionException.class)
+  public void testGivenUserAuthenticationWhenCallStrictDeleteAllByIdInBatchWithoutPermissionThenThrowException() {
+    setAuthentication("user");
+    Person deleteUser = new Person("delme", "d", "d");
+    deleteUser.setCreatedBy(user);
+    personRepository.saveWithoutPermissionCheck(deleteUser);
+    personRepository.deleteAllByIdInBatch(Arrays.asList(admin.getId(), deleteUser.getId()),
+        AclConstants.DELETE_PERMISSION, true);
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallChunkedDeleteAllThenPermittedUsersAreDeletedInChunks() {
+    setAuthentication("user");
+    for (int i = 0; i < 3; i++) {
+      personRepository.saveWithoutPermissionCheck(new Person("delme" + i, "d", "d", user));
+    }
+    List<Long> progress = new ArrayList<>();
+    long deleted = personRepository.deleteAll(null, AclConstants.DELETE_PERMISSION, 2, 0, progress::add);
+    assertThat(deleted, is(4L));
+    assertThat(progress, is(Arrays.asList(2L, 4L)));
+    personRepository.clear();
+    assertThat(personRepository.findNoAclAllByIdNotNull().size(), is(3));
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallChunkedDeleteAllWithSpecificationThenOnlyMatchingUsersAreDeleted() {
+    setAuthentication("user");
+    for (int i = 0; i < 3; i++) {
+      personRepository.saveWithoutPermissionCheck(new Person("delme" + i, "d", "d", user));
+    }
+    Specification<Person> spec = (root, query, cb) -> cb.like(root.get("username"), "delme%");
+    assertThat(personRepository.deleteAll(spec, AclConstants.DELETE_PERMISSION, 2), is(3L));
+    personRepository.clear();
+    assertTrue(personRepository.findByIdWithoutPermissionCheck(user2.getId()).isPresent());
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallDerivedDeleteThenOnlyDeletableUsersAreDeleted() {
+    personRepository.saveWithoutPermissionCheck(new Person("delme1", "d", "deleted", user));
+    personRepository.saveWithoutPermissionCheck(new Person("delme2", "d", "deleted", user));
+    Person other = new Person("other", "o", "deleted", admin);
+    personRepository.saveWithoutPermissionCheck(other);
+    setAuthentication("user");
+    assertThat(personRepository.deleteByLastName("deleted"), is(2L));
+    personRepository.clear();
+    assertThat(personRepository.findNoAclAllByIdNotNull().size(), is(5));
+    assertTrue(personRepository.findByIdWithoutPermissionCheck(other.getId()).isPresent());
+  }
+
+  @Test
+  public void testGivenManagedEntityWhenCallDerivedDeleteThenEntityIsNotManagedAnymore() {
+    Person person = personRepository.saveWithoutPermissionCheck(new Person("delme", "d", "deleted", user));
+    setAuthentication("user");
+    assertTrue(personRepository.findById(person.getId()).isPresent());
+
+    assertThat(personRepository.deleteByLastName("deleted"), is(1L));
+    assertFalse(em.contains(person));
+    assertFalse(personRepository.findByIdWithoutPermissionCheck(person.getId()).isPresent());
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallDerivedDeleteWithLoadingThenOnlyDeletableUsersAreDeleted() {
+    personRepository.saveWithoutPermissionCheck(new Person("delme1", "d", "deleted", user));
+    Person other = new Person("other", "o", "deleted", admin);
+    personRepository.saveWithoutPermissionCheck(other);
+    setAuthentication("user");
+    assertThat(personRepository.removeByLastName("deleted"), is(1L));
+    personRepository.flush();
+    personRepository.clear();
+    assertThat(personRepository.findNoAclAllByIdNotNull().size(), is(5));
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallUpdateOnDetachedEntityThenObjectIsUpdated() {
+    personRepository.flush();
+    personRepository.clear();
+    setAuthentication("user");
+    user2.setFirstName("changed");
+    personRepository.update(user2);
+    personRepository.clear();
+    Person updated = personRepository.findByIdWithoutPermissionCheck(user2.getId()).get();
+    assertThat(updated.getFirstName(), is("changed"));
+    assertThat(updated.getCreatedBy().getId(), is(user.getId()));
+  }
+
+  @Test(expected = AclUpdatePermissionException.class)
+  public void testGivenUserAuthenticationWhenCallUpdateWithoutPermissionThenUpdateThrowsException() {
+    personRepository.flush();
+    personRepository.clear();
+    setAuthentication("user");
+    admin.setFirstName("changed");
+    personRepository.update(admin, "firstName");
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallUpdateByIdThenOnlyGivenAttributeIsUpdated() {
+    setAuthentication("user");
+    personRepository.update(user2.getId(), Collections.singletonMap("lastName", "changed"));
+    personRepository.clear();
+    Person updated = personRepository.findByIdWithoutPermissionCheck(user2.getId()).get();
+    assertThat(updated.getLastName(), is("changed"));
+    assertThat(updated.getFirstName(), is("u2"));
+  }
+
+  @Test
+  public void testGivenVersionedEntityWhenCallUpdateThenVersionIsCheckedAndIncremented() {
+    Theme theme = themeRepository.saveAndFlush(new Theme("theme", "content"));
+    themeRepository.clear();
+    Theme detached = new Theme("changed", "content");
+    detached.setId(theme.getId());
+    detached.setVersion(theme.getVersion());
+    themeRepository.update(detached, "name");
+    assertThat(detached.getVersion(), is(theme.getVersion() + 1));
+
+    // The outdated version is rejected
+    detached.setVersion(theme.getVersion());
+    try {
+      themeRepository.update(detached, "name");
+      fail();
+    } catch (ObjectOptimisticLockingFailureException e) {
+      // expected
+    }
+    themeRepository.clear();
+    Theme updated = themeRepository.findById(theme.getId()).get();
+    assertThat(updated.getName(), is("changed"));
+    assertThat(updated.getVersion(), is(theme.getVersion() + 1));
+  }
+
+  @Test
+  public void testGivenManagedEntityWhenCallUpdateByIdThenEntityIsRefreshed() {
+    Theme theme = themeRepository.saveAndFlush(new Theme("theme", "content"));
+    Integer version = theme.getVersion();
+    themeRepository.update(theme.getId(), Collections.singletonMap("name", "changed"));
+    assertThat(theme.getName(), is("changed"));
+    assertThat(theme.getVersion(), is(version + 1));
+    // The managed entity is not outdated, so it can be saved again
+    theme.setContent("changed");
+    themeRepository.saveAndFlush(theme);
+  }
+
+  @Test
+  public void testGivenAdminAuthenticationWhenCallSaveAllThenNewAndExistingEntitiesAreSaved() {
+    setAuthentication("admin");
+    user2.setFirstName("changed");
+    List<Person> saved = personRepository
+        .saveAll(Arrays.asList(new Person("new1", "n1", "n1"), user2, new Person("new2", "n2", "n2")));
+    assertThat(saved.size(), is(3));
+    personRepository.flush();
+    personRepository.clear();
+    assertThat(personRepository.findNoAclAllByIdNotNull().size(), is(6));
+    assertThat(personRepository.findByIdWithoutPermissionCheck(user2.getId()).get().getFirstName(), is("changed"));
+  }
+
+  @Test(expected = AclUpdatePermissionException.class)
+  public void testGivenUserAuthenticationWhenCallSaveAllWithoutPermissionThenThrowException() {
+    setAuthentication("user");
+    personRepository.saveAll(Arrays.asList(user2, admin));
+  }
+
+  @Test
+  public void testGivenFlushVerificationWhenManagedEntityIsModifiedWithPermissionThenFlushSucceeds() {
+    personRepository.flush();
+    personRepository.clear();
+    aclFlushVerifier.setEnabled(true);
+    setAuthentication("user");
+    Person managed = personRepository.findById(user2.getId()).get();
+    managed.setFirstName("changed");
+    personRepository.flush();
+    personRepository.clear();
+    assertThat(personRepository.findByIdWithoutPermissionCheck(user2.getId()).get().getFirstName(), is("changed"));
+  }
+
+  @Test(expected = AclUpdatePermissionException.class)
+  public void testGivenFlushVerificationWhenManagedEntityIsModifiedWithoutPermissionThenFlushThrowsException() {
+    personRepository.flush();
+    personRepository.clear();
+    aclFlushVerifier.setEnabled(true);
+    setAuthentication("user");
+    Person managed = personRepository.findByIdWithoutPermissionCheck(admin.getId()).get();
+    managed.setFirstName("changed");
+    personRepository.flush();
+  }
+
+  @Test(expected = AclUpdatePermissionException.class)
+  public void testGivenFlushVerificationWhenSaveAllWithoutPermissionThenFlushThrowsException() {
+    personRepository.flush();
+    personRepository.clear();
+    aclFlushVerifier.setEnabled(true);
+    setAuthentication("user");
+    admin.setFirstName("changed");
+    user2.setFirstName("changed");
+    personRepository.saveAll(Arrays.asList(user2, admin));
+    personRepository.flush();
+  }
+
+  @Test
+  public void testGivenFailedFlushWhenNextFlushIsVerifiedThenOnlyItsOwnEntitiesAreChecked() {
+    personRepository.flush();
+    personRepository.clear();
+    aclFlushVerifier.setEnabled(true);
+    setAuthentication("user");
+    Authentication userAuthentication = SecurityContextHolder.getContext().getAuthentication();
+    setAuthentication("admin");
+    personRepository.findByIdWithoutPermissionCheck(admin.getId()).get().setFirstName("changed");
+    // The insert of the duplicated username fails before the update of admin
+    em.persist(new Person("user", "duplicate", "duplicate"));
+    try {
+      em.flush();
+      fail("The duplicated username was inserted");
+    } catch (PersistenceException e) {
+      em.clear();
+    }
+
+    // No query runs before the next flush, so it's not preceded by an auto-flush
+    SecurityContextHolder.getContext().setAuthentication(userAuthentication);
+    em.find(Person.class, user2.getId()).setFirstName("changed");
+    personRepository.flush();
+  }
+
+  @Test
+  public void testGivenFlushVerificationWhenSaveWithoutPermissionCheckThenFlushSucceeds() {
+    personRepository.flush();
+    personRepository.clear();
+    aclFlushVerifier.setEnabled(true);
+    setAuthentication("user");
+    admin.setFirstName("changed");
+    personRepository.saveWithoutPermissionCheck(admin);
+    personRepository.flush();
+    personRepository.clear();
+    assertThat(personRepository.findByIdWithoutPermissionCheck(admin.getId()).get().getFirstName(), is("changed"));
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallIsPermittedThenOnlyPermittedIdsAreAccepted() {
+    setAuthentication("user");
+    assertTrue(personRepository.isPermitted(user2.getId(), AclConstants.UPDATE_PERMISSION));
+    assertFalse(personRepository.isPermitted(admin.getId(), AclConstants.UPDATE_PERMISSION));
+    assertThat(personRepository.permittedIds(Arrays.asList(admin.getId(), user2.getId(), -1),
+        AclConstants.UPDATE_PERMISSION), is(Arrays.asList(user2.getId())));
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallPermittedIdsWithManyIdsThenIdsAreCheckedInChunks() {
+    setAuthentication("user");
+    List<Integer> ids = new ArrayList<>();
+    for (int i = 1; i <= 2500; i++) {
+      ids.add(-i);
+    }
+    ids.add(admin.getId());
+    ids.add(user2.getId());
+    Statistics statistics = em.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    try {
+      statistics.clear();
+      assertThat(personRepository.permittedIds(ids, AclConstants.UPDATE_PERMISSION),
+          is(Arrays.asList(user2.getId())));
+      // One query per 1000 ids
+      assertThat(statistics.getPrepareStatementCount(), is(3L));
+    } finally {
+      statistics.setStatisticsEnabled(false);
+    }
+  }
+
+  @Test
+  public void testGivenAdminAuthenticationWhenCallFindAllByIdWithManyIdsThenEntitiesAreReturnedInIdOrder() {
+    setAuthentication("admin");
+    List<Integer> ids = new ArrayList<>();
+    ids.add(user3.getId());
+    for (int i = 1; i <= 2500; i++) {
+      ids.add(-i);
+    }
+    ids.add(admin.getId());
+    ids.add(user3.getId());
+    ids.add(user.getId());
+    assertThat(personRepository.findAllById(ids, AclConstants.READ_PERMISSION), is(Arrays.asList(user3, admin, user)));
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallFindAllWithProjectionThenOnlyPermittedProjectionsAreReturned() {
+    personRepository.saveWithoutPermissionCheck(new Person("twin1", "twin", "twins", user));
+    personRepository.saveWithoutPermissionCheck(new Person("twin2", "twin", "twins", user));
+    personRepository.saveWithoutPermissionCheck(new Person("twin3", "twin", "twins", admin));
+    setAuthentication("user");
+    Specification<Person> twins = (root, query, cb) -> cb.equal(root.get("lastName"), "twins");
+
+    List<PersonName> names = personRepository.findAll(twins, PersonName.class, Sort.by("username"),
+        AclConstants.UPDATE_PERMISSION);
+    assertThat(names.size(), is(2));
+    assertThat(names.get(0).getFirstName(), is("twin"));
+
+    Page<PersonNameDto> page = personRepository.findAll(twins, PersonNameDto.class, PageRequest.of(0, 1),
+        AclConstants.UPDATE_PERMISSION);
+    assertThat(page.getTotalElements(), is(2L));
+    assertThat(page.getContent().get(0).getLastName(), is("twins"));
+
+    setAuthentication("admin");
+    assertThat(personRepository.findNamesByLastName("twins").size(), is(3));
+  }
+
+  @Test
+  public void testGivenDifferentUsersWhenCallDerivedQueryRepeatedlyThenTheCachedQueryIsBoundToTheCurrentUser() {
+    personRepository.saveWithoutPermissionCheck(new Person("twin1", "twin", "twins", user));
+    personRepository.saveWithoutPermissionCheck(new Person("twin2", "twin", "twins", user2));
+    personRepository.saveWithoutPermissionCheck(new Person("twin3", "twin", "twins", admin));
+    for (int i = 0; i < 2; i++) {
+      setAuthentication("user");
+      assertThat(personRepository.findByLastName("twins").size(), is(1));
+      assertThat(personRepository.findByLastName("twins").get(0).getUsername(), is("twin1"));
+      setAuthentication("user2");
+      assertThat(personRepository.findByLastName("twins").size(), is(1));
+      assertThat(personRepository.findByLastName("twins").get(0).getUsername(), is("twin2"));
+      setAuthentication("admin");
+      assertThat(personRepository.findByLastName("twins").size(), is(3));
+    }
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallDeclaredQueryThenOnlyPermittedEntitiesAreReturned() {
+    personRepository.saveWithoutPermissionCheck(new Person("twin1", "twin", "twins", user));
+    personRepository.saveWithoutPermissionCheck(new Person("twin2", "twin", "twins", user));
+    personRepository.saveWithoutPermissionCheck(new Person("twin3", "twin", "twins", admin));
+    setAuthentication("user");
+    assertThat(personRepository.selectAllUsingNative().size(), is(personRepository.findAll().size()));
+
+    List<Person> twins = personRepository.selectByLastName("twins");
+    assertThat(twins.size(), is(2));
+    assertThat(twins.get(0).getUsername(), is("twin1"));
+
+    Page<Person> page = personRepository.selectPageByLastName("twins",
+        PageRequest.of(0, 1, Sort.by("username").descending()));
+    assertThat(page.getTotalElements(), is(2L));
+    assertThat(page.getContent().get(0).getUsername(), is("twin2"));
+
+    setAuthentication("admin");
+    assertThat(personRepository.selectByLastName("twins").size(), is(3));
+    assertThat((long) personRepository.selectAllUsingNative().size(), is(personRepository.count()));
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallNativeQueryThenOnlyPermittedEntitiesAreReturned() {
+    personRepository.saveWithoutPermissionCheck(new Person("twin1", "twin", "twins", user));
+    personRepository.saveWithoutPermissionCheck(new Person("twin2", "twin", "twins", user));
+    personRepository.saveWithoutPermissionCheck(new Person("twin3", "twin", "twins", admin));
+    personRepository.flush();
+    setAuthentication("user");
+    List<Person> twins = personRepository.selectNativeByLastName("twins");
+    assertThat(twins.size(), is(2));
+    assertThat(twins.get(1).getUsername(), is("twin2"));
+    assertThat(personRepository.countNative(), is(personRepository.count()));
+
+    setAuthentication("admin");
+    assertThat(personRepository.selectNativeByLastName("twins").size(), is(3));
+    assertThat(personRepository.countNative(), is(personRepository.count()));
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallNativeQueryWithTrailingClausesThenAclIsAppliedBeforeThem() {
+    personRepository.saveWithoutPermissionCheck(new Person("twin1", "twin", "twins", user));
+    personRepository.saveWithoutPermissionCheck(new Person("twin2", "twin", "twins", user));
+    personRepository.saveWithoutPermissionCheck(new Person("twin0", "twin", "twins", admin));
+    personRepository.flush();
+    setAuthentication("user");
+    List<Person> first = personRepository.selectFirstNativeByLastName("twins");
+    assertThat(first.size(), is(1));
+    assertThat(first.get(0).getUsername(), is("twin1"));
+    assertThat(personRepository.selectNativeByLastNameForUpdate("twins").size(), is(2));
+    assertThat(personRepository.countNativeWithComments(), is(personRepository.count()));
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallDeclaredUpdateQueryThenOnlyPermittedEntitiesAreUpdated() {
+    personRepository.saveWithoutPermissionCheck(new Person("twin1", "twin", "twins", user));
+    personRepository.saveWithoutPermissionCheck(new Person("twin2", "twin", "twins", user));
+    personRepository.saveWithoutPermissionCheck(new Person("twin3", "twin", "twins", admin));
+    personRepository.flush();
+    setAuthentication("user");
+    assertThat(personRepository.updateFirstNameByLastName("twins", "updated"), is(2));
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallFindAllWithEntityGraphThenAssociationsAreLoaded() {
+    personRepository.flush();
+    personRepository.clear();
+    setAuthentication("user");
+    List<Person> persons = personRepository.findAll((root, query, cb) -> cb.isNotNull(root.get("id")));
+    assertThat(persons.size(), is(new HashSet<>(persons).size()));
+    PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+    for (Person person : persons) {
+      assertTrue(util.isLoaded(person, "aclRoles"));
+      assertTrue(util.isLoaded(person, "groups"));
+    }
+  }
+
+  @Test
+  public void testGivenNestedEntityGraphWhenCallFindAllThenNestedAssociationsAreLoaded() {
+    Document document = documentRepository.saveWithoutPermissionCheck(new Document("doc", "content", user2));
+    attachmentRepository.saveWithoutPermissionCheck(new Attachment("a1", "content", user2, document));
+    setAuthentication("user");
+    personRepository.flush();
+    personRepository.clear();
+    NestedGraphRepository repository = new AclJpaRepositoryFactory(em, aclSpecification)
+        .getRepository(NestedGraphRepository.class);
+    List<Person> persons = repository.findAll((root, query, cb) -> cb.equal(root.get("username"), "user2"));
+    assertThat(persons.size(), is(1));
+    PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+    Person person = persons.get(0);
+    assertTrue(util.isLoaded(person, "createdBy"));
+    assertTrue(util.isLoaded(person.getCreatedBy(), "aclRoles"));
+    assertTrue(util.isLoaded(person, "documents"));
+    assertThat(person.getDocuments().size(), is(1));
+    assertTrue(util.isLoaded(person.getDocuments().get(0), "attachments"));
+  }
+
+  public interface NestedGraphRepository
+      extends AclJpaRepository<Person, Integer>, JpaSpecificationExecutor<Person> {
+
+    @Override
+    @EntityGraph(attributePaths = { "createdBy.aclRoles", "documents.attachments" })
+    List<Person> findAll(Specification<Person> spec);
+  }
+
+  @Test
+  public void testGivenUserAuthenticationWhenCallAggregateThenOnlyPermittedEntitiesAreAggregated() {
+    documentRepository.saveWithoutPermissionCheck(new Document("doc1", "content", user));
+    documentRepository.saveWithoutPermissionCheck(new Document("doc2", "content", user));
+    documentRepository.saveWithoutPermissionCheck(new Document("doc3", "content", admin));
+    setAuthentication("user");
+    List<Tuple> result = documentRepository.aggregate(null, AclConstants.READ_PERMISSION,
+        Arrays.asList("creator.username"), Aggregate.count(), Aggregate.max("name").as("last"));
+    assertThat(result.size(), is(1));
+    assertThat(result.get(0).get("creator.username"), is("user"));
+    assertThat(result.get(0).get("count"), is(2L));
+    assertThat(result.get(0).get("last"), is("doc2"));
+  }
+
+  @Test
+  public void testGivenDifferentUsersWhenCallFixedShapeQueriesThenRenderedQueriesAreShared() {
+    Document doc1 = documentRepository.saveWithoutPermissionCheck(new Document("doc1", "content", user));
+    Document doc2 = documentRepository.saveWithoutPermissionCheck(new Document("doc2", "content", user3));
+    // Every call must execute its query
+    aclDecisionCache.setEnabled(false);
+    aclQueryCache.clear();
+    for (int i = 0; i < 3; i++) {
+      setAuthentication("user");
+      assertTrue(documentRepository.findById(doc1.getId()).isPresent());
+      assertFalse(documentRepository.findById(doc2.getId()).isPresent());
+      assertThat(documentRepository.permittedIds(Arrays.asList(doc1.getId(), doc2.getId()),
+          AclConstants.READ_PERMISSION), is(Arrays.asList(doc1.getId())));
+
+      setAuthentication("user3");
+      assertFalse(documentRepository.existsById(doc1.getId()));
+      assertTrue(documentRepository.existsById(doc2.getId()));
+      assertThat(documentRepository.findAll().size(), is(1));
+    }
+    // One rendering per query shape: the same JPQL is used for both of the users
+    assertThat(aclQueryCache.getMissCount(), is(4L));
+    assertThat(aclQueryCache.getHitCount(), is(14L));
+    assertTrue(aclQueryCache.getHitRate() > 0.75);
+  }
+
+  @Test
+  public void testGivenDifferentUsersWhenCallSpecificationQueriesThenUserIdIsBound() {
+    Specification<Person> spec = (root, query, cb) -> cb.isNotNull(root.get("id"));
+
+    Statistics statistics = em.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    try {
+      statistics.clear();
+      for (String username : Arrays.asList("user", "user3")) {
+        setAuthentication(username);
+        assertThat((long) personRepository.findAll(spec).size(), is(personRepository.count(spec)));
+      }
+      // The JPQL of the ACL queries doesn't depend on the user
+      assertThat(Arrays.stream(statistics.getQueries()).filter(query -> query.contains(":acl_userId")).count(),
+          is(2L));
+    } finally {
+      statistics.setStatisticsEnabled(false);
+    }
+  }
+
+  @Test
+  public void testGivenConcurrentUsersWhenCallPermissionEvaluatorThenDecisionsAreCorrect() throws Exception {
+    int threads = 8;
+    int iterations = 50;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      String username = "stress" + t;
+      // Every worker uses its own data in its own transaction what is rolled back at the end
+      results.add(executor.submit(() -> transactionTemplate.execute(status -> {
+        status.setRollbackOnly();
+        Person owner = personRepository.saveWithoutPermissionCheck(new Person(username, "s", "s"));
+        Person other = personRepository.saveWithoutPermissionCheck(new Person(username + "-other", "s", "s"));
+        Document own = documentRepository.saveWithoutPermissionCheck(new Document("own", "content", owner));
+        Document foreign = documentRepository.saveWithoutPermissionCheck(new Document("foreign", "content", other));
+        documentRepository.flush();
+        setAuthentication(username);
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        int decisions = 0;
+        try {
+          for (int i = 0; i < iterations; i++) {
+            assertTrue(aclPermissionEvaluator.hasPermission(authentication, own, AclConstants.READ_PERMISSION));
+            assertFalse(aclPermissionEvaluator.hasPermission(authentication, foreign, AclConstants.READ_PERMISSION));
+            assertTrue(aclPermissionEvaluator.hasPermission(authentication, own.getId(), Document.class.getName(),
+                AclConstants.READ_PERMISSION));
+            assertFalse(aclPermissionEvaluator.hasPermission(authentication, own.getId(),
+                "com.berrycloud.acl.sample.all.entity.Invalid", AclConstants.READ_PERMISSION));
+            decisions += 4;
+          }
+        } finally {
+          SecurityContextHolder.clearContext();
+        }
+        return decisions;
+      })));
+    }
+    try {
+      for (Future<Integer> result : results) {
+        assertThat(result.get(), is(4 * iterations));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testGivenLoadedEntitiesWhenEvaluateInMemoryThenDecisionsAreCorrect() {
+    Document doc1 = documentRepository.saveWithoutPermissionCheck(new Document("doc1", "content", user));
+    Document doc2 = documentRepository.saveWithoutPermissionCheck(new Document("doc2", "content", user3));
+
+    setAuthentication("user");
+    assertThat(aclInMemoryEvaluator.evaluate(doc1, AclConstants.READ_PERMISSION), is(Decision.GRANTED));
+    assertThat(aclInMemoryEvaluator.evaluate(doc2, AclConstants.READ_PERMISSION), is(Decision.DENIED));
+    assertThat(aclInMemoryEvaluator.evaluate(user, AclConstants.READ_PERMISSION), is(Decision.GRANTED));
+    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+    assertTrue(aclPermissionEvaluator.hasPermission(authentication, doc1, AclConstants.READ_PERMISSION));
+    assertFalse(aclPermissionEvaluator.hasPermission(authentication, doc2, AclConstants.READ_PERMISSION));
+
+    setAuthentication("admin");
+    assertThat(aclInMemoryEvaluator.evaluate(doc2, AclConstants.READ_PERMISSION), is(Decision.GRANTED));
+  }
+
+  @Test
+  public void testGivenModifiedOwnerWhenCheckUpdatePermissionThenStoredOwnerIsChecked() {
+    Document document = documentRepository.saveWithoutPermissionCheck(new Document("doc", "content", user3));
+    documentRepository.flush();
+
+    setAuthentication("user");
+    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+    assertFalse(aclPermissionEvaluator.hasPermission(authentication, document, AclConstants.UPDATE_PERMISSION));
+    document.setCreator(user);
+    assertThat(aclInMemoryEvaluator.evaluate(document, AclConstants.UPDATE_PERMISSION), is(Decision.GRANTED));
+    assertFalse(aclPermissionEvaluator.hasPermission(authentication, document, AclConstants.UPDATE_PERMISSION));
+    // The modification is not flushed by the check
+    documentRepository.clear();
+    assertThat(documentRepository.findByIdWithoutPermissionCheck(document.getId()).get().getCreator().getId(),
+        is(user3.getId()));
+  }
+
+  @Test
+  public void testGivenUninitializedAssociationWhenEvaluateInMemoryThenDecisionIsUnknown() {
+    Integer doc1Id = documentRepository.saveWithoutPermissionCheck(new Document("doc1", "content", user)).getId();
+    Integer doc2Id = documentRepository.saveWithoutPermissionCheck(new Document("doc2", "content", user3)).getId();
+    documentRepository.saveWithoutPermissionCheck(new Document("doc3", "content", user2));
+    documentRepository.flush();
+    documentRepository.clear();
+    Document doc1 = documentRepository.findByIdWithoutPermissionCheck(doc1Id).get();
+    Document doc2 = documentRepository.findByIdWithoutPermissionCheck(doc2Id).get();
+    PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+
+    setAuthentication("user");
+    // The owner is compared by its id, but the permission links of doc2 are not loaded
+    assertThat(aclInMemoryEvaluator.evaluate(doc1, AclConstants.READ_PERMISSION), is(Decision.GRANTED));
+    assertThat(aclInMemoryEvaluator.evaluate(doc2, AclConstants.READ_PERMISSION), is(Decision.UNKNOWN));
+    assertFalse(util.isLoaded(doc2.getCreator()));
+    assertFalse(util.isLoaded(doc2, "personOwner"));
+
+    // The permission evaluator falls back to the database check
+    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+    assertFalse(aclPermissionEvaluator.hasPermission(authentication, doc2, AclConstants.READ_PERMISSION));
+  }
+
+  @Test
+  public void testGivenLargeCollectionWhenPartitionInMemoryThenEntitiesAreGroupedByDecision() {
+    List<Document> documents = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      documents.add(new Document("doc" + i, "content", i % 2 == 0 ? user : user3));
+    }
+    setAuthentication("user");
+    Map<Decision, List<Document>> result = aclInMemoryEvaluator.partition(documents, AclConstants.READ_PERMISSION);
+    assertThat(result.get(Decision.GRANTED).size(), is(1000));
+    assertThat(result.get(Decision.DENIED).size(), is(1000));
+    assertTrue(result.get(Decision.UNKNOWN).isEmpty());
+    // The order of the entities is kept
+    assertThat(result.get(Decision.GRANTED).get(1).getName(), is("doc2"));
+    assertThat(result.get(Decision.DENIED).get(1).getName(), is("doc3"));
+  }
+
+  @Test
+  public void testGivenPostFilterOnServiceWhenFilterEntitiesThenPermissionsAreCheckedInOneQuery() {
+    List<Person> persons = Arrays.asList(admin, user, user2, user3);
+    setAuthentication("user");
+    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+    List<Person> expected = new ArrayList<>();
+    for (Person person : persons) {
+      if (aclPermissionEvaluator.hasPermission(authentication, person.getId(), Person.class.getName(),
+          AclConstants.UPDATE_PERMISSION)) {
+        expected.add(person);
+      }
+    }
+    assertThat(expected.size(), is(1));
+    personRepository.flush();
+
+    Statistics statistics = em.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    try {
+      statistics.clear();
+      assertThat(personService.filterPersons(persons, AclConstants.UPDATE_PERMISSION), is(expected));
+      assertThat(statistics.getPrepareStatementCount(), is(1L));
+    } finally {
+      statistics.setStatisticsEnabled(false);
+    }
+  }
+
+  @Test
+  public void testGivenPostFilterOnRepositoryWhenCallFinderThenFilterIsPushedDown() {
+    Document doc1 = documentRepository.saveWithoutPermissionCheck(new Document("doc1", "shared", user));
+    documentRepository.saveWithoutPermissionCheck(new Document("doc2", "shared", user3));
+    documentRepository.flush();
+    setAuthentication("user");
+
+    Statistics statistics = em.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    try {
+      // The READ filter of findAll() is applied by its own query
+      statistics.clear();
+      assertThat(documentRepository.findAll(), is(Arrays.asList(doc1)));
+      assertThat(statistics.getPrepareStatementCount(), is(1L));
+
+      // The UPDATE filter of a query method is checked by one batched query
+      statistics.clear();
+      assertThat(documentRepository.findByContent("shared"), is(Arrays.asList(doc1)));
+      assertThat(statistics.getPrepareStatementCount(), is(2L));
+    } finally {
+      statistics.setStatisticsEnabled(false);
+    }
+  }
+
+  @Test
+  public void testGivenRepeatedChecksWhenCallRepositoryThenDecisionsAreCachedInTransaction() {
+    aclDecisionCache.setEnabled(true);
+    Document doc1 = documentRepository.saveWithoutPermissionCheck(new Document("doc1", "content", user));
+    Document doc2 = documentRepository.saveWithoutPermissionCheck(new Document("doc2", "content", user3));
+    documentRepository.flush();
+    setAuthentication("user");
+    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+    aclDecisionCache.resetStatistics();
+
+    Statistics statistics = em.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    try {
+      statistics.clear();
+      for (int i = 0; i < 3; i++) {
+        assertTrue(documentRepository.findById(doc1.getId(), AclConstants.UPDATE_PERMISSION).isPresent());
+        assertTrue(documentRepository.isPermitted(doc1.getId(), AclConstants.UPDATE_PERMISSION));
+        assertFalse(documentRepository.findById(doc2.getId()).isPresent());
+        assertFalse(aclPermissionEvaluator.hasPermission(authentication, doc2.getId(), Document.class.getName(),
+            AclConstants.UPDATE_PERMISSION));
+      }
+      // The save uses the cached decision of its update check too
+      documentRepository.save(doc1);
+      // One query per (entity, permission) decision
+      assertThat(statistics.getPrepareStatementCount(), is(3L));
+      assertThat(aclDecisionCache.getMissCount(), is(3L));
+      assertThat(aclDecisionCache.getHitCount(), is(10L));
+    } finally {
+      statistics.setStatisticsEnabled(false);
+    }
+  }
+
+  @Test
+  public void testGivenCachedDecisionWhenAclRelevantEntityIsWrittenThenDecisionIsInvalidated() {
+    aclDecisionCache.setEnabled(true);
+    Document doc = documentRepository.saveWithoutPermissionCheck(new Document("doc", "content", user3));
+    setAuthentication("user");
+    assertFalse(documentRepository.existsById(doc.getId()));
+
+    // The new owner is not flushed yet, but the save invalidates the cached decision
+    doc.setCreator(user);
+    documentRepository.saveWithoutPermissionCheck(doc);
+    assertTrue(documentRepository.existsById(doc.getId()));
+
+    // The changes of the managed entities are detected when they are flushed
+    doc.setCreator(user3);
+    documentRepository.flush();
+    assertFalse(documentRepository.existsById(doc.getId()));
+  }
+
+  @Test
+  public void testGivenCachedDecisionWhenOwnerIsChangedWithoutFlushThenPermissionIsQueried() {
+    aclDecisionCache.setEnabled(true);
+    Document doc = documentRepository.saveWithoutPermissionCheck(new Document("doc", "content", user));
+    documentRepository.flush();
+    setAuthentication("user");
+    assertTrue(documentRepository.isPermitted(doc.getId(), AclConstants.UPDATE_PERMISSION));
+    assertTrue(documentRepository.findById(doc.getId(), AclConstants.UPDATE_PERMISSION).isPresent());
+
+    // The change is not flushed yet, so only a real query can see it
+    doc.setCreator(user3);
+    assertFalse(documentRepository.isPermitted(doc.getId(), AclConstants.UPDATE_PERMISSION));
+    doc.setCreator(user);
+    documentRepository.flush();
+    assertTrue(documentRepository.findById(doc.getId(), AclConstants.UPDATE_PERMISSION).isPresent());
+    doc.setCreator(user3);
+    assertFalse(documentRepository.findById(doc.getId(), AclConstants.UPDATE_PERMISSION).isPresent());
+  }
+
+  @Test
+  public void testGivenCachedDecisionWhenCallDerivedBulkDeleteThenDecisionIsInvalidated() {
+    aclDecisionCache.setEnabled(true);
+    Person person = personRepository.saveWithoutPermissionCheck(new Person("delme", "d", "deleted", user));
+    setAuthentication("user");
+    assertTrue(personRepository.existsById(person.getId()));
+
+    assertThat(personRepository.deleteByLastName("deleted"), is(1L));
+    assertFalse(personRepository.existsById(person.getId()));
+  }
+
+  @Test
+  public void testGivenCachedDecisionWhenCallModifyingQueryThenDecisionIsInvalidated() {
+    aclDecisionCache.setEnabled(true);
+    Document doc = documentRepository.saveWithoutPermissionCheck(new Document("doc", "content", user));
+    documentRepository.flush();
+    setAuthentication("user");
+    assertTrue(documentRepository.existsById(doc.getId()));
+
+    assertThat(documentRepository.updateCreatorByName("doc", user3), is(1));
+    assertFalse(documentRepository.existsById(doc.getId()));
+  }
+
+  @Test
+  public void testGivenSharedDecisionCacheWhenAnOtherEntityIsWrittenThenDecisionIsServedWithoutQuery() {
+    aclSharedDecisionCache.setEnabled(true);
+    Document doc1 = documentRepository.saveWithoutPermissionCheck(new Document("doc1", "content", user));
+    Document doc2 = documentRepository.saveWithoutPermissionCheck(new Document("doc2", "content", user3));
+    documentRepository.flush();
+    setAuthentication("user");
+    assertTrue(documentRepository.existsById(doc1.getId()));
+
+    Statistics statistics = em.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    try {
+      // The decision of the transaction is dropped, but the shared one is still available
+      aclDecisionCache.invalidate();
+      statistics.clear();
+      assertTrue(documentRepository.existsById(doc1.getId()));
+      assertThat(statistics.getPrepareStatementCount(), is(0L));
+
+      // The owner of an other document is changed
+      doc2.setCreator(user);
+      documentRepository.flush();
+      aclDecisionCache.invalidate();
+      statistics.clear();
+      assertTrue(documentRepository.existsById(doc1.getId()));
+      assertThat(statistics.getPrepareStatementCount(), is(0L));
+
+      // The owner of the document is changed
+      doc1.setCreator(user3);
+      documentRepository.flush();
+      aclDecisionCache.invalidate();
+      statistics.clear();
+      assertFalse(documentRepository.existsById(doc1.getId()));
+      assertThat(statistics.getPrepareStatementCount(), is(1L));
+    } finally {
+      statistics.setStatisticsEnabled(false);
+    }
+  }
+
+  @Test
+  public void testGivenSharedDecisionCacheWhenParentIsWrittenThenDecisionOfDescendantIsEvicted() {
+    aclSharedDecisionCache.setEnabled(true);
+    Document doc = documentRepository.saveWithoutPermissionCheck(new Document("doc", "content", user));
+    Attachment attachment = attachmentRepository
+        .saveWithoutPermissionCheck(new Attachment("attachment", "content", user, doc));
+    attachmentRepository.flush();
+    setAuthentication("user");
+    assertTrue(attachmentRepository.existsById(attachment.getId()));
+    int size = aclSharedDecisionCache.size();
+
+    doc.setCreator(user3);
+    documentRepository.flush();
+    assertThat(aclSharedDecisionCache.size(), is(size - 1));
+  }
+
+  @Test
+  public void testGivenSharedDecisionCacheWhenPermissionLinkIsCreatedThenDecisionOfTargetIsEvicted() {
+    aclSharedDecisionCache.setEnabled(true);
+    setAuthentication("user2");
+    assertFalse(personRepository.existsById(user.getId()));
+
+    personHasPersonRepository.save(new PersonHasPersonPermission(user2, user, "read"));
+    personHasPersonRepository.flush();
+    aclDecisionCache.invalidate();
+    assertTrue(personRepository.existsById(user.getId()));
+  }
+
+  @Test
+  public void testGivenSharedDecisionCacheWhenPermissionLinksAreDeletedInBatchThenDecisionOfTargetIsEvicted() {
+    aclSharedDecisionCache.setEnabled(true);
+    personHasPersonRepository.saveWithoutPermissionCheck(new PersonHasPersonPermission(user2, user, "read"));
+    personHasPersonRepository.flush();
+    setAuthentication("user2");
+    assertTrue(personRepository.existsById(user.getId()));
+
+    personHasPersonRepository.deleteAllInBatch();
+    assertFalse(personRepository.existsById(user.getId()));
+  }
+
+  @Test
+  public void testGivenSharedDecisionCacheWhenUsersAreUpdatedInBulkThenDecisionsOfAllUsersAreEvicted() {
+    aclSharedDecisionCache.setEnabled(true);
+    Document doc = documentRepository.saveWithoutPermissionCheck(new Document("doc", "content", user));
+    documentRepository.flush();
+    setAuthentication("user");
+    assertTrue(documentRepository.existsById(doc.getId()));
+    setAuthentication("user3");
+    assertFalse(documentRepository.existsById(doc.getId()));
+    assertThat(aclSharedDecisionCache.size(), is(2));
+
+    // The bulk update could change the roles of any user
+    setAuthentication("admin");
+    personRepository.update(user2.getId(), Collections.singletonMap("firstName", "renamed"));
+    assertThat(aclSharedDecisionCache.size(), is(0));
+  }
+
+  @Test
+  public void testGivenSharedDecisionCacheWhenDecisionIsEvictedWhileEvaluatedThenItIsNotCached() {
+    aclSharedDecisionCache.setEnabled(true);
+    Document doc = documentRepository.saveWithoutPermissionCheck(new Document("doc", "content", user));
+    setAuthentication("user");
+
+    long generation = aclDecisionCache.getGeneration();
+    // A concurrent transaction is committed after the decision was queried
+    aclSharedDecisionCache.evictType(Document.class);
+    aclDecisionCache.put(Document.class, doc.getId(), AclConstants.READ_PERMISSION, true, generation);
+    assertThat(aclSharedDecisionCache.size(), is(0));
+
+    aclDecisionCache.put(Document.class, doc.getId(), AclConstants.READ_PERMISSION, true,
+        aclDecisionCache.getGeneration());
+    assertThat(aclSharedDecisionCache.size(), is(1));
+  }
+
+  @Test
+  public void testGivenSharedDecisionCacheWhenDecisionsExpireOrExceedMaxSizeThenTheyAreEvicted() {
+    aclSharedDecisionCache.setEnabled(true);
+    List<Integer> ids = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      ids.add(documentRepository.saveWithoutPermissionCheck(new Document("doc" + i, "content", user)).getId());
+    }
+    documentRepository.flush();
+    setAuthentication("user");
+
+    aclSharedDecisionCache.setMaxSize(3);
+    for (Integer id : ids) {
+      assertTrue(documentRepository.existsById(id));
+    }
+    assertTrue(aclSharedDecisionCache.size() <= 3);
+
+    aclSharedDecisionCache.clear();
+    aclSharedDecisionCache.setTimeToLive(Duration.ZERO);
+    assertTrue(documentRepository.existsById(ids.get(0)));
+    aclDecisionCache.invalidate();
+    aclSharedDecisionCache.resetStatistics();
+    assertTrue(documentRepository.existsById(ids.get(0)));
+    assertThat(aclSharedDecisionCache.getHitCount(), is(0L));
+    assertThat(aclSharedDecisionCache.getMissCount(), is(1L));
+    assertThat(aclSharedDecisionCache.size(), is(1));
+  }
+
+  @Test
+  public void testGivenSharedResultCacheWhenUsersWithSameRolesQueryGrantedTypeThenResultIsShared() {
+    aclSharedResultCache.setEnabled(true);
+    user.getAclRoles().add(manipulatorRole);
+    personRepository.saveWithoutPermissionCheck(user);
+    user2.getAclRoles().add(manipulatorRole);
+    personRepository.saveWithoutPermissionCheck(user2);
+    attachmentRepository.saveWithoutPermissionCheck(new Attachment("a1", "content", null, null));
+    attachmentRepository.saveWithoutPermissionCheck(new Attachment("a2", "content", null, null));
+    attachmentRepository.flush();
+
+    setAuthentication("user");
+    aclSharedResultCache.resetStatistics();
+    List<Attachment> attachments = attachmentRepository.findAll(PageRequest.of(0, 10)).getContent();
+    assertThat(attachments.size(), is(2));
+    assertThat(aclSharedResultCache.getMissCount(), is(1L));
+
+    setAuthentication("user2");
+    Statistics statistics = em.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+    statistics.setStatisticsEnabled(true);
+    try {
+      statistics.clear();
+      Page<Attachment> page = attachmentRepository.findAll(PageRequest.of(0, 10));
+      assertThat(page.getContent(), is(attachments));
+      assertThat(page.getTotalElements(), is(2L));
+      assertThat(aclSharedResultCache.getHitCount(), is(1L));
+      // The entities are already in the persistence context
+      assertThat(statistics.getPrepareStatementCount(), is(0L));
+    } finally {
+      statistics.setStatisticsEnabled(false);
+    }
+  }
+
+  @Test
+  public void testGivenSharedResultCacheWhenRoleOnlyUsersQueryFilteredTypeThenResultIsShared() {
+    aclSharedResultCache.setEnabled(true);
+    documentRepository.saveWithoutPermissionCheck(new Document("doc", "content", user));
+    documentRepository.flush();
+
+    setAuthentication("user");
+    assertFalse(aclSharedResultCache.getFingerprint().isRoleOnly());
+    assertThat(documentRepository.findAll().size(), is(1));
+    assertThat(aclSharedResultCache.size(), is(0));
+
+    setAuthentication("user3");
+    assertTrue(aclSharedResultCache.getFingerprint().isRoleOnly());
+    aclSharedResultCache.resetStatistics();
+    assertTrue(documentRepository.findAll().isEmpty());
+    assertThat(aclSharedResultCache.getMissCount(), is(1L));
+
+    setAuthentication("user2");
+    assertTrue(documentRepository.findAll().isEmpty());
+    assertThat(aclSharedResultCache.getHitCount(), is(1L));
+
+    // user2 becomes the owner of a document, so its results are not shared any more
+    documentRepository.saveWithoutPermissionCheck(new Document("doc2", "content", user2));
+    documentRepository.flush();
+    assertFalse(aclSharedResultCache.getFingerprint().isRoleOnly());
+    assertThat(documentRepository.findAll().size(), is(1));
+  }
+
+  @Test
+  public void testGivenSharedResultCacheWhenEntityIsCreatedThenResultIsEvicted() {
+    aclSharedResultCache.setEnabled(true);
+    user.getAclRoles().add(manipulatorRole);
+    personRepository.saveWithoutPermissionCheck(user);
+    attachmentRepository.saveWithoutPermissionCheck(new Attachment("a1", "content", null, null));
+    attachmentRepository.flush();
+
+    setAuthentication("user");
+    assertThat(attachmentRepository.findAll(PageRequest.of(0, 10)).getTotalElements(), is(1L));
+    assertThat(aclSharedResultCache.size(), is(1));
+
+    attachmentRepository.saveWithoutPermissionCheck(new Attachment("a2", "content", null, null));
+    attachmentRepository.flush();
+    assertThat(aclSharedResultCache.size(), is(0));
+    assertThat(attachmentRepository.findAll(PageRequest.of(0, 10)).getTotalElements(), is(2L));
+  }
+
+  @Test
+  public void testGivenSharedResultCacheWhenEntityIsDeletedWithoutFlushThenResultIsQueried() {
+    aclSharedResultCache.setEnabled(true);
+    user.getAclRoles().add(manipulatorRole);
+    personRepository.saveWithoutPermissionCheck(user);
+    Attachment attachment = attachmentRepository
+        .saveWithoutPermissionCheck(new Attachment("a1", "content", null, null));
+    attachmentRepository.flush();
+
+    setAuthentication("user");
+    assertThat(attachmentRepository.findAll(PageRequest.of(0, 10)).getTotalElements(), is(1L));
+    assertThat(aclSharedResultCache.size(), is(1));
+
+    // The pending delete is not flushed yet, so only a real query can see it
+    em.remove(attachment);
+    aclSharedResultCache.resetStatistics();
+    assertThat(attachmentRepository.findAll(PageRequest.of(0, 10)).getTotalElements(), is(0L));
+    assertThat(aclSharedResultCache.getHitCount(), is(0L));
+  }
+
+  @Test
+  public void testGivenSharedResultCacheWhenEvictedDuringQueryThenResultIsNotCached() {
+    aclSharedResultCache.setEnabled(true);
+    user.getAclRoles().add(manipulatorRole);
+    personRepository.saveWithoutPermissionCheck(user);
+    attachmentRepository.flush();
+
+    setAuthentication("user");
+    AclPrincipalFingerprint fingerprint = aclSharedResultCache.getFingerprint();
+    long generation = aclSharedResultCache.getGeneration(Attachment.class);
+    attachmentRepository.saveWithoutPermissionCheck(new Attachment("a1", "content", null, null));
+    attachmentRepository.flush();
+    aclSharedResultCache.put(fingerprint, Attachment.class, null, Sort.unsorted(), Collections.emptyList(), 0,
+        generation);
+    assertThat(aclSharedResultCache.size(), is(0));
+  }
+
+  @Test
+  public void testGivenSharedResultCacheWhenUnrelatedTypeIsWrittenDuringQueryThenResultIsCached() {
+    aclSharedResultCache.setEnabled(true);
+    user.getAclRoles().add(manipulatorRole);
+    personRepository.saveWithoutPermissionCheck(user);
+    attachmentRepository.flush();
+
+    setAuthentication("user");
+    AclPrincipalFingerprint fingerprint = aclSharedResultCache.getFingerprint();
+    long generation = aclSharedResultCache.getGeneration(Attachment.class);
+    long themeGeneration = aclSharedResultCache.getGeneration(Theme.class);
+    // Attachments cannot reach themes, so their results are not affected
+    themeRepository.saveAndFlush(new Theme("theme", "content"));
+    assertThat(aclSharedResultCache.getGeneration(Theme.class), greaterThan(themeGeneration));
+    assertThat(aclSharedResultCache.getGeneration(Attachment.class), is(generation));
+    aclSharedResultCache.put(fingerprint, Attachment.class, null, Sort.unsorted(), Collections.emptyList(), 0,
+        generation);
+    assertThat(aclSharedResultCache.size(), is(1));
+  }
+
+  @Test
+  public void testGivenSharedResultCacheWhenProfilesExpireOrExceedLimitThenTheyAreQueriedAgain() {
+    aclSharedResultCache.setEnabled(true);
+    aclSharedResultCache.setMaxProfiles(1);
+
+    setAuthentication("user");
+    aclSharedResultCache.getFingerprint();
+    setAuthentication("user2");
+    aclSharedResultCache.getFingerprint();
+    assertThat(aclSharedResultCache.getProfileCount(), is(1));
+
+    aclSharedResultCache.resetStatistics();
+    aclSharedResultCache.getFingerprint();
+    assertThat(aclSharedResultCache.getProfileQueryCount(), is(0L));
+
+    aclSharedResultCache.setTimeToLive(Duration.ZERO);
+    aclSharedResultCache.clear();
+    aclSharedResultCache.getFingerprint();
+    aclSharedResultCache.getFingerprint();
+    assertThat(aclSharedResultCache.getProfileQueryCount(), is(2L));
+  }
+
+  @Test(expected = InvalidJpaQueryMethodException.class)
+  public void testGivenDeclaredQueryWithoutAliasWhenRepositoryIsCreatedThenCreationFails() {
+    new AclJpaRepositoryFactory(em, aclSpecification).getRepository(UnaliasedQueryRepository.class);
+  }
+
+  public interface UnaliasedQueryRepository extends AclJpaRepository<Person, Integer> {
+
+    @Modifying
+    @Query("update Person set firstName = :firstName")
+    int updateFirstNames(@Param("firstName") String firstName);
+  }
+
+  @Test(expected = InvalidJpaQueryMethodException.class)
+  public void testGivenNativeUnionQueryWhenRepositoryIsCreatedThenCreationFails() {
+    new AclJpaRepositoryFactory(em, aclSpecification).getRepository(UnionQueryRepository.class);
+  }
+
+  public interface UnionQueryRepository extends AclJpaRepository<Person, Integer> {
+
+    @AclTableAlias("p")
+    @Query(value = "select p.* from person p where p.last_name = :name union select o.* from person o",
+        nativeQuery = true)
+    List<Person> selectNativeByLastNameOrAll(@Param("name") String name);
+  }
 }
@@ -0,0 +1,178 @@
+package com.berrycloud.acl;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import javax.persistence.EntityManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.berrycloud.acl.domain.AclInvalidationEvent;
+import com.berrycloud.acl.domain.AclInvalidationEvent.Kind;
+import com.berrycloud.acl.domain.SimpleAclRole;
+import com.berrycloud.acl.sample.all.AclAppAll;
+import com.berrycloud.acl.sample.all.entity.Document;
+import com.berrycloud.acl.sample.all.entity.Person;
+import com.berrycloud.acl.sample.all.repository.DocumentRepository;
+import com.berrycloud.acl.sample.all.repository.PersonRepository;
+import com.berrycloud.acl.sample.all.repository.RoleRepository;
+import com.berrycloud.acl.security.AclUserDetails;
+import com.berrycloud.acl.security.AclUserDetailsService;
+
+/**
+ * Runs two nodes (application contexts) sharing one H2 database
+ */
+public class AclInvalidationBusIntegrationTest {
+
+  private ConfigurableApplicationContext node1;
+  private ConfigurableApplicationContext node2;
+
+  @Before
+  public void startNodes() {
+    String url = "jdbc:h2:mem:acl-bus-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+    node1 = startNode(url);
+    node2 = startNode(url);
+  }
+
+  @After
+  public void stopNodes() {
+    SecurityContextHolder.clearContext();
+    node2.close();
+    node1.close();
+  }
+
+  private static ConfigurableApplicationContext startNode(String url) {
+    return new SpringApplicationBuilder(AclAppAll.class).web(WebApplicationType.NONE)
+        .properties("spring.datasource.url=" + url, "spring.jpa.hibernate.ddl-auto=update",
+            "spring.jmx.enabled=false", "spring.data.jpa.acl.decision-cache.shared.enabled=true",
+            "spring.data.jpa.acl.invalidation-bus.enabled=true",
+            "spring.data.jpa.acl.invalidation-bus.poll-interval=0s", "spring.data.jpa.acl.id-chunk-size=1")
+        .run();
+  }
+
+  private static <T> T inTransaction(ConfigurableApplicationContext node, Supplier<T> action) {
+    return new TransactionTemplate(node.getBean(PlatformTransactionManager.class))
+        .execute(status -> action.get());
+  }
+
+  private static void setAuthentication(ConfigurableApplicationContext node, String username) {
+    AclUserDetails userDetails = inTransaction(node,
+        () -> node.getBean(AclUserDetailsService.class).loadUserByUsername(username));
+    SecurityContextHolder.getContext().setAuthentication(
+        new UsernamePasswordAuthenticationToken(userDetails, "", userDetails.getAuthorities()));
+  }
+
+  private static boolean existsDocument(ConfigurableApplicationContext node, Integer id) {
+    return inTransaction(node, () -> node.getBean(DocumentRepository.class).existsById(id));
+  }
+
+  @Test
+  public void testGivenCachedDecisionOnOtherNodeWhenOwnerIsChangedThenDecisionIsEvictedByPolling() {
+    Integer docId = inTransaction(node1, () -> {
+      SimpleAclRole userRole = node1.getBean(RoleRepository.class)
+          .saveWithoutPermissionCheck(new SimpleAclRole(AclConstants.ROLE_USER));
+      PersonRepository personRepository = node1.getBean(PersonRepository.class);
+      Person user = new Person("user", "u", "u");
+      user.getAclRoles().add(userRole);
+      personRepository.saveWithoutPermissionCheck(user);
+      personRepository.saveWithoutPermissionCheck(new Person("user3", "u3", "u3"));
+      return node1.getBean(DocumentRepository.class)
+          .saveWithoutPermissionCheck(new Document("doc", "content", user)).getId();
+    });
+
+    setAuthentication(node2, "user");
+    AclSharedDecisionCache node2Cache = node2.getBean(AclSharedDecisionCache.class);
+    assertTrue(existsDocument(node2, docId));
+    node2Cache.resetStatistics();
+    assertTrue(existsDocument(node2, docId));
+    assertThat(node2Cache.getHitCount(), is(1L));
+
+    inTransaction(node1, () -> {
+      EntityManager em = node1.getBean(EntityManager.class);
+      Person user3 = em.createQuery("select p from Person p where p.username = 'user3'", Person.class)
+          .getSingleResult();
+      em.find(Document.class, docId).setCreator(user3);
+      return null;
+    });
+
+    // The decision of the other node is stale until the events are polled
+    assertTrue(existsDocument(node2, docId));
+    assertThat(node1.getBean(AclInvalidationBus.class).poll(), is(0));
+    assertTrue(node2.getBean(AclInvalidationBus.class).poll() > 0);
+    assertFalse(existsDocument(node2, docId));
+  }
+
+  @Test
+  public void testGivenEventsCommittedOutOfOrderWhenPollThenMissingEventIsPolledAgain() throws Exception {
+    AclInvalidationBus bus1 = node1.getBean(AclInvalidationBus.class);
+    AclInvalidationBus bus2 = node2.getBean(AclInvalidationBus.class);
+    PlatformTransactionManager transactionManager = node1.getBean(PlatformTransactionManager.class);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      // The first event is inserted, but its transaction is committed later
+      TransactionStatus status = transactionManager.getTransaction(new DefaultTransactionDefinition());
+      bus1.publish(Collections.singletonList(new AclInvalidationEvent(Kind.TYPE, Document.class, null)));
+
+      executor.submit(() -> inTransaction(node1, () -> {
+        bus1.publish(Collections.singletonList(new AclInvalidationEvent(Kind.TYPE, Person.class, null)));
+        return null;
+      })).get();
+      assertThat(executor.submit(bus2::poll).get(), is(1));
+
+      transactionManager.commit(status);
+      assertThat(executor.submit(bus2::poll).get(), is(1));
+      assertThat(executor.submit(bus2::poll).get(), is(0));
+      assertThat(bus1.getPublishedCount(), is(2L));
+      assertThat(bus2.getAppliedCount(), is(2L));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testGivenMoreMissingEventsThanIdChunkSizeWhenPollThenAllOfThemArePolledAgain() throws Exception {
+    AclInvalidationBus bus1 = node1.getBean(AclInvalidationBus.class);
+    AclInvalidationBus bus2 = node2.getBean(AclInvalidationBus.class);
+    PlatformTransactionManager transactionManager = node1.getBean(PlatformTransactionManager.class);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      // Two events are inserted, but their transaction is committed later
+      TransactionStatus status = transactionManager.getTransaction(new DefaultTransactionDefinition());
+      bus1.publish(Arrays.asList(new AclInvalidationEvent(Kind.TYPE, Document.class, null),
+          new AclInvalidationEvent(Kind.TYPE, Person.class, null)));
+
+      executor.submit(() -> inTransaction(node1, () -> {
+        bus1.publish(Collections.singletonList(new AclInvalidationEvent(Kind.TYPE, Person.class, null)));
+        return null;
+      })).get();
+      assertThat(executor.submit(bus2::poll).get(), is(1));
+
+      // The two missing ids are polled in two chunks
+      transactionManager.commit(status);
+      assertThat(executor.submit(bus2::poll).get(), is(2));
+      assertThat(executor.submit(bus2::poll).get(), is(0));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,222 @@
+package com.berrycloud.acl;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.berrycloud.acl.AclSpecification.Outcome;
+import com.berrycloud.acl.batch.AclParallelScanner;
+import com.berrycloud.acl.domain.SimpleAclRole;
+import com.berrycloud.acl.sample.all.AclAppAll;
+import com.berrycloud.acl.sample.all.entity.Document;
+import com.berrycloud.acl.sample.all.entity.Person;
+import com.berrycloud.acl.sample.all.repository.DocumentRepository;
+import com.berrycloud.acl.sample.all.repository.PersonRepository;
+import com.berrycloud.acl.sample.all.repository.RoleRepository;
+import com.berrycloud.acl.security.AclUserDetails;
+import com.berrycloud.acl.security.AclUserDetailsService;
+
+/**
+ * The workers of the scanner (and the chunks of the chunked deletes) run in their own transactions, so the test data is
+ * committed into a separate database
+ */
+@SpringBootTest(classes = AclAppAll.class, properties = {
+    "spring.datasource.url=jdbc:h2:mem:acl-scan;DB_CLOSE_DELAY=-1", "spring.jmx.enabled=false" })
+@RunWith(SpringRunner.class)
+public class AclParallelScannerIntegrationTest {
+
+  private static final int USER_DOCUMENTS = 10;
+
+  private static List<Integer> userDocumentIds;
+
+  @Autowired
+  private AclParallelScanner aclParallelScanner;
+
+  @Autowired
+  private AclSpecification aclSpecification;
+
+  @Autowired
+  private AclUserDetailsService<?> aclUserDetailsService;
+
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+
+  @Autowired
+  private PersonRepository personRepository;
+
+  @Autowired
+  private DocumentRepository documentRepository;
+
+  @Autowired
+  private RoleRepository roleRepository;
+
+  @Before
+  public void initTests() {
+    if (userDocumentIds == null) {
+      userDocumentIds = new TransactionTemplate(transactionManager).execute(status -> createDocuments());
+    }
+    AclUserDetails userDetails = new TransactionTemplate(transactionManager)
+        .execute(status -> aclUserDetailsService.loadUserByUsername("user"));
+    SecurityContextHolder.getContext().setAuthentication(
+        new UsernamePasswordAuthenticationToken(userDetails, "", userDetails.getAuthorities()));
+  }
+
+  @After
+  public void clearAuthentication() {
+    SecurityContextHolder.clearContext();
+  }
+
+  private List<Integer> createDocuments() {
+    SimpleAclRole userRole = roleRepository.saveWithoutPermissionCheck(new SimpleAclRole(AclConstants.ROLE_USER));
+    Person user = new Person("user", "u", "u");
+    user.getAclRoles().add(userRole);
+    personRepository.saveWithoutPermissionCheck(user);
+    Person other = new Person("other", "o", "o");
+    other.getAclRoles().add(userRole);
+    personRepository.saveWithoutPermissionCheck(other);
+
+    List<Integer> ids = new ArrayList<>();
+    for (int i = 0; i < USER_DOCUMENTS; i++) {
+      ids.add(documentRepository.saveWithoutPermissionCheck(new Document("doc" + i, "content", user)).getId());
+      documentRepository.saveWithoutPermissionCheck(new Document("other" + i, "content", other));
+    }
+    return ids;
+  }
+
+  @Test
+  public void testGivenFilteredUserWhenScanThenWorkersProcessOwnEntitiesWithSameSecurityContext() {
+    assertThat(aclSpecification.getOutcome(Document.class, AclConstants.READ_PERMISSION), is(Outcome.FILTERED));
+    Thread caller = Thread.currentThread();
+    Set<Integer> processedIds = Collections.synchronizedSet(new HashSet<>());
+    Set<String> usernames = Collections.synchronizedSet(new HashSet<>());
+    AtomicInteger callerThreadCalls = new AtomicInteger();
+
+    long count = aclParallelScanner.scan(documentRepository, null, AclConstants.READ_PERMISSION, 3, 3, documents -> {
+      if (Thread.currentThread() == caller) {
+        callerThreadCalls.incrementAndGet();
+      }
+      usernames.add(SecurityContextHolder.getContext().getAuthentication().getName());
+      documents.forEach(document -> processedIds.add(document.getId()));
+    });
+
+    assertThat(count, is((long) USER_DOCUMENTS));
+    assertThat(processedIds, is(new HashSet<>(userDocumentIds)));
+    assertThat(usernames, is(Collections.singleton("user")));
+    assertThat(callerThreadCalls.get(), is(0));
+  }
+
+  @Test
+  public void testGivenPartitionSizeWhenScanThenEveryPartitionIsProcessedInItsOwnTransaction() {
+    List<Integer> partitionSizes = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger commits = new AtomicInteger();
+
+    long count = aclParallelScanner.scan(documentRepository, null, AclConstants.READ_PERMISSION, 2, 3, documents -> {
+      assertTrue(TransactionSynchronizationManager.isActualTransactionActive());
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+        @Override
+        public void afterCommit() {
+          commits.incrementAndGet();
+        }
+      });
+      partitionSizes.add(documents.size());
+    });
+
+    assertThat(count, is((long) USER_DOCUMENTS));
+    // 10 entities in partitions of 3: 3 + 3 + 3 + 1
+    assertThat(partitionSizes.size(), is(4));
+    assertThat(partitionSizes.stream().mapToInt(Integer::intValue).sum(), is(USER_DOCUMENTS));
+    assertThat(commits.get(), is(4));
+    assertFalse(TransactionSynchronizationManager.isActualTransactionActive());
+  }
+
+  @Test
+  public void testGivenFailingProcessorWhenScanThenFailureIsPropagatedAndNoMorePartitionsAreRead() {
+    AtomicInteger idQueries = new AtomicInteger();
+    DocumentRepository countingRepository = (DocumentRepository) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class<?>[] { DocumentRepository.class }, (proxy, method, args) -> {
+          if (method.getName().equals("findIdsAfter")) {
+            idQueries.incrementAndGet();
+          }
+          try {
+            return method.invoke(documentRepository, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        });
+    IllegalStateException failure = new IllegalStateException("processor failed");
+    AtomicInteger calls = new AtomicInteger();
+
+    try {
+      aclParallelScanner.scan(countingRepository, null, AclConstants.READ_PERMISSION, 1, 1, documents -> {
+        calls.incrementAndGet();
+        throw failure;
+      });
+      fail("The failure of the processor was not propagated");
+    } catch (IllegalStateException e) {
+      assertThat(e, is(sameInstance(failure)));
+    }
+
+    // Only the first partition is processed, the queued ones are dropped
+    assertThat(calls.get(), is(1));
+    // The partitions holding a slot (2 * parallelism) and the one waiting for a free slot at most
+    assertThat(idQueries.get(), is(lessThanOrEqualTo(3)));
+  }
+
+  @Test
+  public void testGivenNoOuterTransactionWhenDeleteAllInChunksThenEveryChunkIsCommittedInItsOwnTransaction() {
+    TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+    Integer userId = (Integer) ((AclUserDetails) SecurityContextHolder.getContext().getAuthentication()
+        .getPrincipal()).getUserId();
+    List<Integer> ids = transactionTemplate.execute(status -> {
+      Person user = personRepository.findByIdWithoutPermissionCheck(userId).get();
+      List<Integer> chunkIds = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+        chunkIds.add(documentRepository.saveWithoutPermissionCheck(new Document("chunk" + i, "content", user)).getId());
+      }
+      return chunkIds;
+    });
+    Specification<Document> spec = (root, query, cb) -> cb.like(root.get("name"), "chunk%");
+    List<Long> remaining = new ArrayList<>();
+
+    assertFalse(TransactionSynchronizationManager.isActualTransactionActive());
+    long deleted = documentRepository.deleteAll(spec, AclConstants.DELETE_PERMISSION, 2, 0, total -> {
+      assertFalse(TransactionSynchronizationManager.isActualTransactionActive());
+      // The deleted chunk is already committed, so it's not visible for a new transaction
+      remaining.add(transactionTemplate.execute(status -> ids.stream()
+          .filter(id -> documentRepository.findByIdWithoutPermissionCheck(id).isPresent()).count()));
+    });
+
+    assertThat(deleted, is(5L));
+    // 5 entities in chunks of 2: 2 + 2 + 1
+    assertThat(remaining, is(Arrays.asList(3L, 1L, 0L)));
+  }
+}
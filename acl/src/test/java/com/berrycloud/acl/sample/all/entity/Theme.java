@@ -4,6 +4,7 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Version;
 
 import com.berrycloud.acl.repository.NoAcl;
 
@@ -18,6 +19,9 @@ public class Theme {
 	private String name;
 	private String content;
 
+	@Version
+	private Integer version;
+
 	public Theme() {
 	}
 
@@ -51,4 +55,12 @@ public class Theme {
 		this.content = content;
 	}
 
+	public Integer getVersion() {
+		return version;
+	}
+
+	public void setVersion(Integer version) {
+		this.version = version;
+	}
+
 }
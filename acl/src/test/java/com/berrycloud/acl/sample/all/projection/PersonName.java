@@ -0,0 +1,9 @@
+package com.berrycloud.acl.sample.all.projection;
+
+public interface PersonName {
+
+  String getFirstName();
+
+  String getLastName();
+
+}
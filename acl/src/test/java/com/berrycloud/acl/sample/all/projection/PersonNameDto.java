@@ -0,0 +1,21 @@
+package com.berrycloud.acl.sample.all.projection;
+
+public class PersonNameDto {
+
+  private final String firstName;
+  private final String lastName;
+
+  public PersonNameDto(String firstName, String lastName) {
+    this.firstName = firstName;
+    this.lastName = lastName;
+  }
+
+  public String getFirstName() {
+    return firstName;
+  }
+
+  public String getLastName() {
+    return lastName;
+  }
+
+}
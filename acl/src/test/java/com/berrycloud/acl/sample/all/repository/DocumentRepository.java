@@ -4,7 +4,10 @@ import java.util.List;
 
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
+import org.springframework.security.access.prepost.PostFilter;
 
 import com.berrycloud.acl.repository.AclJpaRepository;
 import com.berrycloud.acl.sample.all.entity.Document;
@@ -19,4 +22,15 @@ public interface DocumentRepository extends AclJpaRepository<Document, Integer>{
     List<Document> findByCreator(@Param("person") Person person);
 
     Person findCreatorById(@Param("id") Integer id);
+
+    @Override
+    @PostFilter("hasPermission(filterObject, 'read')")
+    List<Document> findAll();
+
+    @PostFilter("hasPermission(filterObject, 'update')")
+    List<Document> findByContent(@Param("content") String content);
+
+    @Modifying
+    @Query("update Document d set d.creator = :creator where d.name = :name")
+    int updateCreatorByName(@Param("name") String name, @Param("creator") Person creator);
 }
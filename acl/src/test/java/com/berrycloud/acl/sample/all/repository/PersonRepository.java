@@ -2,13 +2,21 @@ package com.berrycloud.acl.sample.all.repository;
 
 import java.util.List;
 
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 
 import com.berrycloud.acl.repository.AclJpaRepository;
+import com.berrycloud.acl.repository.AclTableAlias;
+import com.berrycloud.acl.repository.LoadBeforeDelete;
 import com.berrycloud.acl.repository.NoAcl;
 import com.berrycloud.acl.sample.all.entity.Person;
+import com.berrycloud.acl.sample.all.projection.PersonName;
 
 //@RepositoryRestResource(collectionResourceRel = "people", path = "people")
 public interface PersonRepository extends AclJpaRepository<Person, Integer>, JpaSpecificationExecutor<Person> {
@@ -18,10 +26,47 @@ public interface PersonRepository extends AclJpaRepository<Person, Integer>, Jpa
   @Query("select p from Person p")
   List<Person> selectAllUsingNative();
 
+  @Query("select p from Person p where p.lastName = :name order by p.username")
+  List<Person> selectByLastName(@Param("name") String name);
+
+  @Query("select p from Person as p where p.lastName = ?1")
+  Page<Person> selectPageByLastName(String name, Pageable pageable);
+
+  @AclTableAlias("p")
+  @Query(value = "select p.* from person p where p.last_name = :name order by p.username", nativeQuery = true)
+  List<Person> selectNativeByLastName(@Param("name") String name);
+
+  @AclTableAlias("p")
+  @Query(value = "select count(*) from person p", nativeQuery = true)
+  long countNative();
+
+  @AclTableAlias("p")
+  @Query(value = "select p.* from person p where p.last_name = :name order by p.username fetch first 1 rows only",
+      nativeQuery = true)
+  List<Person> selectFirstNativeByLastName(@Param("name") String name);
+
+  @AclTableAlias("p")
+  @Query(value = "select p.* from person p where p.last_name = :name for update", nativeQuery = true)
+  List<Person> selectNativeByLastNameForUpdate(@Param("name") String name);
+
+  @AclTableAlias("p")
+  @Query(value = "select count(*) from person p /* where */ -- all the persons", nativeQuery = true)
+  long countNativeWithComments();
+
+  @Modifying
+  @Query("update Person p set p.firstName = :firstName where p.lastName = :name")
+  int updateFirstNameByLastName(@Param("name") String name, @Param("firstName") String firstName);
+
   List<Person> findByLastName(@Param("name") String name);
 
   Person findByUsername(@Param("username") String username);
 
+  List<PersonName> findNamesByLastName(@Param("name") String name);
+
+  @Override
+  @EntityGraph(attributePaths = { "aclRoles", "groups", "createdBy" })
+  List<Person> findAll(Specification<Person> spec);
+
   List<Person> findAllByOrderByUsernameDesc();
 
   List<Person> findAllByOrderByLastNameDesc();
@@ -30,6 +75,11 @@ public interface PersonRepository extends AclJpaRepository<Person, Integer>, Jpa
 
   Long countByIdGreaterThan(@Param("id") Integer id);
 
+  long deleteByLastName(@Param("name") String name);
+
+  @LoadBeforeDelete
+  long removeByLastName(@Param("name") String name);
+
   @NoAcl
   Person findNoAclByUsername(@Param("username") String username);
 
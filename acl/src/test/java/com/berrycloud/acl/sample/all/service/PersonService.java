@@ -1,5 +1,9 @@
 package com.berrycloud.acl.sample.all.service;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.security.access.prepost.PostFilter;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Service;
 
@@ -23,6 +27,16 @@ public class PersonService {
 		return true;
 	}
 
+	@PreAuthorize("@aclPermissionEvaluator.permissionsFor(T(com.berrycloud.acl.sample.all.entity.Person), #ids, #permission).keySet().containsAll(#ids)")
+	public boolean loadPersons(List<Integer> ids, String permission) {
+		return true;
+	}
+
+	@PostFilter("hasPermission(filterObject, #permission)")
+	public List<Person> filterPersons(List<Person> persons, String permission) {
+		return new ArrayList<>(persons);
+	}
+
 	@PreAuthorize("hasPermission(#person, #permission)")
 	public boolean loadInvalidObject(String person, String permission) {
 		return true;